@@ -0,0 +1,112 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Time to complete a burst of reverse lookups against a stub with fixed latency.
+ * <code>blockingPool</code> runs the executor-based async API on a fixed pool, so at most
+ * <code>poolThreads</code> requests are in flight; <code>transport</code> uses
+ * {@link G3HttpTransport} and keeps the whole burst in flight on a handful of threads.
+ * The stub shares the machine, so at low latency both are bound by CPU rather than waiting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BenchAsyncTransport {
+
+    @Param({ "1024" })
+    public int burst;
+
+    @Param({ "64" })
+    public int poolThreads;
+
+    @Param({ "20", "200" })
+    public int latencyMillis;
+
+    private StubGeocodeServer server;
+    private ExecutorService pool;
+    private ExecutorService transportThreads;
+    private G3Geocoder blocking;
+    private G3Geocoder nonBlocking;
+
+    @Setup
+    public void setup() throws Exception {
+        server = new StubGeocodeServer().start();
+        server.setLatency(latencyMillis, 0);
+        pool = Executors.newFixedThreadPool(poolThreads);
+        transportThreads = Executors.newFixedThreadPool(2);
+        blocking = G3Geocoder.builder().baseURL(server.getBaseURL()).build();
+        nonBlocking = G3Geocoder.builder().baseURL(server.getBaseURL())
+                .transport(new G3HttpTransport(Duration.ofSeconds(10), Duration.ofSeconds(30), transportThreads))
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdownNow();
+        transportThreads.shutdownNow();
+        server.stop();
+    }
+
+    @Benchmark
+    public Object blockingPool() throws Exception {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[burst];
+        for (int i = 0; i < burst; i++) {
+            futures[i] = blocking.getReverseGeocodeAsync(40.714224, -72.961452, pool);
+        }
+        return CompletableFuture.allOf(futures).get();
+    }
+
+    @Benchmark
+    public Object transport() throws Exception {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[burst];
+        for (int i = 0; i < burst; i++) {
+            futures[i] = nonBlocking.getReverseGeocodeAsync(40.714224, -72.961452);
+        }
+        return CompletableFuture.allOf(futures).get();
+    }
+}
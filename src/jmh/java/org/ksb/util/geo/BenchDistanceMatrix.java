@@ -0,0 +1,120 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * size x size distance matrices between random points in a metro area.
+ * <code>pairwiseDistanceTo</code> is the LatLng-by-LatLng loop DistanceMatrix replaces.
+ * A 10k x 10k double matrix is 800 MB, hence the larger heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class BenchDistanceMatrix {
+
+    @Param({ "10000" })
+    public int size;
+
+    private List<LatLng> rows;
+    private List<LatLng> columns;
+    private double[] rowCoords;
+    private double[] columnCoords;
+    private double[] doubles;
+    private float[] floats;
+    private DistanceMatrix matrix = new DistanceMatrix();
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        rows = new ArrayList<LatLng>(size);
+        columns = new ArrayList<LatLng>(size);
+        rowCoords = new double[size * 2];
+        columnCoords = new double[size * 2];
+        for (int i = 0; i < size; i++) {
+            rows.add(new LatLng(40.5 + random.nextDouble() * 0.5, -74.2 + random.nextDouble() * 0.5));
+            columns.add(new LatLng(40.5 + random.nextDouble() * 0.5, -74.2 + random.nextDouble() * 0.5));
+            rowCoords[2 * i] = rows.get(i).getLatitude();
+            rowCoords[2 * i + 1] = rows.get(i).getLongitude();
+            columnCoords[2 * i] = columns.get(i).getLatitude();
+            columnCoords[2 * i + 1] = columns.get(i).getLongitude();
+        }
+        doubles = new double[size * size];
+        floats = new float[size * size];
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 1024)
+    public float[] pairwiseDistanceTo() {
+        for (int i = 0; i < size; i++) {
+            LatLng row = rows.get(i);
+            for (int j = 0; j < size; j++) floats[i * size + j] = (float) row.distanceTo(columns.get(j));
+        }
+        return floats;
+    }
+
+    /** Allocation is the per-point terms, 48 bytes a point. */
+    @Benchmark
+    @AllocationBudget(bytes = 2 * 1024 * 1024)
+    public double[] matrixDouble() {
+        matrix.distances(rowCoords, columnCoords, doubles);
+        return doubles;
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 2 * 1024 * 1024)
+    public float[] matrixFloat() {
+        matrix.distances(rowCoords, columnCoords, floats);
+        return floats;
+    }
+
+    /** Terms plus the k results per row; the matrix itself is never held. */
+    @Benchmark
+    @AllocationBudget(bytes = 4 * 1024 * 1024)
+    public DistanceMatrix.Nearest nearest8() {
+        return matrix.nearest(rowCoords, columnCoords, 8);
+    }
+}
@@ -0,0 +1,195 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * G3Geocoder request forming and response parsing benchmarks, using the XML fixtures
+ * from the test resources as input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BenchG3Geocoder {
+
+    private G3Geocoder geocoder;
+    private G3Geocoder signingGeocoder;
+    private String reverseFull;
+    private String forwardFull;
+    private EnumSet<GeocodeField> allFields = GeocodeField.all();
+    private EnumSet<GeocodeField> positionOnly = EnumSet.of(GeocodeField.POSITION);
+    private EnumSet<GeocodeField> postalCountry = EnumSet.of(GeocodeField.POSTAL_CODE, GeocodeField.COUNTRY);
+    private String reverseError;
+    private Properties reverseProperties;
+    private byte[] reverseGzip;
+
+    public String getTestFileAsString(String resourceName) {
+        InputStream in = getClass().getResourceAsStream("/" + resourceName);
+        java.util.Scanner s = new java.util.Scanner(in).useDelimiter("\\A");
+        return s.hasNext() ? s.next() : "";
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        geocoder = new G3Geocoder();
+
+        signingGeocoder = new G3Geocoder();
+        signingGeocoder.setGoogleClientID("clientID");
+        signingGeocoder.setGoogleSigningKey("vNIXE0xscrmjlyV-12Nj_BvUPaw=");
+
+        reverseFull = getTestFileAsString("GoogleReverseGeocodeFull.xml");
+        forwardFull = getTestFileAsString("GoogleForwardGeocodeFull.xml");
+        reverseError = getTestFileAsString("GoogleReverseGeocodeError.xml");
+        reverseProperties = geocoder.xmlToProperties(reverseFull);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(reverseFull.getBytes(StandardCharsets.UTF_8));
+        gzip.close();
+        reverseGzip = bytes.toByteArray();
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 128)
+    public int readResponseGzip() throws IOException {
+        ResponseBuffer buffer = ResponseBuffer.acquire();
+        try {
+            geocoder.readResponse(new ByteArrayInputStream(reverseGzip), "gzip", buffer);
+            return buffer.length();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 512)
+    public GeocodeResponse readAndParseGzip() throws IOException {
+        ResponseBuffer buffer = ResponseBuffer.acquire();
+        try {
+            geocoder.readResponse(new ByteArrayInputStream(reverseGzip), "gzip", buffer);
+            return (G3Status.fromResponse(buffer) == G3Status.OK) ? geocoder.toResponse(buffer, null, postalCountry) : null;
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 1200000)
+    public Properties xmlToProperties() throws Exception {
+        return geocoder.xmlToProperties(reverseFull);
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 2560)
+    public GeocodeResponse toResultsFirst() {
+        return geocoder.toResults(reverseFull, null).first();
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 7168)
+    public int toResultsAll() {
+        GeocodeResults results = geocoder.toResults(reverseFull, null);
+        int n = 0;
+        for (GeocodeResponse gr : results) if (gr.getCountryName() != null) n++;
+        return n;
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 1024)
+    public GeocodeResponse maskedForwardAll() {
+        return geocoder.toResponse(forwardFull, null, allFields);
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 512)
+    public GeocodeResponse maskedForwardPosition() {
+        return geocoder.toResponse(forwardFull, null, positionOnly);
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 256)
+    public GeocodeResponse maskedReversePostalCountry() {
+        return geocoder.toResponse(reverseFull, null, postalCountry);
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 512)
+    public GeocodeResponse buildGeocodeResponse() {
+        return geocoder.buildGeocodeResponse(reverseProperties);
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 64)
+    public boolean testStatusOK() {
+        return geocoder.testStatus(reverseFull);
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 64)
+    public boolean testStatusError() {
+        return geocoder.testStatus(reverseError);
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 3072)
+    public String buildForwardGeocodeRequest() {
+        return geocoder.buildForwardGeocodeRequest("1488 Montgomery Highway Birmingham AL 35216");
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 1024)
+    public String buildReverseGeocodeRequest() {
+        return geocoder.buildReverseGeocodeRequest(40.714224, -72.961452);
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 20480)
+    public String buildForwardGeocodeRequestSigned() {
+        return signingGeocoder.buildForwardGeocodeRequest("1488 Montgomery Highway Birmingham AL 35216");
+    }
+}
@@ -0,0 +1,147 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Binary codec against Java serialization. GeocodeResponse is not Serializable, so its
+ * baseline is the equivalent field map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BenchGeocodeCodec {
+
+    private GeocodeResponse response;
+    private HashMap<String, Object> fields;
+    private LatLng position = new LatLng(40.6865090, -72.9968220);
+
+    private ByteBuffer buffer = ByteBuffer.allocate(512);
+    private byte[] encodedResponse;
+    private byte[] serializedFields;
+    private byte[] serializedPosition;
+
+    @Setup
+    public void setup() throws IOException {
+        response = new GeocodeResponse("33", "", "Dune Walk", null, "Brookhaven", "NY", "US", "", "11772");
+        response.setCounty("Suffolk");
+        response.setPosition(position);
+
+        fields = new HashMap<String, Object>();
+        fields.put("buildingNumber", "33");
+        fields.put("buildingSegmentName", "");
+        fields.put("street", "Dune Walk");
+        fields.put("city", "Brookhaven");
+        fields.put("county", "Suffolk");
+        fields.put("state", "NY");
+        fields.put("countryName", "US");
+        fields.put("countryNameCode", "");
+        fields.put("postalCode", "11772");
+        fields.put("position", position);
+
+        encodedResponse = GeocodeCodec.encode(response);
+        serializedFields = serialize(fields);
+        serializedPosition = serialize(position);
+        System.out.println("\nEncoded sizes: codec response=" + encodedResponse.length + " serialized fields="
+                + serializedFields.length + " codec latlng=17 serialized latlng=" + serializedPosition.length);
+    }
+
+    private static byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        return in.readObject();
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 256)
+    public ByteBuffer codecWriteResponse() {
+        buffer.clear();
+        GeocodeCodec.write(buffer, response);
+        return buffer;
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 1024)
+    public GeocodeResponse codecReadResponse() {
+        return GeocodeCodec.read(ByteBuffer.wrap(encodedResponse));
+    }
+
+    @Benchmark
+    public byte[] serializeResponse() throws IOException {
+        return serialize(fields);
+    }
+
+    @Benchmark
+    public Object deserializeResponse() throws IOException, ClassNotFoundException {
+        return deserialize(serializedFields);
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 64)
+    public ByteBuffer codecWriteLatLng() {
+        buffer.clear();
+        GeocodeCodec.writeLatLng(buffer, position);
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] serializeLatLng() throws IOException {
+        return serialize(position);
+    }
+
+    @Benchmark
+    public Object deserializeLatLng() throws IOException, ClassNotFoundException {
+        return deserialize(serializedPosition);
+    }
+}
@@ -0,0 +1,111 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * LatLng distance, direction, parsing and formatting benchmarks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BenchLatLng {
+
+    private LatLng seattle = new LatLng(47.609722, -122.333056);
+    private LatLng sandiego = new LatLng(32.715, -117.1625);
+    private String text = "47.609722,-122.333056";
+    private byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+    private double[] pair = new double[2];
+    private byte[] buffer = new byte[LatLngCodec.MAX_PAIR_LENGTH];
+    private String polyline = route(1000);
+
+    private static String route(int points) {
+        double[] coords = new double[points * 2];
+        for (int i = 0; i < points; i++) {
+            coords[2 * i] = 47.6 + Math.sin(i / 50.0) * 0.01;
+            coords[2 * i + 1] = -122.3 + i * 0.0001;
+        }
+        return EncodedPolyline.encode(coords, EncodedPolyline.DEFAULT_PRECISION);
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 64)
+    public double distanceTo() {
+        return seattle.distanceTo(sandiego);
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 64)
+    public double directionTo() {
+        return seattle.directionTo(sandiego);
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 256)
+    public String toStringFormat() {
+        return seattle.toString();
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 64)
+    public LatLng parseString() {
+        return new LatLng(text);
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 16)
+    public double[] parseBytes() {
+        LatLngCodec.parse(bytes, 0, bytes.length, pair, 0);
+        return pair;
+    }
+
+    /** One 1000-point array and nothing per point. */
+    @Benchmark
+    @AllocationBudget(bytes = 16100)
+    public double[] decodePolyline() {
+        return EncodedPolyline.decode(polyline);
+    }
+
+    @Benchmark
+    @AllocationBudget(bytes = 16)
+    public int formatBytes() {
+        return LatLngCodec.format(seattle.getLatitude(), seattle.getLongitude(), 6, buffer, 0);
+    }
+}
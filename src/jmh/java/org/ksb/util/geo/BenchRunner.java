@@ -0,0 +1,137 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs the geocoder benchmarks with the GC profiler attached and checks each result against
+ * the benchmark's {@link AllocationBudget}. Exits non-zero if any budget is exceeded, which
+ * fails the <code>jmh</code> Maven profile.
+ *
+ * Accepts regular JMH command line options; with no benchmark pattern given, every
+ * <code>Bench*</code> class in this package is run.
+ */
+public class BenchRunner {
+
+    private static final String ALLOC_NORM = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class);
+        if (cmd.getIncludes().isEmpty()) builder.include(BenchRunner.class.getPackage().getName() + ".Bench.*");
+        if (!cmd.getForkCount().hasValue()) builder.forks(1);
+        if (!cmd.getWarmupIterations().hasValue()) builder.warmupIterations(3);
+        if (!cmd.getWarmupTime().hasValue()) builder.warmupTime(TimeValue.seconds(1));
+        if (!cmd.getMeasurementIterations().hasValue()) builder.measurementIterations(5);
+        if (!cmd.getMeasurementTime().hasValue()) builder.measurementTime(TimeValue.seconds(1));
+
+        Collection<RunResult> results = new Runner(builder.build()).run();
+
+        List<String> failures = checkBudgets(results);
+
+        System.out.println();
+        if (failures.isEmpty()) {
+            System.out.println("All allocation budgets met.");
+        } else {
+            System.out.println("Allocation budgets exceeded:");
+            for (String failure : failures) System.out.println("\t" + failure);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param results JMH run results with GC profiler data
+     * @return description of each benchmark over budget, empty when all are within budget
+     */
+    static List<String> checkBudgets(Collection<RunResult> results) {
+        List<String> failures = new ArrayList<String>();
+
+        System.out.println();
+        System.out.println(String.format("%-50s %14s %14s", "Benchmark", "B/op", "Budget B/op"));
+
+        for (RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            AllocationBudget budget = findBudget(params.getBenchmark());
+            Double allocated = allocatedPerOp(result);
+
+            String name = params.getBenchmark().substring(params.getBenchmark().lastIndexOf('.', params.getBenchmark().lastIndexOf('.') - 1) + 1);
+            System.out.println(String.format("%-50s %14s %14s", name,
+                    allocated == null ? "n/a" : String.format("%.1f", allocated),
+                    budget == null ? "-" : String.valueOf(budget.bytes())));
+
+            if (budget != null && allocated != null && allocated > budget.bytes()) {
+                failures.add(name + " allocates " + Math.round(allocated)
+                        + " B/op, budget is " + budget.bytes() + " B/op");
+            }
+        }
+        return failures;
+    }
+
+    private static Double allocatedPerOp(RunResult result) {
+        Map<String, ?> secondary = result.getSecondaryResults();
+        for (String label : secondary.keySet()) {
+            // older JMH releases prefix profiler results with a middle dot
+            if (label.endsWith(ALLOC_NORM)) return ((Result<?>) secondary.get(label)).getScore();
+        }
+        return null;
+    }
+
+    private static AllocationBudget findBudget(String benchmark) {
+        int split = benchmark.lastIndexOf('.');
+        try {
+            Class<?> type = Class.forName(benchmark.substring(0, split));
+            for (Method method : type.getMethods()) {
+                if (method.getName().equals(benchmark.substring(split + 1))) {
+                    return method.getAnnotation(AllocationBudget.class);
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            // no budget for benchmarks we cannot resolve
+        }
+        return null;
+    }
+}
@@ -0,0 +1,147 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to first request in a fresh JVM, against the local stub server. Every fork measures
+ * exactly one request, so the score is the cost a process pays right after a deploy:
+ * <code>coldFirstRequest</code> without preparation, <code>warmedFirstRequest</code> after
+ * {@link G3Geocoder#warmUp()} (the warm-up itself runs in setup and is not measured).
+ *
+ * Each geocoder has its own state class, so a <code>coldFirstRequest</code> fork never runs
+ * the warm-up and keeps the stylesheet, HTTP stack and parser cold.
+ *
+ * BenchRunner's defaults override the annotations; run with
+ * <code>-Djmh.args="-f 10 -wi 0 -i 1 BenchStartup"</code>.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(10)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class BenchStartup {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        StubGeocodeServer server;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            server = new StubGeocodeServer().start();
+            primeServer();
+        }
+
+        /**
+         * The stub runs in this JVM, so its own first-request cost would be charged to the
+         * client. Prime it over a raw socket, which leaves the client HTTP stack cold.
+         */
+        private void primeServer() throws IOException {
+            URL url = new URL(server.getBaseURL());
+            for (int i = 0; i < 20; i++) {
+                Socket socket = new Socket(url.getHost(), url.getPort());
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("GET " + url.getPath() + "/xml?latlng=40.714224,-72.961452 HTTP/1.1\r\nHost: "
+                            + url.getHost() + "\r\nAccept-Encoding: gzip\r\nConnection: close\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    InputStream in = socket.getInputStream();
+                    byte[] buffer = new byte[8192];
+                    while (in.read(buffer) >= 0) { }
+                } finally {
+                    socket.close();
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            server.stop();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Cold {
+
+        G3Geocoder geocoder;
+
+        @Setup(Level.Trial)
+        public void setup(Server server) {
+            geocoder = new G3Geocoder();
+            geocoder.setBaseURL(server.server.getBaseURL());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Warmed {
+
+        G3Geocoder geocoder;
+
+        @Setup(Level.Trial)
+        public void setup(Server server) throws Exception {
+            geocoder = new G3Geocoder();
+            geocoder.setBaseURL(server.server.getBaseURL());
+            geocoder.warmUp();
+        }
+    }
+
+    @Benchmark
+    public GeocodeResponse coldFirstRequest(Cold cold) throws Exception {
+        return cold.geocoder.getReverseGeocode(40.714224, -72.961452);
+    }
+
+    @Benchmark
+    public GeocodeResponse warmedFirstRequest(Warmed warmed) throws Exception {
+        return warmed.geocoder.getReverseGeocode(40.714224, -72.961452);
+    }
+}
@@ -0,0 +1,110 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.Random;
+
+/**
+ * Measures retained heap for one million mutable vs compact responses. Not a JMH benchmark;
+ * run directly with a fixed heap, e.g.
+ *
+ * <pre>
+ *   java -Xms2g -Xmx2g -cp target/classes:target/test-classes org.ksb.util.geo.FootprintGeocodeResponse
+ * </pre>
+ *
+ * Values are drawn from US-like cardinalities (1 country, 50 states, 3,000 counties,
+ * 20,000 cities, 40,000 postal codes, 100,000 streets) and created as fresh String instances,
+ * as the response parser does.
+ */
+public class FootprintGeocodeResponse {
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Random random = new Random(42);
+
+        long baseline = usedHeap();
+
+        GeocodeResponse[] mutable = new GeocodeResponse[count];
+        for (int i = 0; i < count; i++) {
+            GeocodeResponse gr = new GeocodeResponse();
+            gr.setBuildingNumber(fresh(String.valueOf(1 + random.nextInt(9999))));
+            gr.setStreet(fresh("Street " + random.nextInt(100000)));
+            gr.setCity(fresh("City " + random.nextInt(20000)));
+            gr.setCounty(fresh("County " + random.nextInt(3000)));
+            gr.setState(fresh("S" + random.nextInt(50)));
+            gr.setCountryName(fresh("US"));
+            gr.setCountryNameCode(fresh(""));
+            gr.setBuildingSegmentName(fresh(""));
+            gr.setPostalCode(fresh(String.valueOf(10000 + random.nextInt(40000))));
+            gr.setPosition(new LatLng(25 + random.nextDouble() * 24, -124 + random.nextDouble() * 57));
+            gr.setBuildingNumberLow(Integer.valueOf(1000 + random.nextInt(9000)));
+            gr.setBuildingNumberHigh(Integer.valueOf(1000 + random.nextInt(9000)));
+            mutable[i] = gr;
+        }
+        long mutableBytes = usedHeap() - baseline;
+
+        GeocodeStringPool pool = new GeocodeStringPool(GeocodeStringPool.DEFAULT_CAPACITY * 2);
+        CompactGeocodeResponse[] compact = new CompactGeocodeResponse[count];
+        for (int i = 0; i < count; i++) {
+            compact[i] = CompactGeocodeResponse.of(mutable[i], pool);
+            mutable[i] = null;
+        }
+        mutable = null;
+        long compactBytes = usedHeap() - baseline;
+
+        System.out.println(String.format("%,d responses", count));
+        System.out.println(String.format("mutable: %,d bytes (%.1f per entry)", mutableBytes, (double) mutableBytes / count));
+        System.out.println(String.format("compact: %,d bytes (%.1f per entry, %,d pooled strings)",
+                compactBytes, (double) compactBytes / count, pool.size()));
+        System.out.println(String.format("saved:   %,d bytes per million entries",
+                (long) ((mutableBytes - compactBytes) * (1000000.0 / count))));
+
+        // keep the compact set reachable until measured
+        if (compact[count - 1] == null) System.out.println();
+    }
+
+    private static String fresh(String value) {
+        return new String(value.toCharArray());
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
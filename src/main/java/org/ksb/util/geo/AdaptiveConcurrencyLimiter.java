@@ -0,0 +1,566 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Adaptive limit on in-flight remote requests.
+ *
+ * The limit follows AIMD driven by latency. The baseline is the windowed minimum round trip.
+ * Each successful request whose round trip stays within <code>tolerance</code> times (or 1 ms
+ * of) the baseline raises the limit by 1/limit, about one per limit's worth of requests,
+ * while at least half the permits are in use. A slower round trip, an overload response or an I/O failure
+ * multiplies the limit by the backoff ratio. The limit so settles just below the point where
+ * the upstream starts queueing.
+ *
+ * Callers over the limit wait in a FIFO queue per {@link GeocodePriority} lane, whether they
+ * block ({@link #acquire()}) or not ({@link #acquireAsync()}); they are rejected when the queue
+ * is full or the wait times out. Freed permits go to the waiting lanes in proportion to their
+ * weights (stride scheduling), so a deep BULK queue delays an INTERACTIVE caller by at most
+ * about one permit turnover. Optionally some permits are reserved for INTERACTIVE, and when the
+ * queue is full an INTERACTIVE caller preempts the newest queued BULK caller, which is
+ * rejected. Every permit must be completed exactly once with {@link Permit#success()},
+ * {@link Permit#dropped()} or {@link Permit#ignore()}.
+ */
+public class AdaptiveConcurrencyLimiter implements AdaptiveConcurrencyLimiterMXBean {
+
+    private static final int RTT_WINDOW = 500;
+
+    // round trips within this much of the baseline are never read as queueing (timer noise)
+    private static final long RTT_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Right to send one request.
+     */
+    public final class Permit {
+
+        private long startNanos = System.nanoTime();
+        private boolean completed = false;
+
+        /** Start the round trip clock now, e.g. when a queued task finally runs. */
+        void restart() {
+            startNanos = System.nanoTime();
+        }
+
+        /** The request succeeded; its round trip feeds the limit. */
+        public void success() {
+            complete(Outcome.SUCCESS, System.nanoTime() - startNanos);
+        }
+
+        /** The request was refused for load or failed; the limit backs off. */
+        public void dropped() {
+            complete(Outcome.DROPPED, 0);
+        }
+
+        /** Release without a sample, e.g. the request was never sent. */
+        public void ignore() {
+            complete(Outcome.IGNORED, 0);
+        }
+
+        private void complete(Outcome outcome, long rttNanos) {
+            synchronized (this) {
+                if (completed) return;
+                completed = true;
+            }
+            release(outcome, rttNanos);
+        }
+    }
+
+    private enum Outcome { SUCCESS, DROPPED, IGNORED }
+
+    private static final GeocodePriority[] LANES = GeocodePriority.values();
+
+    /**
+     * Queued caller.
+     */
+    private static final class Waiter {
+
+        final CompletableFuture<Permit> future = new CompletableFuture<Permit>();
+        final GeocodePriority lane;
+        final long enqueuedNanos = System.nanoTime();
+
+        Waiter(GeocodePriority lane) {
+            this.lane = lane;
+        }
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private volatile double backoffRatio = 0.9;
+    private volatile double tolerance = 2.0;
+    private volatile int maxQueue = Integer.MAX_VALUE;
+    private volatile long maxWaitMillis = 30000;
+
+    // guarded by this
+    private double limit;
+    private int inFlight = 0;
+    private int queued = 0;
+    private int reservedPermits = 0;
+    private final List<ArrayDeque<Waiter>> waiters;
+    private final int[] weights = new int[LANES.length];
+    private final double[] pass = new double[LANES.length];
+    private double virtualTime = 0;
+    private long minRttNanos = 0;
+    private long windowMinRttNanos = Long.MAX_VALUE;
+    private int windowSamples = 0;
+
+    private final LatencyHistogram[] waitTimes = new LatencyHistogram[LANES.length];
+    private final LongAdder preempted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private ObjectName objectName = null;
+
+    public AdaptiveConcurrencyLimiter() {
+        this(10, 1, 200);
+    }
+
+    /**
+     * @param initialLimit starting limit
+     * @param minLimit lowest the limit may fall
+     * @param maxLimit highest the limit may rise
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Require 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+
+        waiters = new ArrayList<ArrayDeque<Waiter>>(LANES.length);
+        for (GeocodePriority lane : LANES) {
+            waiters.add(new ArrayDeque<Waiter>());
+            weights[lane.ordinal()] = lane.getDefaultWeight();
+            waitTimes[lane.ordinal()] = new LatencyHistogram();
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Configuration
+    // ------------------------------------------------------------------------------
+
+    /**
+     * @param ratio factor applied to the limit on a slow or dropped request, in (0,1)
+     */
+    public void setBackoffRatio(double ratio) {
+        if (!(ratio > 0 && ratio < 1)) throw new IllegalArgumentException("ratio must be in (0,1)");
+        backoffRatio = ratio;
+    }
+
+    /**
+     * @param tolerance round trips up to this multiple of the baseline count as unloaded; &gt; 1
+     */
+    public void setTolerance(double tolerance) {
+        if (!(tolerance > 1)) throw new IllegalArgumentException("tolerance must be > 1");
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @param maxQueue callers allowed to wait; further callers are rejected at once
+     */
+    public void setMaxQueue(int maxQueue) {
+        this.maxQueue = maxQueue;
+    }
+
+    /**
+     * @param millis longest {@link #acquire()} waits before rejecting
+     */
+    public void setMaxWaitMillis(long millis) {
+        maxWaitMillis = millis;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * @param lane lane
+     * @param weight share of freed permits relative to other waiting lanes; at least 1
+     */
+    public synchronized void setWeight(GeocodePriority lane, int weight) {
+        if (weight < 1) throw new IllegalArgumentException("weight must be at least 1");
+        weights[lane.ordinal()] = weight;
+    }
+
+    /**
+     * @param permits permits only INTERACTIVE callers may take, kept free for them while
+     *                BULK work is queued; capped below the current limit
+     */
+    public synchronized void setReservedPermits(int permits) {
+        if (permits < 0) throw new IllegalArgumentException("permits must not be negative");
+        reservedPermits = permits;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Acquisition
+    // ------------------------------------------------------------------------------
+
+    /**
+     * @return INTERACTIVE permit if one is free and nobody in the lane is waiting, otherwise null
+     */
+    public Permit tryAcquire() {
+        return tryAcquire(GeocodePriority.INTERACTIVE);
+    }
+
+    /**
+     * @param lane lane
+     * @return permit if one is free for the lane and nobody in it is waiting, otherwise null
+     */
+    public Permit tryAcquire(GeocodePriority lane) {
+        synchronized (this) {
+            if (waiters.get(lane.ordinal()).isEmpty() && hasCapacity(lane)) {
+                inFlight++;
+                waitTimes[lane.ordinal()].record(0);
+                return new Permit();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wait up to {@link #getMaxWaitMillis()} for an INTERACTIVE permit.
+     *
+     * @return permit, or null if rejected
+     */
+    public Permit acquire() {
+        return acquire(GeocodePriority.INTERACTIVE, maxWaitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait up to {@link #getMaxWaitMillis()} for a permit.
+     *
+     * @param lane lane
+     * @return permit, or null if rejected
+     */
+    public Permit acquire(GeocodePriority lane) {
+        return acquire(lane, maxWaitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param timeout longest wait for an INTERACTIVE permit
+     * @param unit timeout unit
+     * @return permit, or null if rejected, timed out or interrupted
+     */
+    public Permit acquire(long timeout, TimeUnit unit) {
+        return acquire(GeocodePriority.INTERACTIVE, timeout, unit);
+    }
+
+    /**
+     * @param lane lane
+     * @param timeout longest wait
+     * @param unit timeout unit
+     * @return permit, or null if rejected, preempted, timed out or interrupted
+     */
+    public Permit acquire(GeocodePriority lane, long timeout, TimeUnit unit) {
+        CompletableFuture<Permit> future = acquireAsync(lane);
+        try {
+            return future.get(timeout, unit);
+        } catch (ExecutionException e) {
+            return null;
+        } catch (TimeoutException e) {
+            return abandon(future);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Permit permit = abandon(future);
+            if (permit != null) permit.ignore();
+            return null;
+        }
+    }
+
+    /**
+     * Queue for an INTERACTIVE permit without blocking; see {@link #acquireAsync(GeocodePriority)}.
+     *
+     * @return future permit
+     */
+    public CompletableFuture<Permit> acquireAsync() {
+        return acquireAsync(GeocodePriority.INTERACTIVE);
+    }
+
+    /**
+     * Queue for a permit without blocking a thread. Cancelling the future gives up the place
+     * in the queue.
+     *
+     * @param lane lane
+     * @return future completed with a permit, or exceptionally with RejectedExecutionException
+     *         if the queue is full or a BULK waiter is preempted
+     */
+    public CompletableFuture<Permit> acquireAsync(GeocodePriority lane) {
+        Waiter victim = null;
+        synchronized (this) {
+            if (waiters.get(lane.ordinal()).isEmpty() && hasCapacity(lane)) {
+                inFlight++;
+                waitTimes[lane.ordinal()].record(0);
+                return CompletableFuture.completedFuture(new Permit());
+            }
+            if (queued >= maxQueue && lane == GeocodePriority.INTERACTIVE) {
+                victim = waiters.get(GeocodePriority.BULK.ordinal()).pollLast();
+                if (victim != null) queued--;
+            }
+            if (queued < maxQueue) {
+                Waiter waiter = new Waiter(lane);
+                ArrayDeque<Waiter> queue = waiters.get(lane.ordinal());
+                // a lane that was idle re-enters at the current virtual time, without banked credit
+                if (queue.isEmpty()) pass[lane.ordinal()] = Math.max(pass[lane.ordinal()], virtualTime);
+                queue.add(waiter);
+                queued++;
+                final CompletableFuture<Permit> future = waiter.future;
+                future.whenComplete((permit, error) -> {
+                    if (future.isCancelled()) {
+                        synchronized (this) {
+                            removeWaiter(future);
+                        }
+                    }
+                });
+                if (victim != null) {
+                    preempted.increment();
+                    rejected.increment();
+                    victim.future.completeExceptionally(new RejectedExecutionException("Preempted by interactive request"));
+                }
+                return waiter.future;
+            }
+        }
+        rejected.increment();
+        CompletableFuture<Permit> future = new CompletableFuture<Permit>();
+        future.completeExceptionally(new RejectedExecutionException("Concurrency limit queue is full"));
+        return future;
+    }
+
+    /**
+     * Give up on a queued future; returns the permit if it was granted in the meantime.
+     */
+    private Permit abandon(CompletableFuture<Permit> future) {
+        if (future.cancel(false)) {
+            synchronized (this) {
+                removeWaiter(future);
+            }
+            rejected.increment();
+            return null;
+        }
+        try {
+            return future.join();
+        } catch (CancellationException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Caller holds the lock. */
+    private void removeWaiter(CompletableFuture<Permit> future) {
+        for (ArrayDeque<Waiter> queue : waiters) {
+            for (Iterator<Waiter> it = queue.iterator(); it.hasNext(); ) {
+                if (it.next().future == future) {
+                    it.remove();
+                    queued--;
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Caller holds the lock. */
+    private boolean hasCapacity(GeocodePriority lane) {
+        int current = (int) limit;
+        if (lane == GeocodePriority.INTERACTIVE) return inFlight < current;
+        return inFlight < current - Math.min(reservedPermits, current - 1);
+    }
+
+    /**
+     * Next waiter to grant: among lanes with waiters and capacity, the one with the lowest
+     * pass. Caller holds the lock.
+     */
+    private Waiter nextWaiter() {
+        int best = -1;
+        for (int i = 0; i < LANES.length; i++) {
+            if (waiters.get(i).isEmpty() || !hasCapacity(LANES[i])) continue;
+            if (best < 0 || pass[i] < pass[best]) best = i;
+        }
+        if (best < 0) return null;
+        virtualTime = pass[best];
+        pass[best] += 1.0 / weights[best];
+        queued--;
+        return waiters.get(best).poll();
+    }
+
+    // ------------------------------------------------------------------------------
+    // Limit adjustment
+    // ------------------------------------------------------------------------------
+
+    private void release(Outcome outcome, long rttNanos) {
+        List<CompletableFuture<Permit>> granted = null;
+        synchronized (this) {
+            inFlight--;
+            if (outcome == Outcome.SUCCESS) {
+                onSample(rttNanos);
+            } else if (outcome == Outcome.DROPPED) {
+                dropped.increment();
+                limit = Math.max(minLimit, limit * backoffRatio);
+            }
+            Waiter waiter;
+            long now = System.nanoTime();
+            while ((waiter = nextWaiter()) != null) {
+                if (waiter.future.isDone()) continue;
+                waitTimes[waiter.lane.ordinal()].record(now - waiter.enqueuedNanos);
+                if (granted == null) granted = new ArrayList<CompletableFuture<Permit>>(2);
+                granted.add(waiter.future);
+                inFlight++;
+            }
+        }
+        // complete outside the lock; dependent actions may run on this thread
+        if (granted != null) {
+            for (CompletableFuture<Permit> future : granted) {
+                Permit permit = new Permit();
+                if (!future.complete(permit)) permit.ignore();
+            }
+        }
+    }
+
+    /** Caller holds the lock. */
+    private void onSample(long rttNanos) {
+        if (rttNanos < windowMinRttNanos) windowMinRttNanos = rttNanos;
+        if (minRttNanos == 0 || rttNanos < minRttNanos) minRttNanos = rttNanos;
+        if (++windowSamples >= RTT_WINDOW) {
+            // re-baseline so a permanently slower upstream is not read as overload forever
+            minRttNanos = windowMinRttNanos;
+            windowMinRttNanos = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+
+        if (rttNanos > minRttNanos * tolerance && rttNanos - minRttNanos > RTT_SLACK_NANOS) {
+            limit = Math.max(minLimit, limit * backoffRatio);
+        } else if (inFlight + 1 >= limit / 2) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // JMX registration
+    // ------------------------------------------------------------------------------
+
+    /**
+     * Register with the platform MBean server as
+     * <code>org.ksb.util.geo:type=AdaptiveConcurrencyLimiter,name=&lt;name&gt;</code>.
+     *
+     * @param name instance name
+     * @throws Exception on registration failure
+     */
+    public synchronized void register(String name) throws Exception {
+        if (objectName != null) unregister();
+        ObjectName on = new ObjectName(G3GeocoderMetrics.DOMAIN + ":type=AdaptiveConcurrencyLimiter,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        objectName = on;
+    }
+
+    public synchronized void unregister() throws Exception {
+        if (objectName == null) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+        objectName = null;
+    }
+
+    // ------------------------------------------------------------------------------
+    // AdaptiveConcurrencyLimiterMXBean interface methods
+    // ------------------------------------------------------------------------------
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    public synchronized Map<String, Integer> getLaneQueued() {
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (GeocodePriority lane : LANES) result.put(lane.name(), waiters.get(lane.ordinal()).size());
+        return result;
+    }
+
+    public Map<String, Double> getLaneWaitMeanMicros() {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (GeocodePriority lane : LANES) result.put(lane.name(), waitTimes[lane.ordinal()].getMeanNanos() / 1000.0);
+        return result;
+    }
+
+    public Map<String, Long> getLaneWaitP99Micros() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (GeocodePriority lane : LANES) {
+            result.put(lane.name(), waitTimes[lane.ordinal()].getPercentileNanos(99.0) / 1000);
+        }
+        return result;
+    }
+
+    public long getPreemptedCount() {
+        return preempted.sum();
+    }
+
+    /**
+     * @param lane lane
+     * @return live histogram of time from request to grant, zero for immediate grants
+     */
+    public LatencyHistogram getWaitHistogram(GeocodePriority lane) {
+        return waitTimes[lane.ordinal()];
+    }
+
+    public synchronized long getMinRttMicros() {
+        return minRttNanos / 1000;
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,69 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.Map;
+
+/**
+ * JMX management interface for {@link AdaptiveConcurrencyLimiter}.
+ */
+public interface AdaptiveConcurrencyLimiterMXBean {
+
+    /** @return current limit on in-flight requests */
+    int getLimit();
+
+    /** @return requests currently holding a permit */
+    int getInFlight();
+
+    /** @return callers waiting for a permit */
+    int getQueued();
+
+    /** @return callers waiting, per lane */
+    Map<String, Integer> getLaneQueued();
+
+    /** @return mean wait for a permit per lane, in microseconds */
+    Map<String, Double> getLaneWaitMeanMicros();
+
+    /** @return approximate 99th percentile wait for a permit per lane, in microseconds */
+    Map<String, Long> getLaneWaitP99Micros();
+
+    /** @return queued BULK callers rejected to make room for INTERACTIVE callers */
+    long getPreemptedCount();
+
+    /** @return lowest recent round trip, in microseconds; the no-load baseline */
+    long getMinRttMicros();
+
+    /** @return callers turned away because the queue was full or the wait timed out */
+    long getRejectedCount();
+
+    /** @return requests reported as dropped (overload responses or I/O failures) */
+    long getDroppedCount();
+}
@@ -0,0 +1,728 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streams lines of addresses or <code>lat,lng</code> pairs through a geocoder concurrently and
+ * writes one CSV or TSV row per input, in input order.
+ *
+ * At most <code>parallelism * 2</code> inputs are held in memory at any time: reading stops
+ * while the oldest outstanding lookup is still running, so memory use is independent of
+ * input size.
+ *
+ * With {@link #setDeduplicate(boolean) deduplication} on, inputs with the same
+ * {@link GeocodeKeys canonical key} are looked up once and the result is written for every
+ * occurrence. The whole input is then read before the first row is written; up to the
+ * {@link #setSpillThreshold(int) spill threshold} it is held in memory, beyond that it is
+ * hash-partitioned by key into temporary files so that only one partition's inputs and
+ * results are in memory at a time, and the partition results are merged back into input
+ * order. Partitions still over the threshold are split again.
+ *
+ * With a {@link #setJournal(File) journal}, every completed lookup is recorded in a
+ * {@link BatchJournal}; a run over the same input after a crash writes the journaled rows
+ * without looking them up again. Failed lookups are not journaled and are retried. The
+ * journal is deleted once the run completes.
+ */
+public class BatchGeocoder {
+
+    public enum Format { CSV, TSV }
+
+    public static final String[] COLUMNS = {
+            "input", "status", "latitude", "longitude", "building_number", "street",
+            "city", "county", "state", "country", "postal_code", "error" };
+
+    private final IGeocoder geocoder;
+    private int parallelism = 4;
+    private Format format = Format.CSV;
+    private long progressIntervalMillis = 5000;
+    private boolean deduplicate = false;
+    private int spillThreshold = 100000;
+    private File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+    private File journalFile = null;
+
+    /** Number of hash partitions a deduplicated batch, or an oversize partition, is split into. */
+    static final int SPILL_PARTITIONS = 64;
+    /** Levels of re-partitioning before an oversize partition is geocoded in memory anyway. */
+    static final int MAX_SPILL_DEPTH = 3;
+
+    private long processed = 0;
+    private long failed = 0;
+    private long unique = 0;
+    private long resumed = 0;
+
+    public BatchGeocoder(IGeocoder geocoder) {
+        if (geocoder == null) throw new NullPointerException();
+        this.geocoder = geocoder;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be at least 1");
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @param millis minimum time between progress reports; zero or less disables them
+     */
+    public void setProgressIntervalMillis(long millis) {
+        this.progressIntervalMillis = millis;
+    }
+
+    /**
+     * @param deduplicate look up each distinct input once and fan the result back to every
+     *                    row with the same key; responses are then shared between rows
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * @param inputs largest deduplicated batch held in memory; larger batches are
+     *               partitioned through temporary files
+     */
+    public void setSpillThreshold(int inputs) {
+        if (inputs < 1) throw new IllegalArgumentException("threshold must be at least 1");
+        this.spillThreshold = inputs;
+    }
+
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * @param dir directory for spill partitions; default java.io.tmpdir
+     */
+    public void setSpillDirectory(File dir) {
+        this.spillDirectory = dir;
+    }
+
+    /**
+     * @param file journal of completed rows that makes the run resumable, or null; not
+     *             supported together with deduplication
+     */
+    public void setJournal(File file) {
+        this.journalFile = file;
+    }
+
+    public File getJournal() {
+        return journalFile;
+    }
+
+    /** @return number of rows the last run took from the journal instead of looking up */
+    public long getResumedCount() {
+        return resumed;
+    }
+
+    /** @return number of lookups made by the last deduplicated run */
+    public long getUniqueCount() {
+        return unique;
+    }
+
+    /** @return number of inputs written by the last run */
+    public long getProcessed() {
+        return processed;
+    }
+
+    /** @return number of inputs in the last run with no result or an error */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Geocode every non-blank line of <code>in</code>, writing a header row followed by one
+     * row per input to <code>out</code>.
+     *
+     * @param in input lines
+     * @param out result rows
+     * @param progress destination for progress and throughput reports, or null
+     * @throws IOException on read or write failure
+     * @throws InterruptedException if interrupted while waiting for lookups
+     */
+    public void run(Reader in, Writer out, PrintStream progress) throws IOException, InterruptedException {
+        BufferedReader reader = (in instanceof BufferedReader) ? (BufferedReader) in : new BufferedReader(in);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        ArrayDeque<Future<String[]>> window = new ArrayDeque<Future<String[]>>();
+        int windowSize = parallelism * 2;
+        if (deduplicate && journalFile != null) {
+            throw new IllegalStateException("A journal cannot be used with deduplication");
+        }
+
+        processed = 0;
+        failed = 0;
+        unique = 0;
+        resumed = 0;
+        long start = System.nanoTime();
+        long lastReport = start;
+        final BatchJournal journal = (journalFile != null) ? BatchJournal.open(journalFile) : null;
+        boolean resuming = (journal != null) && journal.getCompletedCount() > 0;
+
+        try {
+            writeRow(out, COLUMNS);
+            if (deduplicate) {
+                runDeduplicated(reader, out, progress, executor, start);
+                return;
+            }
+
+            String line;
+            long index = 0;
+            while ((line = reader.readLine()) != null) {
+                final String input = line.trim();
+                if (input.length() == 0) continue;
+                final long i = index++;
+
+                String[] done = resuming ? journal.getCompleted(i) : null;
+                if (done != null && input.equals(done[0])) {
+                    resumed++;
+                    window.add(CompletableFuture.completedFuture(done));
+                } else {
+                    window.add(executor.submit(new Callable<String[]>() {
+                        public String[] call() throws IOException {
+                            String[] row = toRow(lookup(input));
+                            if (journal != null && !"ERROR".equals(row[1])) journal.append(i, row);
+                            return row;
+                        }
+                    }));
+                }
+
+                while (window.size() >= windowSize) {
+                    write(out, window.poll());
+                    lastReport = reportProgress(progress, start, lastReport, false);
+                }
+            }
+            while (!window.isEmpty()) {
+                write(out, window.poll());
+                lastReport = reportProgress(progress, start, lastReport, false);
+            }
+            out.flush();
+            if (journal != null) {
+                journal.close();
+                journalFile.delete();
+            }
+            reportProgress(progress, start, lastReport, true);
+        } finally {
+            executor.shutdownNow();
+            if (journal != null) journal.close();
+        }
+    }
+
+    /**
+     * Geocode one input line, treating it as a coordinate if it parses as <code>lat,lng</code>.
+     *
+     * @param input trimmed input line
+     * @return result with the original line as input
+     */
+    GeocodeResult<String> lookup(String input) {
+        LatLng position = parseCoordinate(input);
+        GeocodeResult<?> result = GeocodeResult.geocode(geocoder, position != null ? position : input);
+        return new GeocodeResult<String>(input, result.getResponse(), result.getError());
+    }
+
+    /**
+     * @param input candidate <code>lat,lng</code> text
+     * @return position, or null if the input is not exactly two comma-separated numbers
+     */
+    static LatLng parseCoordinate(String input) {
+        int comma = input.indexOf(',');
+        if (comma < 0 || input.indexOf(',', comma + 1) >= 0) return null;
+        try {
+            double lat = LatLngCodec.parseCoordinate(input, 0, comma);
+            double lng = LatLngCodec.parseCoordinate(input, comma + 1, input.length());
+            return new LatLng(lat, lng);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void write(Writer out, Future<String[]> future) throws IOException, InterruptedException {
+        writeResult(out, get(future));
+    }
+
+    private static <T> T get(Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void writeResult(Writer out, String[] row) throws IOException {
+        if (!"OK".equals(row[1])) failed++;
+        processed++;
+        writeRow(out, row);
+    }
+
+    private static String[] toRow(GeocodeResult<String> result) {
+        String[] row = new String[COLUMNS.length];
+        row[0] = result.getInput();
+        GeocodeResponse response = result.getResponse();
+        if (result.getError() != null) {
+            row[1] = "ERROR";
+            row[11] = String.valueOf(result.getError().getMessage());
+        } else if (response == null) {
+            row[1] = "NO_RESULT";
+        } else {
+            row[1] = "OK";
+            LatLng position = response.getPosition();
+            if (position != null) {
+                row[2] = String.valueOf(position.getLatitude());
+                row[3] = String.valueOf(position.getLongitude());
+            }
+            row[4] = response.getBuildingNumber();
+            row[5] = response.getStreet();
+            row[6] = response.getCity();
+            row[7] = response.getCounty();
+            row[8] = response.getState();
+            row[9] = response.getCountryName();
+            row[10] = response.getPostalCode();
+        }
+        return row;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Deduplication
+    // ------------------------------------------------------------------------------
+
+    /**
+     * Geocode a list of address or <code>lat,lng</code> inputs, looking up each canonical key
+     * once. Rows with the same key share the same response instance.
+     *
+     * @param inputs trimmed input lines
+     * @return one result per input, in input order
+     * @throws InterruptedException if interrupted while waiting for lookups
+     */
+    public List<GeocodeResult<String>> geocodeAll(List<String> inputs) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            return geocodeAll(inputs, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<GeocodeResult<String>> geocodeAll(List<String> inputs, ExecutorService executor)
+            throws InterruptedException {
+        Map<String, Integer> slots = new HashMap<String, Integer>();
+        List<Future<GeocodeResult<String>>> lookups = new ArrayList<Future<GeocodeResult<String>>>();
+        int[] slotOf = new int[inputs.size()];
+
+        for (int i = 0; i < inputs.size(); i++) {
+            final String input = inputs.get(i);
+            String key = keyOf(input);
+            Integer slot = slots.get(key);
+            if (slot == null) {
+                slot = lookups.size();
+                slots.put(key, slot);
+                lookups.add(executor.submit(new Callable<GeocodeResult<String>>() {
+                    public GeocodeResult<String> call() {
+                        return lookup(input);
+                    }
+                }));
+            }
+            slotOf[i] = slot;
+        }
+        unique += lookups.size();
+
+        List<GeocodeResult<String>> results = new ArrayList<GeocodeResult<String>>(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            GeocodeResult<String> result = get(lookups.get(slotOf[i]));
+            results.add(new GeocodeResult<String>(inputs.get(i), result.getResponse(), result.getError()));
+        }
+        return results;
+    }
+
+    /**
+     * @param input trimmed input line
+     * @return reverse key if the input is a coordinate, otherwise forward key
+     */
+    static String keyOf(String input) {
+        LatLng position = parseCoordinate(input);
+        return (position != null)
+                ? GeocodeKeys.reverse(position.getLatitude(), position.getLongitude())
+                : GeocodeKeys.forward(input);
+    }
+
+    private void runDeduplicated(BufferedReader reader, Writer out, PrintStream progress,
+                                 ExecutorService executor, long start) throws IOException, InterruptedException {
+        List<String> inputs = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String input = line.trim();
+            if (input.length() == 0) continue;
+            inputs.add(input);
+            if (inputs.size() > spillThreshold) {
+                runSpilled(inputs, reader, out, progress, executor, start);
+                return;
+            }
+        }
+
+        long lastReport = start;
+        for (GeocodeResult<String> result : geocodeAll(inputs, executor)) {
+            writeResult(out, toRow(result));
+            lastReport = reportProgress(progress, start, lastReport, false);
+        }
+        out.flush();
+        reportProgress(progress, start, lastReport, true);
+    }
+
+    /**
+     * External hash deduplication: partition (index, input) records by key, geocode each
+     * partition in memory, then merge the per-partition results, which are each in index
+     * order, back into input order. A partition that still holds more than the spill
+     * threshold is split again, so memory stays bounded however large the input is.
+     */
+    private void runSpilled(List<String> buffered, BufferedReader reader, Writer out, PrintStream progress,
+                            ExecutorService executor, long start) throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory(spillDirectory.toPath(), "geocode-dedup").toFile();
+        DataOutputStream[] partitions = new DataOutputStream[SPILL_PARTITIONS];
+        DataInputStream[] merged = new DataInputStream[SPILL_PARTITIONS];
+        long[] counts = new long[SPILL_PARTITIONS];
+        try {
+            for (int p = 0; p < SPILL_PARTITIONS; p++) partitions[p] = openSpill(new File(dir, "in-" + p));
+            long index = 0;
+            for (String input : buffered) spill(partitions, counts, 0, index++, input);
+            buffered.clear();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String input = line.trim();
+                if (input.length() > 0) spill(partitions, counts, 0, index++, input);
+            }
+            for (int p = 0; p < SPILL_PARTITIONS; p++) {
+                partitions[p].close();
+                partitions[p] = null;
+            }
+
+            for (int p = 0; p < SPILL_PARTITIONS; p++) {
+                geocodePartition(dir, String.valueOf(p), counts[p], 0, executor);
+            }
+
+            PriorityQueue<MergeHead> heads = new PriorityQueue<MergeHead>();
+            for (int p = 0; p < SPILL_PARTITIONS; p++) {
+                merged[p] = openMerge(new File(dir, "out-" + p));
+                MergeHead head = MergeHead.read(merged[p]);
+                if (head != null) heads.add(head);
+            }
+            long lastReport = start;
+            MergeHead head;
+            while ((head = heads.poll()) != null) {
+                writeResult(out, head.row);
+                lastReport = reportProgress(progress, start, lastReport, false);
+                MergeHead next = MergeHead.read(head.in);
+                if (next != null) heads.add(next);
+            }
+            out.flush();
+            reportProgress(progress, start, lastReport, true);
+        } finally {
+            for (DataOutputStream dos : partitions) if (dos != null) closeQuietly(dos);
+            for (DataInputStream dis : merged) if (dis != null) closeQuietly(dis);
+            File[] files = dir.listFiles();
+            if (files != null) for (File f : files) f.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Geocode spill file <code>in-name</code> into <code>out-name</code>, in index order. A
+     * partition over the spill threshold is split by a differently salted key hash and its
+     * parts are geocoded recursively and merged; a split that leaves every record in one part
+     * (a single hot key) is not repeated.
+     */
+    private void geocodePartition(File dir, String name, long count, int depth, ExecutorService executor)
+            throws IOException, InterruptedException {
+        File in = new File(dir, "in-" + name);
+        File out = new File(dir, "out-" + name);
+        if (count > spillThreshold && depth < MAX_SPILL_DEPTH) {
+            DataOutputStream[] parts = new DataOutputStream[SPILL_PARTITIONS];
+            long[] counts = new long[SPILL_PARTITIONS];
+            DataInputStream dis = openMerge(in);
+            try {
+                for (int p = 0; p < SPILL_PARTITIONS; p++) parts[p] = openSpill(new File(dir, "in-" + name + "-" + p));
+                while (true) {
+                    long i;
+                    try {
+                        i = dis.readLong();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    spill(parts, counts, depth + 1, i, readString(dis));
+                }
+                for (int p = 0; p < SPILL_PARTITIONS; p++) {
+                    parts[p].close();
+                    parts[p] = null;
+                }
+            } finally {
+                dis.close();
+                for (DataOutputStream dos : parts) if (dos != null) closeQuietly(dos);
+            }
+            in.delete();
+
+            for (int p = 0; p < SPILL_PARTITIONS; p++) {
+                int next = (counts[p] == count) ? MAX_SPILL_DEPTH : depth + 1;
+                geocodePartition(dir, name + "-" + p, counts[p], next, executor);
+            }
+            DataInputStream[] runs = new DataInputStream[SPILL_PARTITIONS];
+            DataOutputStream dos = openSpill(out);
+            try {
+                PriorityQueue<MergeHead> heads = new PriorityQueue<MergeHead>();
+                for (int p = 0; p < SPILL_PARTITIONS; p++) {
+                    runs[p] = openMerge(new File(dir, "out-" + name + "-" + p));
+                    MergeHead head = MergeHead.read(runs[p]);
+                    if (head != null) heads.add(head);
+                }
+                MergeHead head;
+                while ((head = heads.poll()) != null) {
+                    dos.writeLong(head.index);
+                    for (String value : head.row) writeString(dos, value);
+                    MergeHead next = MergeHead.read(head.in);
+                    if (next != null) heads.add(next);
+                }
+            } finally {
+                dos.close();
+                for (int p = 0; p < SPILL_PARTITIONS; p++) {
+                    if (runs[p] != null) closeQuietly(runs[p]);
+                    new File(dir, "out-" + name + "-" + p).delete();
+                }
+            }
+            return;
+        }
+
+        List<String> inputs = new ArrayList<String>();
+        LongList indices = new LongList();
+        DataInputStream dis = openMerge(in);
+        try {
+            while (true) {
+                long i;
+                try {
+                    i = dis.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                indices.add(i);
+                inputs.add(readString(dis));
+            }
+        } finally {
+            dis.close();
+        }
+        in.delete();
+
+        List<GeocodeResult<String>> results = geocodeAll(inputs, executor);
+        DataOutputStream dos = openSpill(out);
+        try {
+            for (int i = 0; i < results.size(); i++) {
+                dos.writeLong(indices.get(i));
+                for (String value : toRow(results.get(i))) writeString(dos, value);
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    private static void spill(DataOutputStream[] partitions, long[] counts, int depth, long index, String input)
+            throws IOException {
+        int p = partitionOf(keyOf(input), depth);
+        counts[p]++;
+        DataOutputStream dos = partitions[p];
+        dos.writeLong(index);
+        writeString(dos, input);
+    }
+
+    /**
+     * @param key canonical key
+     * @param depth split level; each level salts the hash differently
+     * @return partition in [0, SPILL_PARTITIONS)
+     */
+    static int partitionOf(String key, int depth) {
+        long h = key.hashCode() + depth * 0x9e3779b97f4a7c15L;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (h ^ (h >>> 33)) & (SPILL_PARTITIONS - 1);
+    }
+
+    private static DataOutputStream openSpill(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 16384));
+    }
+
+    private static DataInputStream openMerge(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16384));
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // already failing
+        }
+    }
+
+    /** Length-prefixed UTF-8; unlike writeUTF, not limited to 64K. */
+    private static void writeString(DataOutputStream dos, String value) throws IOException {
+        if (value == null) {
+            dos.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        int length = dis.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Next row of one partition's results during the merge.
+     */
+    private static final class MergeHead implements Comparable<MergeHead> {
+
+        final long index;
+        final String[] row;
+        final DataInputStream in;
+
+        private MergeHead(long index, String[] row, DataInputStream in) {
+            this.index = index;
+            this.row = row;
+            this.in = in;
+        }
+
+        static MergeHead read(DataInputStream in) throws IOException {
+            long index;
+            try {
+                index = in.readLong();
+            } catch (EOFException e) {
+                return null;
+            }
+            String[] row = new String[COLUMNS.length];
+            for (int i = 0; i < row.length; i++) row[i] = readString(in);
+            return new MergeHead(index, row, in);
+        }
+
+        public int compareTo(MergeHead other) {
+            return Long.compare(index, other.index);
+        }
+    }
+
+    /**
+     * Growable list of primitive longs.
+     */
+    private static final class LongList {
+
+        private long[] values = new long[64];
+        private int size = 0;
+
+        void add(long value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        long get(int i) {
+            return values[i];
+        }
+    }
+
+    private void writeRow(Writer out, String[] row) throws IOException {
+        char separator = (format == Format.TSV) ? '\t' : ',';
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) out.write(separator);
+            String value = row[i];
+            if (value == null) continue;
+            if (format == Format.TSV) {
+                out.write(value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+            } else if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                    || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                out.write('"');
+                out.write(value.replace("\"", "\"\""));
+                out.write('"');
+            } else {
+                out.write(value);
+            }
+        }
+        out.write('\n');
+    }
+
+    private long reportProgress(PrintStream progress, long start, long lastReport, boolean last) {
+        if (progress == null || (progressIntervalMillis <= 0 && !last)) return lastReport;
+        long now = System.nanoTime();
+        if (!last && (now - lastReport) < progressIntervalMillis * 1000000L) return lastReport;
+
+        double seconds = (now - start) / 1e9;
+        progress.println(String.format("%s %d records in %.1f s (%.1f/s), %d without result",
+                last ? "Done:" : "Progress:", processed, seconds, seconds > 0 ? processed / seconds : 0.0, failed));
+        return now;
+    }
+}
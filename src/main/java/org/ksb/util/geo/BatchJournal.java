@@ -0,0 +1,396 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of completed batch rows, used to resume a batch after a crash.
+ *
+ * Each record is <code>length, CRC32, index, row</code>. {@link #append(long, String[])}
+ * only copies the record into a buffer; a background thread writes and fsyncs whatever has
+ * accumulated every {@link #getGroupCommitMillis() group commit interval}, so lookups never
+ * wait on the disk. A crash can lose the last interval of records, which are then simply
+ * redone. On open the journal is replayed up to the first torn or corrupt record and
+ * truncated there. Replay keeps only the file offset of each record; rows are read back
+ * from the file when asked for, so resuming a large batch does not load the journal.
+ */
+public class BatchJournal implements Closeable {
+
+    private static final int MAGIC = 0x47334a31; // "G3J1"
+    private static final int HEADER_SIZE = 4;
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long groupCommitMillis;
+    private final OffsetIndex completed;
+    private final Thread flusher;
+
+    // guarded by this
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(8192);
+    private long appended = 0;
+    private long durable = 0;
+    private boolean closed = false;
+    private boolean flushRequested = false;
+    private IOException failure = null;
+
+    private BatchJournal(File file, FileChannel channel, long groupCommitMillis, OffsetIndex completed) {
+        this.file = file;
+        this.channel = channel;
+        this.groupCommitMillis = groupCommitMillis;
+        this.completed = completed;
+        this.flusher = new Thread(new Runnable() {
+            public void run() {
+                flushLoop();
+            }
+        }, "BatchJournal-" + file.getName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Open a journal with a 20ms group commit interval.
+     *
+     * @see #open(File, long)
+     */
+    public static BatchJournal open(File file) throws IOException {
+        return open(file, 20);
+    }
+
+    /**
+     * Open or create a journal, replaying the records already in it.
+     *
+     * @param file journal file
+     * @param groupCommitMillis longest time an appended record waits for its fsync
+     * @return journal, positioned for appending
+     * @throws IOException if the file cannot be read or is not a journal
+     */
+    public static BatchJournal open(File file, long groupCommitMillis) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            OffsetIndex completed = new OffsetIndex();
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(0, MAGIC);
+                channel.truncate(0);
+                channel.write(header, 0);
+                channel.force(true);
+                channel.position(HEADER_SIZE);
+            } else {
+                long end = replay(channel, size, completed);
+                if (end < size) {
+                    channel.truncate(end);
+                    channel.force(true);
+                }
+                channel.position(end);
+            }
+            return new BatchJournal(file, channel, groupCommitMillis, completed);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return offset just past the last intact record
+     */
+    private static long replay(FileChannel channel, long size, OffsetIndex completed) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != MAGIC) throw new IOException("Not a batch journal");
+
+        ByteBuffer prefix = ByteBuffer.allocate(8);
+        CRC32 crc = new CRC32();
+        long offset = HEADER_SIZE;
+        while (offset + 8 <= size) {
+            prefix.clear();
+            readFully(channel, prefix, offset);
+            int length = prefix.getInt(0);
+            int checksum = prefix.getInt(4);
+            if (length < 8 || length > MAX_RECORD || offset + 8 + length > size) break;
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, offset + 8);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) break;
+
+            long index = payload.getLong(0);
+            if (index >= 0) completed.put(index, offset);
+            offset += 8 + length;
+        }
+        return offset;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) throw new IOException("Unexpected end of journal");
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getGroupCommitMillis() {
+        return groupCommitMillis;
+    }
+
+    /**
+     * @return number of rows recovered when the journal was opened
+     */
+    public int getCompletedCount() {
+        return completed.size();
+    }
+
+    /**
+     * Read a row recovered when the journal was opened. Rows appended since are not
+     * returned.
+     *
+     * @param index input index
+     * @return row, or null if none was recovered for the index
+     * @throws IOException on read failure
+     */
+    public String[] getCompleted(long index) throws IOException {
+        long offset = completed.get(index);
+        if (offset < 0) return null;
+        ByteBuffer prefix = ByteBuffer.allocate(8);
+        readFully(channel, prefix, offset);
+        ByteBuffer payload = ByteBuffer.allocate(prefix.getInt(0));
+        readFully(channel, payload, offset + 8);
+        payload.flip();
+        payload.getLong();
+        String[] row = new String[payload.getInt()];
+        for (int i = 0; i < row.length; i++) {
+            int n = payload.getInt();
+            if (n < 0) continue;
+            row[i] = new String(payload.array(), payload.position(), n, StandardCharsets.UTF_8);
+            payload.position(payload.position() + n);
+        }
+        return row;
+    }
+
+    /**
+     * Queue a completed row for the next group commit. Does not wait for the disk.
+     *
+     * @param index input index, not negative
+     * @param row output row
+     * @throws IOException if an earlier group commit failed or the journal is closed
+     */
+    public void append(long index, String[] row) throws IOException {
+        if (index < 0) throw new IllegalArgumentException("index must not be negative");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeLong(0); // length and CRC, filled in below
+        dos.writeLong(index);
+        dos.writeInt(row.length);
+        for (String value : row) {
+            if (value == null) {
+                dos.writeInt(-1);
+            } else {
+                byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                dos.writeInt(utf8.length);
+                dos.write(utf8);
+            }
+        }
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, 8, record.length - 8);
+        ByteBuffer.wrap(record).putInt(0, record.length - 8).putInt(4, (int) crc.getValue());
+
+        synchronized (this) {
+            if (failure != null) throw failure;
+            if (closed) throw new IOException("Journal is closed");
+            boolean wake = pending.size() == 0;
+            pending.write(record, 0, record.length);
+            appended++;
+            // the flusher only sleeps on an empty buffer or its commit deadline
+            if (wake) notifyAll();
+        }
+    }
+
+    /**
+     * Wait until every record appended so far is on disk.
+     *
+     * @throws IOException if a group commit failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void sync() throws IOException, InterruptedException {
+        long target = appended;
+        if (pending.size() > 0) {
+            // commit now rather than at the end of the group commit interval
+            flushRequested = true;
+            notifyAll();
+        }
+        while (durable < target && failure == null) wait();
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Commit outstanding records and close the file.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        synchronized (this) {
+            if (failure != null) throw failure;
+        }
+    }
+
+    private void flushLoop() {
+        ByteArrayOutputStream spare = new ByteArrayOutputStream(8192);
+        while (true) {
+            ByteArrayOutputStream batch;
+            long count;
+            synchronized (this) {
+                try {
+                    while (pending.size() == 0 && !closed) wait();
+                    // let appends accumulate so one fsync covers them
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+                    long remaining;
+                    while (!closed && !flushRequested && (remaining = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                flushRequested = false;
+                if (pending.size() == 0) {
+                    if (closed) return;
+                    continue;
+                }
+                batch = pending;
+                pending = spare;
+                count = appended;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(false);
+                batch.reset();
+                spare = batch;
+                synchronized (this) {
+                    durable = count;
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Open-addressed map from non-negative input index to record offset.
+     */
+    private static final class OffsetIndex {
+
+        private long[] keys = emptyKeys(64);
+        private long[] offsets = new long[64];
+        private int size = 0;
+
+        int size() {
+            return size;
+        }
+
+        /** Later records for an index replace earlier ones. */
+        void put(long key, long offset) {
+            if (size * 2 >= keys.length) grow();
+            int slot = slot(keys, key);
+            if (keys[slot] < 0) {
+                keys[slot] = key;
+                size++;
+            }
+            offsets[slot] = offset;
+        }
+
+        /** @return offset, or -1 if absent */
+        long get(long key) {
+            int slot = slot(keys, key);
+            return (keys[slot] < 0) ? -1 : offsets[slot];
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldOffsets = offsets;
+            keys = emptyKeys(oldKeys.length * 2);
+            offsets = new long[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] < 0) continue;
+                int slot = slot(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                offsets[slot] = oldOffsets[i];
+            }
+        }
+
+        private static int slot(long[] keys, long key) {
+            int mask = keys.length - 1;
+            int i = (int) ((key * 0x9e3779b97f4a7c15L) >>> 40) & mask;
+            while (keys[i] >= 0 && keys[i] != key) i = (i + 1) & mask;
+            return i;
+        }
+
+        private static long[] emptyKeys(int length) {
+            long[] keys = new long[length];
+            Arrays.fill(keys, -1L);
+            return keys;
+        }
+    }
+}
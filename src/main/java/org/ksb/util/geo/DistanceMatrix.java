@@ -0,0 +1,358 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Distances between every row point and every column point, as computed by
+ * {@link LatLng#distanceTo(LatLng)}.
+ *
+ * The sines and cosines each pair needs are derived from per-point terms computed once, so a
+ * pair costs one square root and one asin. Rows are split across a fork/join pool; each
+ * task walks its rows against one tile of columns at a time, so the tile's terms stay in
+ * cache while every row in the task uses them.
+ *
+ * Results are row-major: the distance from row i to column j is at
+ * <code>i * columns + j</code>, in meters.
+ */
+public class DistanceMatrix {
+
+    /** Squared eccentricity of the squashed sphere LatLng uses. */
+    private static final double E2 = 1 - LatLng.square(LatLng.GLOBE_RADIUS_POLES / LatLng.GLOBE_RADIUS_EQUATOR);
+
+    private static final double RADIUS = LatLng.GLOBE_RADIUS_EQUATOR * Math.sqrt(1 - E2);
+
+    /** Per-point terms: sin and cos of half latitude, of half longitude and of latitude. */
+    private static final int STRIDE = 6;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int rowTile = 64;
+    private int columnTile = 512;
+
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be at least 1");
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param rows rows per fork/join task
+     * @param columns columns whose terms are reused across a task's rows before moving on
+     */
+    public void setTileSize(int rows, int columns) {
+        if (rows < 1 || columns < 1) throw new IllegalArgumentException("tile sizes must be at least 1");
+        this.rowTile = rows;
+        this.columnTile = columns;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Full matrix
+    // ------------------------------------------------------------------------------
+
+    /**
+     * @return rows.size() x columns.size() distances in meters
+     */
+    public double[] distances(List<LatLng> rows, List<LatLng> columns) {
+        double[] out = new double[rows.size() * columns.size()];
+        distances(coordinates(rows), coordinates(columns), out);
+        return out;
+    }
+
+    /**
+     * @param rows <code>{lat0, lng0, lat1, lng1, ...}</code>
+     * @param columns <code>{lat0, lng0, lat1, lng1, ...}</code>
+     * @param out receives the distances; at least rows x columns long
+     */
+    public void distances(double[] rows, double[] columns, double[] out) {
+        run(rows, columns, out, null, null, 0);
+    }
+
+    /**
+     * Single precision variant of {@link #distances(double[], double[], double[])}, for
+     * matrices too large to hold as doubles.
+     */
+    public void distances(double[] rows, double[] columns, float[] out) {
+        run(rows, columns, out, null, null, 0);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Nearest columns
+    // ------------------------------------------------------------------------------
+
+    /**
+     * The k nearest columns of each row, without materializing the matrix.
+     *
+     * @param k columns to keep per row; fewer if there are fewer columns
+     */
+    public Nearest nearest(List<LatLng> rows, List<LatLng> columns, int k) {
+        return nearest(coordinates(rows), coordinates(columns), k);
+    }
+
+    /**
+     * @param rows <code>{lat0, lng0, lat1, lng1, ...}</code>
+     * @param columns <code>{lat0, lng0, lat1, lng1, ...}</code>
+     * @param k columns to keep per row; fewer if there are fewer columns
+     */
+    public Nearest nearest(double[] rows, double[] columns, int k) {
+        if (k < 1) throw new IllegalArgumentException("k must be at least 1");
+        k = Math.min(k, columns.length / 2);
+        int[] indexes = new int[rows.length / 2 * k];
+        double[] distances = new double[indexes.length];
+        if (k > 0) run(rows, columns, null, indexes, distances, k);
+        return new Nearest(k, indexes, distances);
+    }
+
+    /**
+     * Nearest columns per row, each row sorted by ascending distance.
+     */
+    public static class Nearest {
+        private final int k;
+        private final int[] indexes;
+        private final double[] distances;
+
+        Nearest(int k, int[] indexes, double[] distances) {
+            this.k = k;
+            this.indexes = indexes;
+            this.distances = distances;
+        }
+
+        /** @return columns kept per row */
+        public int getK() {
+            return k;
+        }
+
+        /** @return column index of the rank'th nearest column to row, 0 being the nearest */
+        public int getIndex(int row, int rank) {
+            return indexes[row * k + rank];
+        }
+
+        /** @return distance to the rank'th nearest column of row, in meters */
+        public double getDistance(int row, int rank) {
+            return distances[row * k + rank];
+        }
+
+        /** @return column indexes, k per row */
+        public int[] getIndexes() {
+            return indexes;
+        }
+
+        /** @return distances, k per row */
+        public double[] getDistances() {
+            return distances;
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Computation
+    // ------------------------------------------------------------------------------
+
+    private void run(double[] rows, double[] columns, Object out, int[] indexes, double[] nearest, int k) {
+        int rowCount = rows.length / 2, columnCount = columns.length / 2;
+        if (out != null) {
+            int length = (out instanceof double[]) ? ((double[]) out).length : ((float[]) out).length;
+            if (length < (long) rowCount * columnCount)
+                throw new IllegalArgumentException("out holds " + length + " of " + (long) rowCount * columnCount + " distances");
+        }
+        Tile task = new Tile(terms(rows), terms(columns), columnCount, out, indexes, nearest, k, 0, rowCount);
+        if (parallelism == 1 || rowCount <= rowTile) {
+            task.compute();
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(task);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private final class Tile extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double[] rowTerms, columnTerms;
+        private final int columnCount;
+        private final Object out;
+        private final int[] indexes;
+        private final double[] nearest;
+        private final int k;
+        private final int from, to;
+
+        Tile(double[] rowTerms, double[] columnTerms, int columnCount, Object out,
+             int[] indexes, double[] nearest, int k, int from, int to) {
+            this.rowTerms = rowTerms;
+            this.columnTerms = columnTerms;
+            this.columnCount = columnCount;
+            this.out = out;
+            this.indexes = indexes;
+            this.nearest = nearest;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > rowTile) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Tile(rowTerms, columnTerms, columnCount, out, indexes, nearest, k, from, middle),
+                          new Tile(rowTerms, columnTerms, columnCount, out, indexes, nearest, k, middle, to));
+                return;
+            }
+            double[] doubles = (out instanceof double[]) ? (double[]) out : null;
+            float[] floats = (out instanceof float[]) ? (float[]) out : null;
+            int[] filled = (k > 0) ? new int[to - from] : null;
+
+            for (int columnStart = 0; columnStart < columnCount; columnStart += columnTile) {
+                int columnEnd = Math.min(columnCount, columnStart + columnTile);
+                for (int i = from; i < to; i++) {
+                    int r = i * STRIDE;
+                    double sinHalfLat = rowTerms[r], cosHalfLat = rowTerms[r + 1];
+                    double sinHalfLng = rowTerms[r + 2], cosHalfLng = rowTerms[r + 3];
+                    double sinLat = rowTerms[r + 4], cosLat = rowTerms[r + 5];
+                    long base = (long) i * columnCount;
+
+                    for (int j = columnStart; j < columnEnd; j++) {
+                        int c = j * STRIDE;
+                        // sin((lat2 - lat1) / 2) and sin((lng2 - lng1) / 2) by angle difference
+                        double sinDLat = columnTerms[c] * cosHalfLat - columnTerms[c + 1] * sinHalfLat;
+                        double sinDLng = columnTerms[c + 2] * cosHalfLng - columnTerms[c + 3] * sinHalfLng;
+                        double cosProduct = cosLat * columnTerms[c + 5];
+                        double a = sinDLat * sinDLat + cosProduct * sinDLng * sinDLng;
+                        // same angle as distanceTo's atan2(sqrt(a), sqrt(1 - a)), at a third of the cost
+                        double angle = 2 * Math.asin(Math.sqrt(Math.min(a, 1)));
+                        // sin^2 of the mean latitude, from cos(lat1 + lat2)
+                        double sinMean2 = (1 - (cosProduct - sinLat * columnTerms[c + 4])) / 2;
+                        double distance = RADIUS / (1 - E2 * sinMean2) * angle;
+
+                        if (doubles != null) {
+                            doubles[(int) (base + j)] = distance;
+                        } else if (floats != null) {
+                            floats[(int) (base + j)] = (float) distance;
+                        } else {
+                            filled[i - from] = offer(i * k, filled[i - from], j, distance);
+                        }
+                    }
+                }
+            }
+            if (k > 0) {
+                for (int i = from; i < to; i++) sortHeap(i * k);
+            }
+        }
+
+        /**
+         * Add a column to a row's max-heap of its k nearest.
+         *
+         * @return number of entries in the heap
+         */
+        private int offer(int heap, int size, int column, double distance) {
+            if (size < k) {
+                int child = size;
+                while (child > 0) {
+                    int parent = (child - 1) >>> 1;
+                    if (nearest[heap + parent] >= distance) break;
+                    nearest[heap + child] = nearest[heap + parent];
+                    indexes[heap + child] = indexes[heap + parent];
+                    child = parent;
+                }
+                nearest[heap + child] = distance;
+                indexes[heap + child] = column;
+                return size + 1;
+            }
+            if (distance < nearest[heap]) siftDown(heap, k, column, distance);
+            return size;
+        }
+
+        /**
+         * Place an entry at the root of a heap of the given size and restore heap order.
+         */
+        private void siftDown(int heap, int size, int column, double distance) {
+            int parent = 0;
+            while (true) {
+                int child = 2 * parent + 1;
+                if (child >= size) break;
+                if (child + 1 < size && nearest[heap + child + 1] > nearest[heap + child]) child++;
+                if (nearest[heap + child] <= distance) break;
+                nearest[heap + parent] = nearest[heap + child];
+                indexes[heap + parent] = indexes[heap + child];
+                parent = child;
+            }
+            nearest[heap + parent] = distance;
+            indexes[heap + parent] = column;
+        }
+
+        /**
+         * Heap sort a full max-heap in place into ascending order.
+         */
+        private void sortHeap(int heap) {
+            for (int size = k - 1; size > 0; size--) {
+                double distance = nearest[heap + size];
+                int column = indexes[heap + size];
+                nearest[heap + size] = nearest[heap];
+                indexes[heap + size] = indexes[heap];
+                siftDown(heap, size, column, distance);
+            }
+        }
+    }
+
+    /**
+     * @return {@link #STRIDE} terms per point
+     */
+    static double[] terms(double[] coords) {
+        int count = coords.length / 2;
+        double[] terms = new double[count * STRIDE];
+        for (int i = 0; i < count; i++) {
+            double lat = LatLng.radians(coords[2 * i]), lng = LatLng.radians(coords[2 * i + 1]);
+            int t = i * STRIDE;
+            terms[t] = Math.sin(lat / 2);
+            terms[t + 1] = Math.cos(lat / 2);
+            terms[t + 2] = Math.sin(lng / 2);
+            terms[t + 3] = Math.cos(lng / 2);
+            terms[t + 4] = Math.sin(lat);
+            terms[t + 5] = Math.cos(lat);
+        }
+        return terms;
+    }
+
+    private static double[] coordinates(List<LatLng> points) {
+        double[] coords = new double[points.size() * 2];
+        for (int i = 0; i < points.size(); i++) {
+            coords[2 * i] = points.get(i).getLatitude();
+            coords[2 * i + 1] = points.get(i).getLongitude();
+        }
+        return coords;
+    }
+}
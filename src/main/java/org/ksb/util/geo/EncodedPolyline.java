@@ -0,0 +1,158 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.List;
+
+/**
+ * Google encoded polyline format. Decoding produces one flat array of interleaved
+ * latitude/longitude pairs rather than a LatLng per point.
+ *
+ * @see <a href="https://developers.google.com/maps/documentation/utilities/polylinealgorithm">Encoded Polyline Algorithm Format</a>
+ */
+public final class EncodedPolyline {
+
+    /** Decimal places of the standard format. */
+    public static final int DEFAULT_PRECISION = 5;
+
+    private static final double[] FACTORS = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9 };
+
+    private EncodedPolyline() {
+    }
+
+    /**
+     * @param encoded polyline at the standard precision
+     * @return <code>{lat0, lng0, lat1, lng1, ...}</code>
+     * @throws IllegalArgumentException if the text is not a valid polyline
+     */
+    public static double[] decode(CharSequence encoded) {
+        return decode(encoded, DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param encoded polyline
+     * @param precision decimal places the polyline was encoded with, 5 for Google's format
+     *                  and 6 for some routing engines
+     * @return <code>{lat0, lng0, lat1, lng1, ...}</code>
+     * @throws IllegalArgumentException if the text is not a valid polyline
+     */
+    public static double[] decode(CharSequence encoded, int precision) {
+        double factor = factor(precision);
+        int length = encoded.length();
+
+        // each value ends in the one character without the continuation bit
+        int values = 0;
+        for (int i = 0; i < length; i++) {
+            int b = encoded.charAt(i) - 63;
+            if (b < 0 || b > 63) throw new IllegalArgumentException("Invalid polyline character at " + i);
+            if (b < 0x20) values++;
+        }
+        if (values % 2 != 0 || (length > 0 && encoded.charAt(length - 1) - 63 >= 0x20))
+            throw new IllegalArgumentException("Truncated polyline");
+
+        double[] coords = new double[values];
+        long lat = 0, lng = 0;
+        int i = 0;
+        for (int k = 0; k < values; k += 2) {
+            long result = 0;
+            int shift = 0, b;
+            do {
+                b = encoded.charAt(i++) - 63;
+                result |= (long) (b & 0x1f) << shift;
+                shift += 5;
+            } while (b >= 0x20 && shift < 60);
+            if (b >= 0x20) throw new IllegalArgumentException("Polyline value too large at " + i);
+            lat += ((result & 1) != 0) ? ~(result >> 1) : (result >> 1);
+
+            result = 0;
+            shift = 0;
+            do {
+                b = encoded.charAt(i++) - 63;
+                result |= (long) (b & 0x1f) << shift;
+                shift += 5;
+            } while (b >= 0x20 && shift < 60);
+            lng += ((result & 1) != 0) ? ~(result >> 1) : (result >> 1);
+
+            if (b >= 0x20) throw new IllegalArgumentException("Polyline value too large at " + i);
+            coords[k] = lat / factor;
+            coords[k + 1] = lng / factor;
+        }
+        return coords;
+    }
+
+    /**
+     * @param points route points
+     * @return polyline at the standard precision
+     */
+    public static String encode(List<LatLng> points) {
+        double[] coords = new double[points.size() * 2];
+        for (int i = 0; i < points.size(); i++) {
+            coords[2 * i] = points.get(i).getLatitude();
+            coords[2 * i + 1] = points.get(i).getLongitude();
+        }
+        return encode(coords, DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param coords <code>{lat0, lng0, lat1, lng1, ...}</code>
+     * @param precision decimal places to keep
+     * @return polyline
+     */
+    public static String encode(double[] coords, int precision) {
+        double factor = factor(precision);
+        StringBuilder strb = new StringBuilder(coords.length * 4);
+        long previous0 = 0, previous1 = 0;
+        for (int k = 0; k + 1 < coords.length; k += 2) {
+            long value0 = Math.round(coords[k] * factor);
+            long value1 = Math.round(coords[k + 1] * factor);
+            encodeValue(strb, value0 - previous0);
+            encodeValue(strb, value1 - previous1);
+            previous0 = value0;
+            previous1 = value1;
+        }
+        return strb.toString();
+    }
+
+    private static void encodeValue(StringBuilder strb, long delta) {
+        long value = (delta < 0) ? ~(delta << 1) : (delta << 1);
+        while (value >= 0x20) {
+            strb.append((char) ((0x20 | (value & 0x1f)) + 63));
+            value >>= 5;
+        }
+        strb.append((char) (value + 63));
+    }
+
+    private static double factor(int precision) {
+        if (precision < 0 || precision > 9)
+            throw new IllegalArgumentException("precision must be in [0, 9]: " + precision);
+        return FACTORS[precision];
+    }
+}
@@ -33,27 +33,106 @@ package org.ksb.util.geo;
 
 
 import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
 
 import javax.xml.transform.*;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.Properties;
 
+/**
+ * Google V3 geocoder.
+ *
+ * Instances created with <code>new G3Geocoder()</code> are configured through setters and are
+ * meant to be confined to one thread while being configured. Instances created with
+ * {@link #builder()} are immutable: every setter throws UnsupportedOperationException, and one
+ * instance can serve every thread in the JVM. All request paths are thread-safe given a fixed
+ * configuration; the signer keeps a Mac per thread, the compiled stylesheet is shared, and the
+ * HTTP transport pools connections JVM-wide. The public underscore fields are kept for source
+ * compatibility and only configure instances created with <code>new G3Geocoder()</code>; a
+ * built instance holds its configuration in final fields and ignores them.
+ */
 public class G3Geocoder implements IGeocoder {
 
     public static final int RETRIES = 4;
     public static final int PAUSE = 300;
+    public static final int WARM_UP_ITERATIONS = 2000;
+    private static final int WARM_UP_CONNECTIONS = 3;
+
+    /** Response used when the client-side quota ledger refuses a request. */
+    public static final String QUOTA_EXCEEDED_RESPONSE =
+            "<GeocodeResponse><status>OVER_QUERY_LIMIT</status></GeocodeResponse>";
+    private static final ResponseBuffer QUOTA_EXCEEDED_BUFFER = ResponseBuffer.of(QUOTA_EXCEEDED_RESPONSE);
+
+    /** Fields decoded by the single-result lookups; shared, never modified. */
+    private static final EnumSet<GeocodeField> ALL_FIELDS = GeocodeField.all();
 
     public String       _baseURL = "http://maps.googleapis.com/maps/api/geocode";
     public String       _dataType = "xml";
     public String       _clientID = null;
     public String       _signingKey = null;
     public G3UrlSigner  _requestSigner = null;
+    public G3GeocoderMetrics _metrics = new G3GeocoderMetrics();
+    public boolean      _compression = true;
+    public NegativeGeocodeCache _negativeCache = null;
+    public G3QuotaLedger _quotaLedger = null;
+    public GeocodeResponseCache _responseCache = null;
+    public AdaptiveConcurrencyLimiter _concurrencyLimiter = null;
+    public GeocodePriority _priority = GeocodePriority.INTERACTIVE;
+    public G3HttpTransport _transport = null;
+
+    private static volatile Templates propertiesTemplates = null;
+
+    // permit acquired asynchronously for the fetch an async call is about to make on this thread
+    private static final ThreadLocal<AdaptiveConcurrencyLimiter.Permit> HELD_PERMIT =
+            new ThreadLocal<AdaptiveConcurrencyLimiter.Permit>();
+
+    // configuration of a built instance; null for new G3Geocoder(), which uses the fields above
+    private final Config config;
 
     public G3Geocoder() {
         super();
+        config = null;
+    }
+
+    private G3Geocoder(Builder builder, G3GeocoderMetrics metrics) {
+        super();
+        config = new Config(builder, metrics);
+    }
+
+    /**
+     * @return builder for an immutable geocoder that can be shared across threads
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return true if built by {@link Builder}; setters then throw UnsupportedOperationException
+     */
+    public boolean isImmutable() {
+        return config != null;
+    }
+
+    private void checkMutable() {
+        if (config != null) throw new UnsupportedOperationException("G3Geocoder built by G3Geocoder.Builder is immutable");
     }
 
     // ------------------------------------------------------------------------------
@@ -61,14 +140,16 @@ public class G3Geocoder implements IGeocoder {
     // ------------------------------------------------------------------------------
 
     public void setBaseURL(String str) {
+        checkMutable();
         _baseURL = str;
     }
 
     public String getBaseURL() {
-        return _baseURL;
+        return (config != null) ? config.baseURL : _baseURL;
     }
 
     public void setDataType(String str) {
+        checkMutable();
         if ("xml".equalsIgnoreCase(str)) {
             _dataType = "xml";
         } else if ("json".equalsIgnoreCase(str)) {
@@ -79,19 +160,25 @@ public class G3Geocoder implements IGeocoder {
     }
 
     public String getDataType() {
-        return _dataType;
+        return (config != null) ? config.dataType : _dataType;
     }
 
 
-    public String getGoogleMapsGeocodeUrl()     { return _baseURL; }
-    public String getGoogleClientID()           { return _clientID; }
-    public String getGoogleSigningKey()         { return _signingKey; }
+    public String getGoogleMapsGeocodeUrl()     { return getBaseURL(); }
+    public String getGoogleClientID()           { return (config != null) ? config.clientID : _clientID; }
+    public String getGoogleSigningKey()         { return (config != null) ? config.signingKey : _signingKey; }
+
+    G3UrlSigner getRequestSigner() {
+        return (config != null) ? config.requestSigner : _requestSigner;
+    }
 
     public void setGoogleMapsGeocodeUrl(String url) {
+        checkMutable();
         _baseURL = url;
     }
 
     public void setGoogleClientID(String id) {
+        checkMutable();
         _clientID = id;
     }
 
@@ -103,6 +190,7 @@ public class G3Geocoder implements IGeocoder {
      * @param key
      */
     public void setGoogleSigningKey(String key) {
+        checkMutable();
         if (key != null) {
             try {
                 _requestSigner = new G3UrlSigner(key);
@@ -115,6 +203,133 @@ public class G3Geocoder implements IGeocoder {
         }
     }
 
+    /**
+     * Stage latency and status metrics. Instances may share a single metrics object
+     * to aggregate across geocoders.
+     *
+     * @return metrics, never null
+     */
+    public G3GeocoderMetrics getMetrics() {
+        return (config != null) ? config.metrics : _metrics;
+    }
+
+    public void setMetrics(G3GeocoderMetrics metrics) {
+        checkMutable();
+        if (metrics == null) throw new NullPointerException();
+        _metrics = metrics;
+    }
+
+    /**
+     * When enabled (the default), requests advertise gzip and deflate and compressed
+     * responses are inflated as they are read.
+     *
+     * @param compression true to negotiate compression
+     */
+    public void setCompression(boolean compression) {
+        checkMutable();
+        _compression = compression;
+    }
+
+    public boolean isCompression() {
+        return (config != null) ? config.compression : _compression;
+    }
+
+    /**
+     * Inputs answered with a cached non-OK status are remembered and not re-sent; later
+     * lookups of them return null (or empty results) without a network call.
+     *
+     * @param cache negative cache, or null to disable
+     */
+    public void setNegativeCache(NegativeGeocodeCache cache) {
+        checkMutable();
+        _negativeCache = cache;
+    }
+
+    public NegativeGeocodeCache getNegativeCache() {
+        return (config != null) ? config.negativeCache : _negativeCache;
+    }
+
+    /**
+     * Host-wide quota consulted before every request, including retries. A request the
+     * ledger refuses is not sent and is answered as OVER_QUERY_LIMIT.
+     *
+     * @param ledger quota ledger, or null for no client-side quota
+     */
+    public void setQuotaLedger(G3QuotaLedger ledger) {
+        checkMutable();
+        _quotaLedger = ledger;
+    }
+
+    public G3QuotaLedger getQuotaLedger() {
+        return (config != null) ? config.quotaLedger : _quotaLedger;
+    }
+
+    /**
+     * Cache consulted by {@link #getForwardGeocode(String)} and
+     * {@link #getReverseGeocode(double, double)}. Responses from a cache are immutable.
+     *
+     * @param cache response cache, or null to disable
+     */
+    public void setResponseCache(GeocodeResponseCache cache) {
+        checkMutable();
+        _responseCache = cache;
+    }
+
+    public GeocodeResponseCache getResponseCache() {
+        return (config != null) ? config.responseCache : _responseCache;
+    }
+
+    /**
+     * Adaptive limit on in-flight fetches. Blocking callers over the limit wait up to the
+     * limiter's maximum wait and then fail with RejectedExecutionException; async callers
+     * queue without holding a thread.
+     *
+     * @param limiter concurrency limiter, or null for no limit
+     */
+    public void setConcurrencyLimiter(AdaptiveConcurrencyLimiter limiter) {
+        checkMutable();
+        _concurrencyLimiter = limiter;
+    }
+
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return (config != null) ? config.concurrencyLimiter : _concurrencyLimiter;
+    }
+
+    /**
+     * Lane this geocoder's fetches queue in at the concurrency limiter. Use a separate
+     * BULK geocoder sharing the limiter for batch work.
+     *
+     * @param priority limiter lane; default INTERACTIVE
+     */
+    public void setPriority(GeocodePriority priority) {
+        checkMutable();
+        if (priority == null) throw new IllegalArgumentException("priority must not be null");
+        _priority = priority;
+    }
+
+    public GeocodePriority getPriority() {
+        return (config != null) ? config.priority : _priority;
+    }
+
+    /**
+     * Non-blocking transport for {@link #getForwardGeocodeAsync(String)} and
+     * {@link #getReverseGeocodeAsync(double, double)}.
+     *
+     * @param transport transport, or null for the shared default
+     */
+    public void setTransport(G3HttpTransport transport) {
+        checkMutable();
+        _transport = transport;
+    }
+
+    /**
+     * @return transport used by the non-blocking async calls
+     */
+    public G3HttpTransport getTransport() {
+        G3HttpTransport transport = (config != null) ? config.transport : _transport;
+        return (transport != null) ? transport : G3HttpTransport.getShared();
+    }
+
 
     // ------------------------------------------------------------------------------
     // IForwardGeocoder interface methods
@@ -134,16 +349,103 @@ public class G3Geocoder implements IGeocoder {
      * @throws Exception
      */
     public GeocodeResponse getForwardGeocode(String address) throws Exception {
+        GeocodeResponseCache cache = getResponseCache();
+        if (cache == null) return getForwardGeocode(address, ALL_FIELDS);
+
+        G3GeocoderEvents.Geocode event = new G3GeocoderEvents.Geocode();
+        event.begin();
+        String key = GeocodeKeys.forward(address);
+        GeocodeResponse gr = cache.get(key);
+        if (gr == null) {
+            gr = getForwardGeocode(address, ALL_FIELDS);
+            if (gr != null) gr = cache.put(key, gr);
+        } else {
+            event.complete(true, G3Status.OK, G3GeocoderEvents.CACHE_RESPONSE);
+        }
+        return gr;
+    }
 
-        String urlRequest   = buildForwardGeocodeRequest(address);
-        String urlResponse  = fetchUrlRequest(urlRequest);
+    /**
+     * Forward geocode decoding only the requested fields of the first result, e.g.
+     * <code>EnumSet.of(GeocodeField.POSITION)</code> for a coordinate-only lookup. Fields not
+     * requested are left null.
+     *
+     * @param address String
+     * @param fields fields to decode
+     * @return GeocodeResponse, or null on an invalid service response
+     * @throws Exception
+     */
+    public GeocodeResponse getForwardGeocode(String address, EnumSet<GeocodeField> fields) throws Exception {
+        G3GeocoderMetrics metrics = getMetrics();
+        NegativeGeocodeCache negativeCache = getNegativeCache();
+        String key = (negativeCache != null) ? GeocodeKeys.forward(address) : null;
+        G3GeocoderEvents.Geocode event = new G3GeocoderEvents.Geocode();
+        event.begin();
+        G3Status known = knownNegative(negativeCache, key);
+        if (known != null) {
+            event.complete(true, known, G3GeocoderEvents.CACHE_NEGATIVE);
+            return null;
+        }
 
-        if (!testStatus(urlResponse)) return null;
+        long start = System.nanoTime();
+        ResponseBuffer urlResponse = null;
+        try {
+            String urlRequest   = buildForwardGeocodeRequest(address);
+            urlResponse         = fetchResponse(urlRequest);
+
+            G3Status status = G3Status.fromResponse(urlResponse);
+            GeocodeResponse gr = (status == G3Status.OK) ? toResponse(urlResponse, null, fields) : null;
+            metrics.recordRequest(status, start);
+            if (negativeCache != null) negativeCache.record(key, status);
+            event.complete(true, status, G3GeocoderEvents.CACHE_NONE);
+            return gr;
+        } catch (Exception e) {
+            metrics.recordError();
+            event.complete(true, null, G3GeocoderEvents.CACHE_NONE);
+            throw e;
+        } finally {
+            if (urlResponse != null) urlResponse.release();
+        }
+    }
 
-        Properties p = xmlToProperties(urlResponse);
-        GeocodeResponse gr = buildGeocodeResponse(p);
+    /**
+     * Returns every result of a forward geocode, in service order. Only the first result is
+     * decoded up front; the rest are decoded on access.
+     *
+     * @param address String
+     * @return GeocodeResults, empty (with the service status) if the lookup was not successful
+     * @throws Exception
+     */
+    public GeocodeResults getForwardGeocodeResults(String address) throws Exception {
+        G3GeocoderMetrics metrics = getMetrics();
+        NegativeGeocodeCache negativeCache = getNegativeCache();
+        String key = (negativeCache != null) ? GeocodeKeys.forward(address) : null;
+        G3GeocoderEvents.Geocode event = new G3GeocoderEvents.Geocode();
+        event.begin();
+        G3Status known = knownNegative(negativeCache, key);
+        if (known != null) {
+            event.complete(true, known, G3GeocoderEvents.CACHE_NEGATIVE);
+            return GeocodeResults.empty(known);
+        }
 
-        return gr;
+        long start = System.nanoTime();
+        ResponseBuffer urlResponse = null;
+        try {
+            String urlRequest   = buildForwardGeocodeRequest(address);
+            urlResponse         = fetchResponse(urlRequest);
+
+            GeocodeResults results = toResults(urlResponse, null);
+            metrics.recordRequest(results.getStatus(), start);
+            if (negativeCache != null) negativeCache.record(key, results.getStatus());
+            event.complete(true, results.getStatus(), G3GeocoderEvents.CACHE_NONE);
+            return results;
+        } catch (Exception e) {
+            metrics.recordError();
+            event.complete(true, null, G3GeocoderEvents.CACHE_NONE);
+            throw e;
+        } finally {
+            if (urlResponse != null) urlResponse.release();
+        }
     }
 
     // ------------------------------------------------------------------------------
@@ -172,25 +474,525 @@ public class G3Geocoder implements IGeocoder {
      * @return <code>GeocodeResponse</code> A response object stuffed with Geocoding information
      */
     public GeocodeResponse getReverseGeocode(double lat, double lng) throws Exception {
+        GeocodeResponseCache cache = getResponseCache();
+        if (cache == null) return getReverseGeocode(lat, lng, ALL_FIELDS);
+
+        G3GeocoderEvents.Geocode event = new G3GeocoderEvents.Geocode();
+        event.begin();
+        String key = GeocodeKeys.reverse(lat, lng);
+        GeocodeResponse gr = cache.get(key);
+        if (gr == null) {
+            gr = getReverseGeocode(lat, lng, ALL_FIELDS);
+            if (gr != null) gr = cache.put(key, gr);
+        } else {
+            event.complete(false, G3Status.OK, G3GeocoderEvents.CACHE_RESPONSE);
+        }
+        return gr;
+    }
 
-        String urlRequest = buildReverseGeocodeRequest(lat,lng);
-        String urlResponse = fetchUrlRequest(urlRequest);
+    /**
+     * Reverse geocode decoding only the requested fields of the first result, e.g.
+     * <code>EnumSet.of(GeocodeField.POSTAL_CODE, GeocodeField.COUNTRY)</code>. Fields not
+     * requested are left null.
+     *
+     * @param lat Latitude of the position
+     * @param lng Longitude of the position
+     * @param fields fields to decode
+     * @return GeocodeResponse, or null on an invalid service response
+     * @throws Exception
+     */
+    public GeocodeResponse getReverseGeocode(double lat, double lng, EnumSet<GeocodeField> fields) throws Exception {
+        G3GeocoderMetrics metrics = getMetrics();
+        NegativeGeocodeCache negativeCache = getNegativeCache();
+        String key = (negativeCache != null) ? GeocodeKeys.reverse(lat, lng) : null;
+        G3GeocoderEvents.Geocode event = new G3GeocoderEvents.Geocode();
+        event.begin();
+        G3Status known = knownNegative(negativeCache, key);
+        if (known != null) {
+            event.complete(false, known, G3GeocoderEvents.CACHE_NEGATIVE);
+            return null;
+        }
 
-        // should this throw?
-        // check existing behavior
-        if (!testStatus(urlResponse)) return null;
+        long start = System.nanoTime();
+        ResponseBuffer urlResponse = null;
+        try {
+            String urlRequest = buildReverseGeocodeRequest(lat,lng);
+            urlResponse = fetchResponse(urlRequest);
+
+            G3Status status = G3Status.fromResponse(urlResponse);
+            GeocodeResponse gr = (status == G3Status.OK) ? toResponse(urlResponse, new LatLng(lat, lng), fields) : null;
+            metrics.recordRequest(status, start);
+            if (negativeCache != null) negativeCache.record(key, status);
+            event.complete(false, status, G3GeocoderEvents.CACHE_NONE);
+            return gr;
+        } catch (Exception e) {
+            metrics.recordError();
+            event.complete(false, null, G3GeocoderEvents.CACHE_NONE);
+            throw e;
+        } finally {
+            if (urlResponse != null) urlResponse.release();
+        }
+    }
 
-        Properties p = xmlToProperties(urlResponse);
-        GeocodeResponse gr = buildGeocodeResponse(p);
+    /**
+     * Returns every result of a reverse geocode, from most to least specific. Only the first
+     * result is decoded up front; the rest are decoded on access. Results without a location
+     * are given the requested position.
+     *
+     * @param lat Latitude of the position
+     * @param lng Longitude of the position
+     * @return GeocodeResults, empty (with the service status) if the lookup was not successful
+     * @throws Exception
+     */
+    public GeocodeResults getReverseGeocodeResults(double lat, double lng) throws Exception {
+        G3GeocoderMetrics metrics = getMetrics();
+        NegativeGeocodeCache negativeCache = getNegativeCache();
+        String key = (negativeCache != null) ? GeocodeKeys.reverse(lat, lng) : null;
+        G3GeocoderEvents.Geocode event = new G3GeocoderEvents.Geocode();
+        event.begin();
+        G3Status known = knownNegative(negativeCache, key);
+        if (known != null) {
+            event.complete(false, known, G3GeocoderEvents.CACHE_NEGATIVE);
+            return GeocodeResults.empty(known);
+        }
 
-        LatLng pos = gr.getPosition();
-        if (pos.getLatitude() == 0.0) {
-            gr.setPosition(new LatLng(lat,lng));
+        long start = System.nanoTime();
+        ResponseBuffer urlResponse = null;
+        try {
+            String urlRequest = buildReverseGeocodeRequest(lat,lng);
+            urlResponse = fetchResponse(urlRequest);
+
+            GeocodeResults results = toResults(urlResponse, new LatLng(lat, lng));
+            metrics.recordRequest(results.getStatus(), start);
+            if (negativeCache != null) negativeCache.record(key, results.getStatus());
+            event.complete(false, results.getStatus(), G3GeocoderEvents.CACHE_NONE);
+            return results;
+        } catch (Exception e) {
+            metrics.recordError();
+            event.complete(false, null, G3GeocoderEvents.CACHE_NONE);
+            throw e;
+        } finally {
+            if (urlResponse != null) urlResponse.release();
         }
-        return gr;
     }
 
 
+    // ------------------------------------------------------------------------------
+    // Async
+    // ------------------------------------------------------------------------------
+
+    /**
+     * Forward geocode on an executor. With a concurrency limiter set, the call waits for its
+     * permit in the limiter's queue without occupying an executor thread.
+     *
+     * @param address String
+     * @param executor executor to run the request on
+     * @return future response, null if the lookup was not successful
+     */
+    public CompletableFuture<GeocodeResponse> getForwardGeocodeAsync(final String address, Executor executor) {
+        return supplyAsync(new Callable<GeocodeResponse>() {
+            public GeocodeResponse call() throws Exception {
+                return getForwardGeocode(address);
+            }
+        }, executor);
+    }
+
+    /**
+     * Reverse geocode on an executor; see {@link #getForwardGeocodeAsync(String, Executor)}.
+     *
+     * @param lat Latitude of the position
+     * @param lng Longitude of the position
+     * @param executor executor to run the request on
+     * @return future response, null if the lookup was not successful
+     */
+    public CompletableFuture<GeocodeResponse> getReverseGeocodeAsync(final double lat, final double lng, Executor executor) {
+        return supplyAsync(new Callable<GeocodeResponse>() {
+            public GeocodeResponse call() throws Exception {
+                return getReverseGeocode(lat, lng);
+            }
+        }, executor);
+    }
+
+    /**
+     * Acquire a permit asynchronously, then run the call on the executor with the permit
+     * handed to its fetch. A permit the call does not use (e.g. cache hit) is released unused.
+     */
+    private <T> CompletableFuture<T> supplyAsync(final Callable<T> call, final Executor executor) {
+        AdaptiveConcurrencyLimiter limiter = getConcurrencyLimiter();
+        final CompletableFuture<AdaptiveConcurrencyLimiter.Permit> permitFuture = (limiter != null)
+                ? limiter.acquireAsync(getPriority())
+                : CompletableFuture.<AdaptiveConcurrencyLimiter.Permit>completedFuture(null);
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+
+        permitFuture.whenComplete((permit, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            try {
+                executor.execute(() -> {
+                    if (result.isDone()) {
+                        if (permit != null) permit.ignore();
+                        return;
+                    }
+                    HELD_PERMIT.set(permit);
+                    try {
+                        result.complete(call.call());
+                    } catch (Throwable t) {
+                        result.completeExceptionally(t);
+                    } finally {
+                        AdaptiveConcurrencyLimiter.Permit unused = HELD_PERMIT.get();
+                        HELD_PERMIT.remove();
+                        if (unused != null) unused.ignore();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                if (permit != null) permit.ignore();
+                result.completeExceptionally(e);
+            }
+        });
+        // cancelling the result gives up a queued permit request
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) permitFuture.cancel(false);
+        });
+        return result;
+    }
+
+    /**
+     * Forward geocode without holding a thread while the request is in flight: the request
+     * goes out over the {@link #setTransport(G3HttpTransport) transport} and the response is
+     * parsed on its completion pool. The response cache, negative cache, quota ledger,
+     * concurrency limiter and metrics apply as for {@link #getForwardGeocode(String)}.
+     *
+     * Cancelling the future gives up a queued limiter permit, a pending retry or the request
+     * itself (the exchange is aborted where the JDK supports it, otherwise its response is
+     * discarded).
+     *
+     * @param address String
+     * @return future response, null if the lookup was not successful
+     */
+    public CompletableFuture<GeocodeResponse> getForwardGeocodeAsync(String address) {
+        String key = (getResponseCache() != null || getNegativeCache() != null) ? GeocodeKeys.forward(address) : null;
+        return geocodeAsync(key, address, 0, 0, null);
+    }
+
+    /**
+     * Reverse geocode without holding a thread; see {@link #getForwardGeocodeAsync(String)}.
+     *
+     * @param lat Latitude of the position
+     * @param lng Longitude of the position
+     * @return future response, null if the lookup was not successful
+     */
+    public CompletableFuture<GeocodeResponse> getReverseGeocodeAsync(double lat, double lng) {
+        String key = (getResponseCache() != null || getNegativeCache() != null) ? GeocodeKeys.reverse(lat, lng) : null;
+        return geocodeAsync(key, null, lat, lng, new LatLng(lat, lng));
+    }
+
+    /**
+     * @param address address for a forward geocode, or null for a reverse geocode of lat/lng
+     */
+    private CompletableFuture<GeocodeResponse> geocodeAsync(final String key, String address, double lat, double lng,
+                                                            final LatLng defaultPosition) {
+        final boolean forward = address != null;
+        final G3GeocoderEvents.Geocode event = new G3GeocoderEvents.Geocode();
+        event.begin();
+        final GeocodeResponseCache cache = getResponseCache();
+        if (cache != null) {
+            GeocodeResponse cached = cache.get(key);
+            if (cached != null) {
+                event.complete(forward, G3Status.OK, G3GeocoderEvents.CACHE_RESPONSE);
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        final NegativeGeocodeCache negativeCache = getNegativeCache();
+        G3Status known = knownNegative(negativeCache, key);
+        if (known != null) {
+            event.complete(forward, known, G3GeocoderEvents.CACHE_NEGATIVE);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final G3GeocoderMetrics metrics = getMetrics();
+        final long start = System.nanoTime();
+        String urlRequest = forward ? buildForwardGeocodeRequest(address) : buildReverseGeocodeRequest(lat, lng);
+        final CompletableFuture<ResponseBuffer> fetch = fetchResponseAsync(urlRequest);
+        final CompletableFuture<GeocodeResponse> result = fetch.thenApply(urlResponse -> {
+            try {
+                GeocodeResults results = toResults(urlResponse, defaultPosition);
+                metrics.recordRequest(results.getStatus(), start);
+                if (negativeCache != null) negativeCache.record(key, results.getStatus());
+                event.complete(forward, results.getStatus(), G3GeocoderEvents.CACHE_NONE);
+                GeocodeResponse gr = results.first();
+                return (gr != null && cache != null) ? cache.put(key, gr) : gr;
+            } finally {
+                if (urlResponse != null) urlResponse.release();
+            }
+        });
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) fetch.cancel(true);
+            else if (error != null) metrics.recordError();
+            if (error != null) event.complete(forward, null, G3GeocoderEvents.CACHE_NONE);
+        });
+        return result;
+    }
+
+    /**
+     * Non-blocking {@link #fetchResponse(String)}: wait for a limiter permit in its queue,
+     * then send over the transport, retrying transport failures after a pause scheduled
+     * rather than slept.
+     *
+     * @param urlRequest request URL
+     * @return future pooled response, which the caller must release; null if every attempt failed
+     */
+    CompletableFuture<ResponseBuffer> fetchResponseAsync(String urlRequest) {
+        AdaptiveConcurrencyLimiter limiter = getConcurrencyLimiter();
+        final CompletableFuture<AdaptiveConcurrencyLimiter.Permit> permitFuture = (limiter != null)
+                ? limiter.acquireAsync(getPriority())
+                : CompletableFuture.<AdaptiveConcurrencyLimiter.Permit>completedFuture(null);
+        final AsyncFetch fetch = new AsyncFetch(urlRequest, getTransport());
+        permitFuture.whenComplete((permit, error) -> {
+            if (error != null) fetch.completeExceptionally(error);
+            else fetch.begin(permit);
+        });
+        fetch.whenComplete((value, error) -> {
+            if (fetch.isCancelled()) permitFuture.cancel(false);
+        });
+        return fetch;
+    }
+
+    /**
+     * State of one non-blocking fetch across its attempts.
+     */
+    private final class AsyncFetch extends CompletableFuture<ResponseBuffer> {
+
+        private final String urlRequest;
+        private final G3HttpTransport transport;
+        private final long start = System.nanoTime();
+        private AdaptiveConcurrencyLimiter.Permit permit;
+        private int tries = RETRIES;
+        private boolean sent = false;
+        private long quotaDeadline = 0;
+        private volatile CompletableFuture<ResponseBuffer> exchange;
+
+        AsyncFetch(String urlRequest, G3HttpTransport transport) {
+            this.urlRequest = urlRequest;
+            this.transport = transport;
+        }
+
+        void begin(AdaptiveConcurrencyLimiter.Permit permit) {
+            this.permit = permit;
+            if (permit != null) permit.restart();
+            attempt();
+        }
+
+        private void attempt() {
+            if (isDone()) {
+                finish(null);
+                return;
+            }
+            G3QuotaLedger ledger = getQuotaLedger();
+            if (ledger != null) {
+                G3QuotaLedger.Outcome outcome = ledger.tryAcquire();
+                if (outcome == G3QuotaLedger.Outcome.SECOND_EXHAUSTED) {
+                    long now = System.nanoTime();
+                    if (quotaDeadline == 0) quotaDeadline = now + ledger.getMaxWaitMillis() * 1000000L;
+                    long remaining = (quotaDeadline - now) / 1000000L;
+                    if (remaining > 0) {
+                        long delay = Math.max(1, Math.min(remaining, ledger.millisUntilNextSecond()));
+                        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(this::attempt);
+                        return;
+                    }
+                }
+                if (outcome != G3QuotaLedger.Outcome.GRANTED) {
+                    getMetrics().recordQuotaDenied();
+                    finish(QUOTA_EXCEEDED_BUFFER);
+                    return;
+                }
+            }
+
+            sent = true;
+            final int retry = RETRIES - tries;
+            final G3GeocoderEvents.Fetch event = new G3GeocoderEvents.Fetch();
+            event.begin();
+            CompletableFuture<ResponseBuffer> current = transport.fetch(urlRequest, isCompression());
+            exchange = current;
+            current.whenComplete((buffer, error) -> {
+                if (error == null) event.complete(retry, buffer.getStatusCode(), buffer);
+                else event.complete(retry, G3HttpTransport.statusCode(error), null);
+
+                if (error == null) {
+                    getMetrics().recordTransfer(buffer.getWireLength(), buffer.length());
+                    finish(buffer);
+                } else if (!(rootCause(error) instanceof IOException) || isDone()) {
+                    if (!isDone()) completeExceptionally(rootCause(error));
+                    finish(null);
+                } else if (!isRetryable(G3HttpTransport.statusCode(error))) {
+                    finish(null);
+                } else if (--tries > 0) {
+                    getMetrics().recordRetry();
+                    CompletableFuture.delayedExecutor(PAUSE, TimeUnit.MILLISECONDS).execute(this::attempt);
+                } else {
+                    finish(null);
+                }
+            });
+        }
+
+        /**
+         * Release the permit and complete; a response nobody wants any more is released.
+         */
+        private void finish(ResponseBuffer urlResponse) {
+            if (permit != null) {
+                if (!sent || isCancelled()) permit.ignore();
+                else if (tries < RETRIES || urlResponse == null
+                        || G3Status.fromResponse(urlResponse) == G3Status.OVER_QUERY_LIMIT) permit.dropped();
+                else permit.success();
+            }
+            getMetrics().recordStage(G3GeocoderMetrics.Stage.FETCH, start);
+            if (!complete(urlResponse) && urlResponse != null) urlResponse.release();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            CompletableFuture<ResponseBuffer> current = exchange;
+            if (cancelled && current != null) current.cancel(true);
+            return cancelled;
+        }
+    }
+
+    private static Throwable rootCause(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof G3HttpTransport.CompletionIOException)
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Warm-up
+    // ------------------------------------------------------------------------------
+
+    /**
+     * Prepare for traffic: {@link #warmUp(int)} with {@link #WARM_UP_ITERATIONS}.
+     *
+     * @return elapsed nanoseconds
+     * @throws Exception on a bundled fixture or stylesheet error
+     */
+    public long warmUp() throws Exception {
+        return warmUp(WARM_UP_ITERATIONS);
+    }
+
+    /**
+     * Pay first-call costs before the first real request: compile the properties stylesheet,
+     * initialize the signer's Mac, exercise the HTTP and decompression stack, and run the
+     * request, decode, parse and codec paths against fixtures bundled in the jar until they are
+     * JIT-compiled. Nothing leaves the host (transport warm-up talks to a one-shot loopback
+     * server), and this geocoder's metrics, caches and quota are untouched.
+     *
+     * @param iterations passes over the hot paths; a few thousand reach the optimizing compiler
+     * @return elapsed nanoseconds
+     * @throws Exception on a bundled fixture or stylesheet error
+     */
+    public long warmUp(int iterations) throws Exception {
+        long start = System.nanoTime();
+        String forward = getResourceFileAsString("warmup/GoogleForwardGeocode.xml");
+        String reverse = getResourceFileAsString("warmup/GoogleReverseGeocode.xml");
+        byte[] compressed = gzip(reverse.getBytes(StandardCharsets.UTF_8));
+
+        // same configuration, private metrics
+        G3Geocoder scratch = new G3Geocoder();
+        scratch._baseURL = getBaseURL();
+        scratch._dataType = getDataType();
+        scratch._clientID = getGoogleClientID();
+        scratch._requestSigner = getRequestSigner();
+
+        getPropertiesTemplates();
+        warmUpTransport(scratch, compressed, WARM_UP_CONNECTIONS);
+
+        EnumSet<GeocodeField> position = EnumSet.of(GeocodeField.POSITION);
+        LatLng defaultPosition = new LatLng(40.714224, -72.961452);
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        for (int i = 0; i < iterations; i++) {
+            scratch.buildForwardGeocodeRequest("1488 Montgomery Highway Birmingham AL 35216");
+            scratch.buildReverseGeocodeRequest(40.714224, -72.961452);
+
+            List<GeocodeResponse> results;
+            ResponseBuffer body = ResponseBuffer.acquire();
+            try {
+                scratch.readResponse(new ByteArrayInputStream(compressed), "gzip", body);
+                results = new ArrayList<GeocodeResponse>(scratch.toResults(body, defaultPosition));
+                scratch.toResponse(body, null, position);
+            } finally {
+                body.release();
+            }
+            results.add(scratch.toResults(forward, null).first());
+            for (GeocodeResponse gr : results) {
+                buffer.clear();
+                GeocodeCodec.write(buffer, gr);
+                buffer.flip();
+                GeocodeCodec.read(buffer);
+            }
+            scratch.toResponse(forward, null, position);
+            if (i % 50 == 0) scratch.buildGeocodeResponse(scratch.xmlToProperties(reverse));
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Run real fetches through the HTTP stack against a one-shot server on the loopback
+     * interface, which loads and initializes the connection, header and keep-alive classes.
+     */
+    private static void warmUpTransport(G3Geocoder scratch, final byte[] body, final int connections) throws Exception {
+        final ServerSocket server = new ServerSocket(0, connections, InetAddress.getLoopbackAddress());
+        Thread responder = new Thread(new Runnable() {
+            public void run() {
+                byte[] header = ("HTTP/1.1 200 OK\r\nContent-Type: application/xml; charset=UTF-8\r\n"
+                        + "Content-Encoding: gzip\r\nContent-Length: " + body.length
+                        + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                try {
+                    for (int i = 0; i < connections; i++) {
+                        Socket socket = server.accept();
+                        try {
+                            InputStream in = socket.getInputStream();
+                            // request headers end with an empty line
+                            int state = 0, b;
+                            while (state < 4 && (b = in.read()) >= 0) {
+                                state = (b == '\r' || b == '\n') ? state + 1 : 0;
+                            }
+                            OutputStream out = socket.getOutputStream();
+                            out.write(header);
+                            out.write(body);
+                            out.flush();
+                        } finally {
+                            socket.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    // fetch side fails and reports
+                }
+            }
+        }, "geocoder-warm-up");
+        responder.setDaemon(true);
+        responder.start();
+        String baseURL = scratch._baseURL;
+        try {
+            scratch._baseURL = "http://127.0.0.1:" + server.getLocalPort() + "/maps/api/geocode";
+            for (int i = 0; i < connections; i++) {
+                scratch.fetchUrlRequest(scratch.buildReverseGeocodeRequest(40.714224, -72.961452));
+            }
+        } finally {
+            scratch._baseURL = baseURL;
+            server.close();
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4);
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+
     // ------------------------------------------------------------------------------
     // Utility methods
     // ------------------------------------------------------------------------------
@@ -225,10 +1027,13 @@ public class G3Geocoder implements IGeocoder {
      * @return String url request
      */
     protected String buildForwardGeocodeRequest(String address) {
+        long start = System.nanoTime();
         StringBuilder strb = new StringBuilder();
         strb.append("?address=").append(address.replaceAll(" ", "+"));
         String paramQuery = strb.toString();
-        return buildGoogleRequest(strb, paramQuery);
+        String request = buildGoogleRequest(strb, paramQuery);
+        getMetrics().recordStage(G3GeocoderMetrics.Stage.BUILD_REQUEST, start);
+        return request;
     }
 
     /**
@@ -240,10 +1045,13 @@ public class G3Geocoder implements IGeocoder {
      * @return String url request
      */
     protected String buildReverseGeocodeRequest(double lat, double lon) {
+        long start = System.nanoTime();
         StringBuilder strb = new StringBuilder();
         strb.append("?latlng=").append(lat).append(",").append(lon);
         String paramQuery = strb.toString();
-        return buildGoogleRequest(strb, paramQuery);
+        String request = buildGoogleRequest(strb, paramQuery);
+        getMetrics().recordStage(G3GeocoderMetrics.Stage.BUILD_REQUEST, start);
+        return request;
     }
 
     /**
@@ -254,21 +1062,24 @@ public class G3Geocoder implements IGeocoder {
      * @return String urlString
      */
     public String buildGoogleRequest(StringBuilder strb, String queryRequest) {
+        String clientID = getGoogleClientID();
+        G3UrlSigner signer = getRequestSigner();
         strb.setLength(0);
-        strb.append(_baseURL).append("/").append(_dataType).append(queryRequest).append("&sensor=false");
-        if (_clientID != null) strb.append("&client=").append(_clientID);
-        if (_requestSigner != null) {
+        strb.append(getBaseURL()).append("/").append(getDataType()).append(queryRequest).append("&sensor=false");
+        if (clientID != null) strb.append("&client=").append(clientID);
+        if (signer != null) {
+            long start = System.nanoTime();
             try {
                 String urlString = strb.toString();
                 URL url = new URL(urlString);
-                String request = _requestSigner.signRequest(url.getPath(),url.getQuery());
-                System.out.println("Signed URL :" + url.getProtocol() + "://" + url.getHost() + request);
+                String request = signer.signRequest(url.getPath(),url.getQuery());
 
                 strb.setLength(0);
-                strb.append(url.getProtocol()).append("://").append(url.getHost()).append(request);
+                strb.append(url.getProtocol()).append("://").append(url.getAuthority()).append(request);
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            getMetrics().recordStage(G3GeocoderMetrics.Stage.SIGN, start);
         }
         return strb.toString();
     }
@@ -281,41 +1092,230 @@ public class G3Geocoder implements IGeocoder {
      * @param urlRequest
      * @return response
      * @throws Exception
+     * @see #fetchResponse(String)
      */
     public String fetchUrlRequest(String urlRequest) throws Exception {
-        StringBuilder strb = new StringBuilder();
+        ResponseBuffer response = fetchResponse(urlRequest);
+        if (response == null) return null;
+        try {
+            return response.toString();
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Execute a GET on the provided URL and answer the body in a pooled buffer, which the
+     * caller must release. Has built-in retry for server unavailable error.
+     *
+     * Compressed responses are read and inflated into pooled arrays with pooled inflaters,
+     * so the I/O layer allocates nothing per request once the pool is warm. Wire and decoded
+     * sizes are recorded in the metrics.
+     *
+     * If a quota ledger is set and refuses the request, the status-only response
+     * {@link #QUOTA_EXCEEDED_RESPONSE} is answered without a network call.
+     *
+     * @param urlRequest
+     * @return response, or null if every attempt failed
+     * @throws Exception
+     */
+    ResponseBuffer fetchResponse(String urlRequest) throws Exception {
+        long start = System.nanoTime();
+        AdaptiveConcurrencyLimiter.Permit permit = acquirePermit();
         URL url = new URL(urlRequest);
-        String urlResponse = null;
+        ResponseBuffer urlResponse = null;
         int tries = RETRIES;
-        while(tries > 0 && (urlResponse == null)) {
-            BufferedReader bufferedReader = null;
-            try {
-                bufferedReader = new BufferedReader( new InputStreamReader( url.openStream() ) );
-                String responseStringLine;
-                strb.setLength(0);
-                while ( ( responseStringLine = bufferedReader.readLine() ) != null )
-                {
-                    strb.append(responseStringLine);
+        boolean sent = false;
+        G3QuotaLedger ledger = getQuotaLedger();
+        try {
+            while(tries > 0 && (urlResponse == null)) {
+                if (ledger != null && !ledger.acquire()) {
+                    getMetrics().recordQuotaDenied();
+                    urlResponse = QUOTA_EXCEEDED_BUFFER;
+                    break;
                 }
-                urlResponse = strb.toString();
-            } catch (IOException ioe) {
-                ioe.getMessage().contains("500");  // HTTP 500 error - server unavailable
-                tries--;
+                sent = true;
+                int retry = RETRIES - tries;
+                G3GeocoderEvents.Fetch event = new G3GeocoderEvents.Fetch();
+                event.begin();
+                ResponseBuffer buffer = ResponseBuffer.acquire();
+                HttpURLConnection connection = null;
                 try {
-                    Thread.sleep(PAUSE);
-                } catch(InterruptedException ex) {
-                    Thread.currentThread().interrupt();
+                    connection = (HttpURLConnection) url.openConnection();
+                    if (isCompression()) connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+
+                    readResponse(openResponseStream(connection), connection.getContentEncoding(), buffer);
+                    urlResponse = buffer;
+                } catch (IOException ioe) {
+                    if (!isRetryable(statusCode(connection))) break;
+                    tries--;
+                    if (tries > 0) getMetrics().recordRetry();
+                    try {
+                        Thread.sleep(PAUSE);
+                    } catch(InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                } catch (Exception e) {
+                    throw new Exception(e);
+                } finally {
+                    // the status lookup is only worth making for a recorded event
+                    if (event.shouldCommit()) {
+                        event.complete(retry, statusCode(connection), (urlResponse == buffer) ? buffer : null);
+                    }
+                    if (urlResponse != buffer) buffer.release();
                 }
-            } catch (Exception e) {
-                throw new Exception(e);
-            } finally {
-                if (bufferedReader != null) bufferedReader.close();
-            }
 
+            }
+        } finally {
+            if (permit != null) {
+                if (!sent) permit.ignore();
+                else if (tries < RETRIES || urlResponse == null
+                        || G3Status.fromResponse(urlResponse) == G3Status.OVER_QUERY_LIMIT) permit.dropped();
+                else permit.success();
+            }
         }
+        getMetrics().recordStage(G3GeocoderMetrics.Stage.FETCH, start);
         return urlResponse;
     }
 
+    /**
+     * Permit for one fetch: the one handed over by an async call on this thread, otherwise
+     * one from the limiter, waiting if needed.
+     *
+     * @return permit, or null if no limiter is set
+     * @throws RejectedExecutionException if the limiter turns the request away
+     */
+    private AdaptiveConcurrencyLimiter.Permit acquirePermit() {
+        AdaptiveConcurrencyLimiter.Permit permit = HELD_PERMIT.get();
+        if (permit != null) {
+            HELD_PERMIT.remove();
+            permit.restart();
+            return permit;
+        }
+        AdaptiveConcurrencyLimiter limiter = getConcurrencyLimiter();
+        if (limiter == null) return null;
+        permit = limiter.acquire(getPriority());
+        if (permit == null) throw new RejectedExecutionException("Concurrency limit reached");
+        return permit;
+    }
+
+    /**
+     * Decode and read a response body into a buffer, recording its transfer sizes.
+     *
+     * @param body raw response body; closed on return
+     * @param contentEncoding Content-Encoding header, may be null
+     * @param buffer destination
+     * @throws IOException on read failure
+     */
+    void readResponse(InputStream body, String contentEncoding, ResponseBuffer buffer) throws IOException {
+        try {
+            long wire = buffer.read(body, contentEncoding);
+            getMetrics().recordTransfer(wire, buffer.length());
+        } finally {
+            body.close();
+        }
+    }
+
+    /**
+     * @return HTTP status of a connection that has been sent, 0 if there is none
+     */
+    private static int statusCode(HttpURLConnection connection) {
+        if (connection == null) return 0;
+        try {
+            return connection.getResponseCode();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * No response at all, 429 and 5xx may clear up on another try; any other HTTP error
+     * will not.
+     *
+     * @param statusCode HTTP status, 0 if no response was received
+     * @return true if a failed fetch is worth retrying
+     */
+    static boolean isRetryable(int statusCode) {
+        return statusCode == 0 || statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * Open the response body. On an HTTP error the error body is drained so the connection
+     * can be reused, and the original IOException is rethrown.
+     */
+    private static InputStream openResponseStream(HttpURLConnection connection) throws IOException {
+        try {
+            return connection.getInputStream();
+        } catch (IOException e) {
+            InputStream error = connection.getErrorStream();
+            if (error != null) {
+                try {
+                    byte[] buffer = new byte[512];
+                    while (error.read(buffer) > 0) { }
+                } finally {
+                    error.close();
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param cache negative cache, may be null
+     * @param key input key
+     * @return cached status if the input is known to be bad, otherwise null
+     */
+    private G3Status knownNegative(NegativeGeocodeCache cache, String key) {
+        if (cache == null) return null;
+        G3Status status = cache.lookup(key);
+        if (status != null) getMetrics().recordNegativeHit();
+        return status;
+    }
+
+    /**
+     * Locate the results in a raw response. Only the first result is decoded here.
+     *
+     * @param xmlResponse Google response, may be null; copied if it is a pooled buffer
+     * @param defaultPosition position for results without a location, or null
+     * @return results, empty if the status is not OK
+     */
+    protected GeocodeResults toResults(CharSequence xmlResponse, LatLng defaultPosition) {
+        G3Status status = G3Status.fromResponse(xmlResponse);
+        if (status != G3Status.OK) return GeocodeResults.empty(status);
+        // later results are decoded lazily, after the pooled buffer has been released
+        if (xmlResponse instanceof ResponseBuffer) xmlResponse = ((ResponseBuffer) xmlResponse).copy();
+
+        G3GeocoderEvents.Parse event = new G3GeocoderEvents.Parse();
+        event.begin();
+        long start = System.nanoTime();
+        int[] bounds = G3ResponseParser.resultBounds(xmlResponse);
+        getMetrics().recordStage(G3GeocoderMetrics.Stage.TRANSFORM, start);
+        event.complete(xmlResponse, bounds);
+
+        return new GeocodeResults(status, xmlResponse, bounds, defaultPosition, getMetrics());
+    }
+
+    /**
+     * Decode the requested fields of the first result in a raw OK response.
+     *
+     * @param xmlResponse Google response with OK status
+     * @param defaultPosition position to use if the result has no location, or null
+     * @param fields fields to decode
+     * @return response, or null if the response holds no result
+     */
+    protected GeocodeResponse toResponse(CharSequence xmlResponse, LatLng defaultPosition, EnumSet<GeocodeField> fields) {
+        G3GeocoderEvents.Map event = new G3GeocoderEvents.Map();
+        event.begin();
+        long start = System.nanoTime();
+        GeocodeResponse gr = G3ResponseParser.parseFirstResult(xmlResponse, fields);
+        if (gr != null && defaultPosition != null && gr.getPosition() == null && fields.contains(GeocodeField.POSITION)) {
+            gr.setPosition(defaultPosition);
+        }
+        getMetrics().recordStage(G3GeocoderMetrics.Stage.MAP, start);
+        event.complete(0, fields.size());
+        return gr;
+    }
+
     /**
      * Utility to fetch contents of named resource file. Used by XSLT mapping.
      *
@@ -329,6 +1329,32 @@ public class G3Geocoder implements IGeocoder {
     }
 
 
+    /**
+     * Compiled GoogleV3ReverseGeocodeToProperties.xsl. Templates are thread-safe, so one
+     * compilation is shared by every geocoder.
+     *
+     * @return compiled stylesheet
+     * @throws TransformerException on a stylesheet error
+     */
+    static Templates getPropertiesTemplates() throws TransformerException {
+        Templates templates = propertiesTemplates;
+        if (templates == null) {
+            synchronized (G3Geocoder.class) {
+                templates = propertiesTemplates;
+                if (templates == null) {
+                    InputStream in = G3Geocoder.class.getResourceAsStream("/GoogleV3ReverseGeocodeToProperties.xsl");
+                    try {
+                        templates = TransformerFactory.newInstance().newTemplates(new StreamSource(in));
+                    } finally {
+                        try { in.close(); } catch (IOException e) { }
+                    }
+                    propertiesTemplates = templates;
+                }
+            }
+        }
+        return templates;
+    }
+
     /**
      * Map element names with type conflict to innocuous names.
 
@@ -339,11 +1365,8 @@ public class G3Geocoder implements IGeocoder {
      * @throws TransformerException
      */
     public Properties xmlToProperties(String xmlInput) throws IOException, URISyntaxException, TransformerException {
-        String xslt = getResourceFileAsString("GoogleV3ReverseGeocodeToProperties.xsl");
-
-        TransformerFactory tFactory = TransformerFactory.newInstance();
-        Transformer transformer = tFactory.newTransformer(
-                new StreamSource(new StringReader(xslt)));
+        long start = System.nanoTime();
+        Transformer transformer = getPropertiesTemplates().newTransformer();
 
         StringReader reader = new StringReader(xmlInput);
         StringWriter writer = new StringWriter();
@@ -354,6 +1377,7 @@ public class G3Geocoder implements IGeocoder {
 
         Properties p = new Properties();
         p.load(new StringReader(result));
+        getMetrics().recordStage(G3GeocoderMetrics.Stage.TRANSFORM, start);
         return p;
     }
 
@@ -377,6 +1401,7 @@ public class G3Geocoder implements IGeocoder {
 
         if (p.size() == 0) return null;
 
+        long start = System.nanoTime();
         GeocodeResponse gr = new GeocodeResponse();
 
         String str = null;
@@ -426,6 +1451,7 @@ public class G3Geocoder implements IGeocoder {
 
         }
 
+        getMetrics().recordStage(G3GeocoderMetrics.Stage.MAP, start);
         return gr;
     }
 
@@ -445,10 +1471,14 @@ public class G3Geocoder implements IGeocoder {
         if (args.length < 2) {
             System.out.println("USAGE: G3Geocoder <flag> <arg>");
             System.out.println("FLAGS: [-c -k] (-f | -r) GeoCodeParams");
+            System.out.println("       [-c -k] -b (File | -) [-p Parallelism] [-o csv | tsv]");
             System.out.println("\t-c Client ID");
             System.out.println("\t-k Signing Key");
             System.out.println("\t-f Forward Geocoding");
             System.out.println("\t-r Reverse Geocoding");
+            System.out.println("\t-b Batch Geocoding of addresses or lat,lng pairs, one per line (- for stdin)");
+            System.out.println("\t-p Batch lookups in flight (default 4)");
+            System.out.println("\t-o Batch output format (default csv)");
             System.out.println("Replace Spaces with +");
             System.out.println();
         }
@@ -479,10 +1509,8 @@ public class G3Geocoder implements IGeocoder {
                 System.out.println();
 
             } else if ("-r".equalsIgnoreCase(flag)) {
-                String splits[] = geoParam.split(",");
-                double lat = Double.parseDouble(splits[0]);
-                double lng = Double.parseDouble(splits[1]);
-                GeocodeResponse response = coder.getReverseGeocode(lat,lng);
+                LatLng position = LatLngCodec.parse(geoParam);
+                GeocodeResponse response = coder.getReverseGeocode(position.getLatitude(), position.getLongitude());
 
                 StringBuilder sb = new StringBuilder();
 
@@ -501,6 +1529,9 @@ public class G3Geocoder implements IGeocoder {
                 System.out.println();
                 System.out.println(sb.toString());
                 System.out.println();
+
+            } else if ("-b".equalsIgnoreCase(flag)) {
+                runBatch(coder, geoParam, args, instructionOffset + 2);
             }
 
         } catch (Exception e) {
@@ -509,6 +1540,31 @@ public class G3Geocoder implements IGeocoder {
 
     }
 
+    /**
+     * Batch mode: stream the input file (or stdin) through the geocoder, results to stdout
+     * and progress to stderr.
+     */
+    private static void runBatch(G3Geocoder coder, String source, String[] args, int optionOffset) throws Exception {
+        BatchGeocoder batch = new BatchGeocoder(coder);
+        for (int i = optionOffset; i + 1 < args.length; i += 2) {
+            if ("-p".equalsIgnoreCase(args[i])) {
+                batch.setParallelism(Integer.parseInt(args[i + 1]));
+            } else if ("-o".equalsIgnoreCase(args[i])) {
+                batch.setFormat(BatchGeocoder.Format.valueOf(args[i + 1].toUpperCase()));
+            }
+        }
+
+        InputStream in = "-".equals(source) ? System.in : new FileInputStream(source);
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"), 65536);
+        try {
+            batch.run(reader, writer, System.err);
+        } finally {
+            writer.flush();
+            reader.close();
+        }
+    }
+
     private static void printPair(String label, String value, StringBuilder sb) {
         final int labelColumnLen = 15;
         int beforeLen = sb.length();
@@ -519,5 +1575,154 @@ public class G3Geocoder implements IGeocoder {
         sb.append(value).append("\n");
     }
 
-}
 
+    /**
+     * Final configuration of a built geocoder.
+     */
+    private static final class Config {
+
+        final String baseURL;
+        final String dataType;
+        final String clientID;
+        final String signingKey;
+        final G3UrlSigner requestSigner;
+        final G3GeocoderMetrics metrics;
+        final boolean compression;
+        final NegativeGeocodeCache negativeCache;
+        final G3QuotaLedger quotaLedger;
+        final GeocodeResponseCache responseCache;
+        final AdaptiveConcurrencyLimiter concurrencyLimiter;
+        final GeocodePriority priority;
+        final G3HttpTransport transport;
+
+        Config(Builder builder, G3GeocoderMetrics metrics) {
+            this.baseURL = builder.baseURL;
+            this.dataType = builder.dataType;
+            this.clientID = builder.clientID;
+            this.signingKey = builder.signingKey;
+            this.requestSigner = builder.requestSigner;
+            this.metrics = metrics;
+            this.compression = builder.compression;
+            this.negativeCache = builder.negativeCache;
+            this.quotaLedger = builder.quotaLedger;
+            this.responseCache = builder.responseCache;
+            this.concurrencyLimiter = builder.concurrencyLimiter;
+            this.priority = builder.priority;
+            this.transport = builder.transport;
+        }
+    }
+
+    /**
+     * Builds an immutable {@link G3Geocoder}. Unset options keep the defaults of
+     * <code>new G3Geocoder()</code>. A builder may be reused; each build shares the configured
+     * signer, metrics and caches, and building does not change the builder.
+     */
+    public static final class Builder {
+
+        private String baseURL = "http://maps.googleapis.com/maps/api/geocode";
+        private String dataType = "xml";
+        private String clientID = null;
+        private String signingKey = null;
+        private G3UrlSigner requestSigner = null;
+        private G3GeocoderMetrics metrics = null;
+        private boolean compression = true;
+        private NegativeGeocodeCache negativeCache = null;
+        private G3QuotaLedger quotaLedger = null;
+        private GeocodeResponseCache responseCache = null;
+        private AdaptiveConcurrencyLimiter concurrencyLimiter = null;
+        private GeocodePriority priority = GeocodePriority.INTERACTIVE;
+        private G3HttpTransport transport = null;
+
+        private Builder() {
+        }
+
+        public Builder baseURL(String url) {
+            if (url == null) throw new NullPointerException();
+            baseURL = url;
+            return this;
+        }
+
+        /**
+         * @param type "xml" or "json"
+         * @return this builder
+         */
+        public Builder dataType(String type) {
+            if ("xml".equalsIgnoreCase(type)) dataType = "xml";
+            else if ("json".equalsIgnoreCase(type)) dataType = "json";
+            else throw new IllegalArgumentException("Unsupported data type " + type);
+            return this;
+        }
+
+        public Builder clientID(String id) {
+            clientID = id;
+            return this;
+        }
+
+        /**
+         * @param key web-safe base 64 signing key, or null for unsigned requests
+         * @return this builder
+         * @throws IllegalArgumentException if the key cannot be used
+         */
+        public Builder signingKey(String key) {
+            if (key == null) {
+                requestSigner = null;
+            } else {
+                try {
+                    requestSigner = new G3UrlSigner(key);
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("Invalid signing key", e);
+                }
+            }
+            signingKey = key;
+            return this;
+        }
+
+        public Builder metrics(G3GeocoderMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public Builder compression(boolean compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder negativeCache(NegativeGeocodeCache cache) {
+            negativeCache = cache;
+            return this;
+        }
+
+        public Builder quotaLedger(G3QuotaLedger ledger) {
+            quotaLedger = ledger;
+            return this;
+        }
+
+        public Builder responseCache(GeocodeResponseCache cache) {
+            responseCache = cache;
+            return this;
+        }
+
+        public Builder concurrencyLimiter(AdaptiveConcurrencyLimiter limiter) {
+            concurrencyLimiter = limiter;
+            return this;
+        }
+
+        public Builder priority(GeocodePriority lane) {
+            if (lane == null) throw new IllegalArgumentException("priority must not be null");
+            priority = lane;
+            return this;
+        }
+
+        public Builder transport(G3HttpTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * @return immutable geocoder; it gets its own metrics instance if none was set
+         */
+        public G3Geocoder build() {
+            return new G3Geocoder(this, (metrics != null) ? metrics : new G3GeocoderMetrics());
+        }
+    }
+}
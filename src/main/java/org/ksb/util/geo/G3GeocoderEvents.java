@@ -0,0 +1,178 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for {@link G3Geocoder}, so geocoder latency can be lined up
+ * with GC pauses and thread stalls in a recording. Enable them with e.g.
+ * <code>-XX:StartFlightRecording:settings=profile</code> or a .jfc file naming
+ * <code>org.ksb.util.geo.*</code>.
+ *
+ * Fetch, parse and map events made during a geocode call are committed on its thread within
+ * its time span, so JMC shows them nested under it. The exception is a
+ * {@link GeocodeResults} result decoded lazily by {@link GeocodeResults#get(int)}: its map
+ * event is committed when and where the result is first read, usually after the geocode
+ * event has ended, and carries no link back to it. Fields are only filled in when
+ * an event will be committed, so with recording off an event costs its enabled checks and
+ * an allocation that escape analysis normally removes.
+ */
+final class G3GeocoderEvents {
+
+    static final String CACHE_NONE = "none";
+    static final String CACHE_RESPONSE = "response";
+    static final String CACHE_NEGATIVE = "negative";
+
+    static final int ALL_FIELDS = GeocodeField.values().length;
+
+    private G3GeocoderEvents() {
+    }
+
+    @Name("org.ksb.util.geo.Geocode")
+    @Label("Geocode")
+    @Category({ "Geocoder" })
+    @Description("One forward or reverse geocode call, from entry to result")
+    @StackTrace(false)
+    static final class Geocode extends Event {
+        @Label("Direction")
+        String direction;
+
+        @Label("Status")
+        @Description("Google status, or ERROR if the call threw")
+        String status;
+
+        @Label("Cache Tier")
+        @Description("Cache that answered the call: response, negative, or none for a service call")
+        String cacheTier;
+
+        /**
+         * End the event and commit it if it is recorded.
+         *
+         * @param forward forward or reverse geocode
+         * @param status service status, or null if the call failed
+         * @param cacheTier one of the CACHE_ constants
+         */
+        void complete(boolean forward, G3Status status, String cacheTier) {
+            end();
+            if (!shouldCommit()) return;
+            this.direction = forward ? "forward" : "reverse";
+            this.status = (status != null) ? status.name() : "ERROR";
+            this.cacheTier = cacheTier;
+            commit();
+        }
+    }
+
+    @Name("org.ksb.util.geo.Fetch")
+    @Label("Geocode Fetch")
+    @Category({ "Geocoder" })
+    @Description("One HTTP attempt of a geocode request")
+    @StackTrace(false)
+    static final class Fetch extends Event {
+        @Label("Retry")
+        @Description("0 for the first attempt")
+        int retry;
+
+        @Label("HTTP Status")
+        @Description("0 if no response was received")
+        int httpStatus;
+
+        @Label("Wire Bytes")
+        @DataAmount
+        long wireBytes;
+
+        @Label("Decoded Bytes")
+        @DataAmount
+        long decodedBytes;
+
+        void complete(int retry, int httpStatus, ResponseBuffer body) {
+            end();
+            if (!shouldCommit()) return;
+            this.retry = retry;
+            this.httpStatus = httpStatus;
+            if (body != null) {
+                this.wireBytes = body.getWireLength();
+                this.decodedBytes = body.length();
+            }
+            commit();
+        }
+    }
+
+    @Name("org.ksb.util.geo.Parse")
+    @Label("Geocode Parse")
+    @Category({ "Geocoder" })
+    @Description("Locating the results in a response")
+    @StackTrace(false)
+    static final class Parse extends Event {
+        @Label("Response Length")
+        @DataAmount
+        long responseLength;
+
+        @Label("Results")
+        int results;
+
+        void complete(CharSequence response, int[] bounds) {
+            end();
+            if (!shouldCommit()) return;
+            this.responseLength = response.length();
+            this.results = bounds.length / 2;
+            commit();
+        }
+    }
+
+    @Name("org.ksb.util.geo.Map")
+    @Label("Geocode Map")
+    @Category({ "Geocoder" })
+    @Description("Decoding one result into a GeocodeResponse; lazily read results are decoded outside the geocode call")
+    @StackTrace(false)
+    static final class Map extends Event {
+        @Label("Result Index")
+        int resultIndex;
+
+        @Label("Fields")
+        @Description("Fields decoded; all of them unless a field set was requested")
+        int fields;
+
+        void complete(int resultIndex, int fields) {
+            end();
+            if (!shouldCommit()) return;
+            this.resultIndex = resultIndex;
+            this.fields = fields;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-stage latency histograms and request counters for {@link G3Geocoder}.
+ *
+ * All recording paths are lock-free (<code>LongAdder</code> based), so a single instance can be
+ * shared by every geocoder in the JVM. Call {@link #register(String)} to publish it as an MXBean.
+ *
+ * <ul>
+ * <li>BUILD_REQUEST - forming the request URL, including SIGN</li>
+ * <li>SIGN - URL signing with the client signing key</li>
+ * <li>FETCH - network round trip, including retries and retry pauses</li>
+ * <li>TRANSFORM - locating results in the response (or XSLT into properties)</li>
+ * <li>MAP - decoding one result (or mapping properties) onto a GeocodeResponse</li>
+ * <li>TOTAL - a complete forward or reverse geocode call</li>
+ * </ul>
+ */
+public class G3GeocoderMetrics implements G3GeocoderMetricsMXBean {
+
+    public enum Stage { BUILD_REQUEST, SIGN, FETCH, TRANSFORM, MAP, TOTAL }
+
+    public static final String DOMAIN = "org.ksb.util.geo";
+
+    private final EnumMap<Stage, LatencyHistogram> stages = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+    private final EnumMap<G3Status, LongAdder> statuses = new EnumMap<G3Status, LongAdder>(G3Status.class);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder quotaDenials = new LongAdder();
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder wireBytes = new LongAdder();
+    private final LongAdder decodedBytes = new LongAdder();
+
+    private ObjectName objectName = null;
+
+    public G3GeocoderMetrics() {
+        // maps are fully populated up front and never structurally modified afterwards,
+        // which keeps concurrent reads safe without locking
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+        for (G3Status status : G3Status.values()) {
+            statuses.put(status, new LongAdder());
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Recording
+    // ------------------------------------------------------------------------------
+
+    /**
+     * Record elapsed time for a stage.
+     *
+     * @param stage stage
+     * @param startNanos value of <code>System.nanoTime()</code> when the stage began
+     */
+    public void recordStage(Stage stage, long startNanos) {
+        stages.get(stage).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record a completed geocode call.
+     *
+     * @param status Google status of the response
+     * @param startNanos value of <code>System.nanoTime()</code> when the call began
+     */
+    public void recordRequest(G3Status status, long startNanos) {
+        recordStage(Stage.TOTAL, startNanos);
+        requests.increment();
+        statuses.get(status).increment();
+    }
+
+    public void recordError() {
+        errors.increment();
+    }
+
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    /**
+     * Record a lookup answered by the negative cache, without a request.
+     */
+    public void recordNegativeHit() {
+        negativeHits.increment();
+    }
+
+    /**
+     * Record a request refused by the client-side quota ledger.
+     */
+    public void recordQuotaDenied() {
+        quotaDenials.increment();
+    }
+
+    /**
+     * Record the size of one response body.
+     *
+     * @param wire bytes read from the connection, compressed if the server compressed
+     * @param decoded bytes after decompression
+     */
+    public void recordTransfer(long wire, long decoded) {
+        transfers.increment();
+        wireBytes.add(wire);
+        decodedBytes.add(decoded);
+    }
+
+    /**
+     * @param stage stage
+     * @return live histogram for the stage
+     */
+    public LatencyHistogram getHistogram(Stage stage) {
+        return stages.get(stage);
+    }
+
+    /**
+     * @param status Google status
+     * @return number of responses seen with the status
+     */
+    public long getStatusCount(G3Status status) {
+        return statuses.get(status).sum();
+    }
+
+    // ------------------------------------------------------------------------------
+    // JMX registration
+    // ------------------------------------------------------------------------------
+
+    /**
+     * Register with the platform MBean server as
+     * <code>org.ksb.util.geo:type=G3GeocoderMetrics,name=&lt;name&gt;</code>.
+     *
+     * @param name instance name, distinguishes multiple geocoders in one JVM
+     * @throws Exception on registration failure (e.g. name already in use)
+     */
+    public synchronized void register(String name) throws Exception {
+        if (objectName != null) unregister();
+        ObjectName on = new ObjectName(DOMAIN + ":type=G3GeocoderMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        objectName = on;
+    }
+
+    /**
+     * Remove from the platform MBean server, if registered.
+     *
+     * @throws Exception on JMX failure
+     */
+    public synchronized void unregister() throws Exception {
+        if (objectName == null) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+        objectName = null;
+    }
+
+    // ------------------------------------------------------------------------------
+    // G3GeocoderMetricsMXBean interface methods
+    // ------------------------------------------------------------------------------
+
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    public long getNegativeHitCount() {
+        return negativeHits.sum();
+    }
+
+    public long getQuotaDeniedCount() {
+        return quotaDenials.sum();
+    }
+
+    public long getTransferCount() {
+        return transfers.sum();
+    }
+
+    public long getWireBytes() {
+        return wireBytes.sum();
+    }
+
+    public long getDecodedBytes() {
+        return decodedBytes.sum();
+    }
+
+    public double getCompressionRatio() {
+        long wire = wireBytes.sum();
+        return (wire == 0) ? 1.0 : decodedBytes.sum() / (double) wire;
+    }
+
+    public Map<String, Long> getStatusCounts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Map.Entry<G3Status, LongAdder> e : statuses.entrySet()) {
+            result.put(e.getKey().name(), e.getValue().sum());
+        }
+        return result;
+    }
+
+    public Map<String, Long> getStageCounts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Map.Entry<Stage, LatencyHistogram> e : stages.entrySet()) {
+            result.put(e.getKey().name(), e.getValue().getCount());
+        }
+        return result;
+    }
+
+    public Map<String, Double> getStageMeanMicros() {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Map.Entry<Stage, LatencyHistogram> e : stages.entrySet()) {
+            result.put(e.getKey().name(), e.getValue().getMeanNanos() / 1000.0);
+        }
+        return result;
+    }
+
+    public Map<String, Long> getStageP50Micros() {
+        return percentileMicros(50.0);
+    }
+
+    public Map<String, Long> getStageP99Micros() {
+        return percentileMicros(99.0);
+    }
+
+    public Map<String, Long> getStageMaxMicros() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Map.Entry<Stage, LatencyHistogram> e : stages.entrySet()) {
+            result.put(e.getKey().name(), e.getValue().getMaxNanos() / 1000);
+        }
+        return result;
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : stages.values()) histogram.reset();
+        for (LongAdder adder : statuses.values()) adder.reset();
+        requests.reset();
+        errors.reset();
+        retries.reset();
+        negativeHits.reset();
+        quotaDenials.reset();
+        transfers.reset();
+        wireBytes.reset();
+        decodedBytes.reset();
+    }
+
+    private Map<String, Long> percentileMicros(double percentile) {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Map.Entry<Stage, LatencyHistogram> e : stages.entrySet()) {
+            result.put(e.getKey().name(), e.getValue().getPercentileNanos(percentile) / 1000);
+        }
+        return result;
+    }
+}
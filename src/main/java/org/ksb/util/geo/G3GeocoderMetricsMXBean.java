@@ -0,0 +1,88 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.Map;
+
+/**
+ * JMX management interface for {@link G3GeocoderMetrics}. Map-valued attributes are keyed by
+ * stage or status name and are exposed as open-type tabular data.
+ */
+public interface G3GeocoderMetricsMXBean {
+
+    /** @return number of completed forward and reverse geocode calls */
+    long getRequestCount();
+
+    /** @return number of geocode calls that ended in an exception */
+    long getErrorCount();
+
+    /** @return number of fetch attempts that were retried after an I/O failure */
+    long getRetryCount();
+
+    /** @return number of lookups rejected by the negative cache without a request */
+    long getNegativeHitCount();
+
+    /** @return number of requests refused by the quota ledger and never sent */
+    long getQuotaDeniedCount();
+
+    /** @return number of response bodies read */
+    long getTransferCount();
+
+    /** @return response bytes read from the network, as sent (compressed or not) */
+    long getWireBytes();
+
+    /** @return response bytes after decompression */
+    long getDecodedBytes();
+
+    /** @return decoded bytes per wire byte; 1.0 when uncompressed */
+    double getCompressionRatio();
+
+    /** @return Google response status counts, keyed by status name */
+    Map<String, Long> getStatusCounts();
+
+    /** @return sample counts per stage */
+    Map<String, Long> getStageCounts();
+
+    /** @return mean latency per stage, in microseconds */
+    Map<String, Double> getStageMeanMicros();
+
+    /** @return approximate median latency per stage, in microseconds */
+    Map<String, Long> getStageP50Micros();
+
+    /** @return approximate 99th percentile latency per stage, in microseconds */
+    Map<String, Long> getStageP99Micros();
+
+    /** @return maximum latency per stage, in microseconds */
+    Map<String, Long> getStageMaxMicros();
+
+    /** Clear all counters and histograms. */
+    void reset();
+}
@@ -0,0 +1,238 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking HTTP transport for {@link G3Geocoder}'s async API, on the JDK HttpClient.
+ *
+ * Requests are multiplexed over HTTP/2 connections where the endpoint supports it (TLS with
+ * ALPN, or h2c upgrade) and fall back to pooled HTTP/1.1 keep-alive connections otherwise.
+ * Either way no thread is held while a request is in flight: one selector thread drives all
+ * sockets and response bodies are pushed straight into pooled {@link ResponseBuffer}s on a
+ * small completion pool, so thousands of lookups can be outstanding at once.
+ *
+ * Every request has a timeout. One transport is meant to be shared by many geocoders.
+ */
+public class G3HttpTransport {
+
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private static volatile G3HttpTransport shared = null;
+
+    private final HttpClient client;
+    private final Duration requestTimeout;
+
+    /**
+     * Transport with default timeouts and a completion pool of one daemon thread per core.
+     */
+    public G3HttpTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_REQUEST_TIMEOUT, defaultExecutor());
+    }
+
+    /**
+     * @param connectTimeout connection establishment timeout
+     * @param requestTimeout time from sending a request until its response headers arrive
+     * @param executor runs response handling and dependent stages; keep it small
+     */
+    public G3HttpTransport(Duration connectTimeout, Duration requestTimeout, Executor executor) {
+        this(HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build(), requestTimeout);
+    }
+
+    /**
+     * @param client configured client
+     * @param requestTimeout time from sending a request until its response headers arrive
+     */
+    public G3HttpTransport(HttpClient client, Duration requestTimeout) {
+        if (client == null || requestTimeout == null) throw new NullPointerException();
+        this.client = client;
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * @return process-wide transport with default settings, created on first use
+     */
+    public static G3HttpTransport getShared() {
+        G3HttpTransport transport = shared;
+        if (transport == null) {
+            synchronized (G3HttpTransport.class) {
+                transport = shared;
+                if (transport == null) shared = transport = new G3HttpTransport();
+            }
+        }
+        return transport;
+    }
+
+    private static ExecutorService defaultExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "g3-http-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public HttpClient getClient() {
+        return client;
+    }
+
+    public Duration getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Send a GET and collect the decoded body.
+     *
+     * @param url request URL
+     * @param compression whether to ask for a gzip or deflate body
+     * @return future pooled buffer, which the caller must release; completes exceptionally
+     *         with an IOException on a transport failure, timeout or HTTP error status;
+     *         cancelling it abandons the request
+     */
+    public CompletableFuture<ResponseBuffer> fetch(String url, boolean compression) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url)).timeout(requestTimeout).GET();
+        if (compression) request.header("Accept-Encoding", "gzip, deflate");
+
+        final CompletableFuture<HttpResponse<ResponseBuffer>> exchange = client.sendAsync(request.build(),
+                new HttpResponse.BodyHandler<ResponseBuffer>() {
+                    public HttpResponse.BodySubscriber<ResponseBuffer> apply(HttpResponse.ResponseInfo info) {
+                        return new BufferSubscriber(info.headers().firstValue("Content-Encoding").orElse(null));
+                    }
+                });
+        final CompletableFuture<ResponseBuffer> body = exchange.thenApply(response -> {
+            if (response.statusCode() >= 400) {
+                response.body().release();
+                throw new CompletionIOException(response.statusCode(), new IOException(
+                        "Server returned HTTP response code: " + response.statusCode() + " for URL: " + url));
+            }
+            response.body().setStatusCode(response.statusCode());
+            return response.body();
+        });
+        // cancellation aborts the exchange on JDKs that support it (16+); earlier ones let it finish
+        body.whenComplete((value, error) -> {
+            if (body.isCancelled()) exchange.cancel(true);
+        });
+        return body;
+    }
+
+    /**
+     * Unchecked carrier for an IOException raised inside a completion stage.
+     */
+    static final class CompletionIOException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+
+        CompletionIOException(int statusCode, IOException cause) {
+            super(cause.getMessage(), cause);
+            this.statusCode = statusCode;
+        }
+    }
+
+    /**
+     * @param error failure of a {@link #fetch(String, boolean)}
+     * @return HTTP status that caused it, 0 if no response was received
+     */
+    static int statusCode(Throwable error) {
+        while (error != null) {
+            if (error instanceof CompletionIOException) return ((CompletionIOException) error).statusCode;
+            error = error.getCause();
+        }
+        return 0;
+    }
+
+    /**
+     * Collects body chunks into a pooled buffer and decodes them on completion.
+     */
+    private static final class BufferSubscriber implements HttpResponse.BodySubscriber<ResponseBuffer> {
+
+        private final String contentEncoding;
+        private final ResponseBuffer buffer = ResponseBuffer.acquire();
+        private final CompletableFuture<ResponseBuffer> body = new CompletableFuture<ResponseBuffer>();
+
+        BufferSubscriber(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+            buffer.beginWire();
+        }
+
+        public CompletionStage<ResponseBuffer> getBody() {
+            return body;
+        }
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        public void onNext(List<ByteBuffer> chunks) {
+            for (ByteBuffer chunk : chunks) buffer.appendWire(chunk);
+        }
+
+        public void onError(Throwable error) {
+            buffer.release();
+            body.completeExceptionally(error);
+        }
+
+        public void onComplete() {
+            try {
+                buffer.decodeWire(contentEncoding);
+                body.complete(buffer);
+            } catch (IOException e) {
+                buffer.release();
+                body.completeExceptionally(e);
+            }
+        }
+    }
+}
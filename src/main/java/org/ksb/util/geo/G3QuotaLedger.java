@@ -0,0 +1,274 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Request quota shared by every process on a host, for geocoders using the same client ID.
+ *
+ * The counters live in a small memory-mapped file. Each window is one 64-bit word holding the
+ * window index (high 36 bits) and the count in that window (low 28 bits), updated with CAS
+ * through a VarHandle on the mapping. All processes mapping the file see the same words, so
+ * no lock or coordinating service is needed. A counter resets itself the first time it is
+ * touched in a new window.
+ *
+ * <pre>
+ * offset  0  magic + layout version
+ * offset  8  per-second window: epoch second | count
+ * offset 16  per-day window: day number | count
+ * </pre>
+ *
+ * Days roll over at midnight in the quota time zone, America/Los_Angeles by default, which is
+ * when Google resets daily quotas. Limits are per ledger instance; every process sharing a
+ * file should be configured with the same limits.
+ */
+public class G3QuotaLedger {
+
+    public enum Outcome { GRANTED, SECOND_EXHAUSTED, DAY_EXHAUSTED }
+
+    public static final ZoneId DEFAULT_QUOTA_ZONE = ZoneId.of("America/Los_Angeles");
+
+    private static final long MAGIC = 0x4733514c00000001L;   // "G3QL", layout 1
+    private static final int FILE_SIZE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int SECOND_OFFSET = 8;
+    private static final int DAY_OFFSET = 16;
+
+    private static final int COUNT_BITS = 28;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private static final VarHandle WORD = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int perSecondLimit;
+    private final int perDayLimit;
+    private final ZoneRules quotaZone;
+    private volatile long maxWaitMillis = 1000;
+    private volatile LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * Open (creating if needed) the ledger file.
+     *
+     * @param file ledger file, shared by all processes using the same client ID
+     * @param perSecondLimit requests allowed per second, across all processes
+     * @param perDayLimit requests allowed per day, across all processes
+     * @throws IOException if the file cannot be mapped or is not a ledger
+     */
+    public G3QuotaLedger(File file, int perSecondLimit, int perDayLimit) throws IOException {
+        this(file, perSecondLimit, perDayLimit, DEFAULT_QUOTA_ZONE);
+    }
+
+    /**
+     * @param file ledger file, shared by all processes using the same client ID
+     * @param perSecondLimit requests allowed per second, across all processes
+     * @param perDayLimit requests allowed per day, across all processes
+     * @param quotaZone time zone whose midnight starts a new day
+     * @throws IOException if the file cannot be mapped or is not a ledger
+     */
+    public G3QuotaLedger(File file, int perSecondLimit, int perDayLimit, ZoneId quotaZone) throws IOException {
+        if (perSecondLimit <= 0 || perSecondLimit > COUNT_MASK) throw new IllegalArgumentException("perSecondLimit");
+        if (perDayLimit <= 0 || perDayLimit > COUNT_MASK) throw new IllegalArgumentException("perDayLimit");
+        this.file = file;
+        this.perSecondLimit = perSecondLimit;
+        this.perDayLimit = perDayLimit;
+        this.quotaZone = quotaZone.getRules();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            // the mapping extends a new (zero-filled) file; a zero header is claimed below
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        } finally {
+            raf.close();    // the mapping stays valid after the channel is closed
+        }
+
+        long magic = (long) WORD.getVolatile(buffer, MAGIC_OFFSET);
+        if (magic == 0 && WORD.compareAndSet(buffer, MAGIC_OFFSET, 0L, MAGIC)) return;
+        magic = (long) WORD.getVolatile(buffer, MAGIC_OFFSET);
+        if (magic != MAGIC) throw new IOException("Not a quota ledger: " + file);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Accounting
+    // ------------------------------------------------------------------------------
+
+    /**
+     * Take one request from both windows, if both have room.
+     *
+     * @return outcome; nothing is consumed unless GRANTED
+     */
+    public Outcome tryAcquire() {
+        long now = clock.getAsLong();
+        long day = dayIndex(now);
+        if (!increment(DAY_OFFSET, day, perDayLimit)) return Outcome.DAY_EXHAUSTED;
+
+        if (!increment(SECOND_OFFSET, now / 1000, perSecondLimit)) {
+            refund(DAY_OFFSET, day);
+            return Outcome.SECOND_EXHAUSTED;
+        }
+        return Outcome.GRANTED;
+    }
+
+    /**
+     * Take one request, waiting for the next second while the per-second budget is spent,
+     * up to {@link #getMaxWaitMillis()}. Does not wait for a new day.
+     *
+     * @return true if granted
+     */
+    public boolean acquire() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while (true) {
+            Outcome outcome = tryAcquire();
+            if (outcome == Outcome.GRANTED) return true;
+            if (outcome == Outcome.DAY_EXHAUSTED) return false;
+
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) return false;
+            long untilNextSecond = millisUntilNextSecond();
+            try {
+                Thread.sleep(Math.max(1, Math.min(remaining, untilNextSecond)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return time until the per-second budget is renewed
+     */
+    long millisUntilNextSecond() {
+        return 1000 - (clock.getAsLong() % 1000);
+    }
+
+    /**
+     * @return requests counted in the current second, across all processes
+     */
+    public int getSecondCount() {
+        return count(SECOND_OFFSET, clock.getAsLong() / 1000);
+    }
+
+    /**
+     * @return requests counted today, across all processes
+     */
+    public int getDayCount() {
+        return count(DAY_OFFSET, dayIndex(clock.getAsLong()));
+    }
+
+    public int getPerSecondLimit() {
+        return perSecondLimit;
+    }
+
+    public int getPerDayLimit() {
+        return perDayLimit;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param millis longest {@link #acquire()} waits for per-second budget
+     */
+    public void setMaxWaitMillis(long millis) {
+        maxWaitMillis = millis;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * Write the counters back to the file now. Other processes see updates without this;
+     * it only matters for surviving a host crash.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    void setClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Packed window words
+    // ------------------------------------------------------------------------------
+
+    private boolean increment(int offset, long window, int limit) {
+        while (true) {
+            long word = (long) WORD.getVolatile(buffer, offset);
+            long count = (window(word) == window) ? (word & COUNT_MASK) : 0;
+            if (window(word) > window) return false;    // another process already moved on; clock skew
+            if (count >= limit) return false;
+            if (WORD.compareAndSet(buffer, offset, word, pack(window, count + 1))) return true;
+        }
+    }
+
+    private void refund(int offset, long window) {
+        while (true) {
+            long word = (long) WORD.getVolatile(buffer, offset);
+            if (window(word) != window || (word & COUNT_MASK) == 0) return;
+            if (WORD.compareAndSet(buffer, offset, word, word - 1)) return;
+        }
+    }
+
+    private int count(int offset, long window) {
+        long word = (long) WORD.getVolatile(buffer, offset);
+        return (window(word) == window) ? (int) (word & COUNT_MASK) : 0;
+    }
+
+    private long dayIndex(long epochMillis) {
+        long offsetSeconds = quotaZone.getOffset(Instant.ofEpochMilli(epochMillis)).getTotalSeconds();
+        return Math.floorDiv(epochMillis / 1000 + offsetSeconds, 86400L);
+    }
+
+    private static long window(long word) {
+        return word >>> COUNT_BITS;
+    }
+
+    private static long pack(long window, long count) {
+        return (window << COUNT_BITS) | count;
+    }
+}
@@ -0,0 +1,368 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.EnumSet;
+
+/**
+ * Direct scanner for Google V3 XML geocode responses.
+ *
+ * Locates <code>&lt;result&gt;</code> elements by offset and decodes a single result on
+ * demand, without building a DOM or running the XSLT. Field mapping matches
+ * {@link G3Geocoder#buildGeocodeResponse(java.util.Properties)}, but is applied per result, so
+ * values from different results are never mixed.
+ *
+ * The scanner relies on the fixed element layout of the Google response and is not a
+ * general XML parser.
+ */
+final class G3ResponseParser {
+
+    private static final String RESULT_OPEN = "<result>";
+    private static final String RESULT_CLOSE = "</result>";
+    private static final String COMPONENT_OPEN = "<address_component>";
+    private static final String COMPONENT_CLOSE = "</address_component>";
+    private static final String SHORT_NAME_OPEN = "<short_name>";
+    private static final String SHORT_NAME_CLOSE = "</short_name>";
+    private static final String TYPE_OPEN = "<type>";
+    private static final String TYPE_CLOSE = "</type>";
+    private static final String GEOMETRY_OPEN = "<geometry>";
+    private static final String LOCATION_OPEN = "<location>";
+    private static final String LOCATION_CLOSE = "</location>";
+    private static final String LAT_OPEN = "<lat>";
+    private static final String LAT_CLOSE = "</lat>";
+    private static final String LNG_OPEN = "<lng>";
+    private static final String LNG_CLOSE = "</lng>";
+
+    private static final int[] NO_RESULTS = new int[0];
+
+    private static final EnumSet<GeocodeField> ALL_FIELDS = EnumSet.allOf(GeocodeField.class);
+
+    /** Address component types mapped onto response fields, as in buildGeocodeResponse. */
+    private static final String[] COMPONENT_TYPES = {
+            "street_number", "route", "administrative_area_level_3", "locality",
+            "administrative_area_level_2", "administrative_area_level_1", "country", "postal_code" };
+    private static final GeocodeField[] COMPONENT_FIELDS = {
+            GeocodeField.BUILDING_NUMBER, GeocodeField.STREET, GeocodeField.LOCALITY, GeocodeField.LOCALITY,
+            GeocodeField.COUNTY, GeocodeField.STATE, GeocodeField.COUNTRY, GeocodeField.POSTAL_CODE };
+    private static final int LOCALITY_TYPE = 3;
+
+    private G3ResponseParser() {
+    }
+
+    /**
+     * Find the content bounds of every result element.
+     *
+     * @param xml raw response
+     * @return pairs of [contentStart, contentEnd) offsets, two ints per result
+     */
+    static int[] resultBounds(CharSequence xml) {
+        int[] bounds = NO_RESULTS;
+        int count = 0;
+        int length = xml.length();
+        int from = 0;
+        while (true) {
+            int open = indexOf(xml, RESULT_OPEN, from, length);
+            if (open < 0) break;
+            int start = open + RESULT_OPEN.length();
+            int end = indexOf(xml, RESULT_CLOSE, start, length);
+            if (end < 0) break;
+
+            if (count + 2 > bounds.length) {
+                int[] grown = new int[Math.max(8, bounds.length * 2)];
+                System.arraycopy(bounds, 0, grown, 0, count);
+                bounds = grown;
+            }
+            bounds[count++] = start;
+            bounds[count++] = end;
+            from = end + RESULT_CLOSE.length();
+        }
+        if (count == bounds.length) return bounds;
+        int[] trimmed = new int[count];
+        System.arraycopy(bounds, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    /**
+     * Find and decode only the first result element.
+     *
+     * @param xml raw response
+     * @param fields fields to decode
+     * @return response, or null if there is no result
+     */
+    static GeocodeResponse parseFirstResult(CharSequence xml, EnumSet<GeocodeField> fields) {
+        int open = indexOf(xml, RESULT_OPEN, 0, xml.length());
+        if (open < 0) return null;
+        int start = open + RESULT_OPEN.length();
+        int end = indexOf(xml, RESULT_CLOSE, start, xml.length());
+        if (end < 0) return null;
+        return parseResult(xml, start, end, fields);
+    }
+
+    /**
+     * Decode one result element.
+     *
+     * @param xml raw response
+     * @param start result content start
+     * @param end result content end
+     * @return response; position is null if the result has no location
+     */
+    static GeocodeResponse parseResult(CharSequence xml, int start, int end) {
+        return parseResult(xml, start, end, ALL_FIELDS);
+    }
+
+    /**
+     * Decode the requested fields of one result element. Address components are skipped
+     * without extracting their values unless their field is requested, and the component scan
+     * stops as soon as every requested component field has been found. Fields not requested
+     * are left null.
+     *
+     * @param xml raw response
+     * @param start result content start
+     * @param end result content end
+     * @param fields fields to decode
+     * @return response; position is null if the result has no location or it was not requested
+     */
+    static GeocodeResponse parseResult(CharSequence xml, int start, int end, EnumSet<GeocodeField> fields) {
+        GeocodeResponse gr = new GeocodeResponse();
+        String locality = null;
+
+        int pending = fields.size() - (fields.contains(GeocodeField.POSITION) ? 1 : 0);
+        boolean wantLocality = fields.contains(GeocodeField.LOCALITY);
+
+        int from = start;
+        while (pending > 0) {
+            int open = indexOf(xml, COMPONENT_OPEN, from, end);
+            if (open < 0) break;
+            int componentStart = open + COMPONENT_OPEN.length();
+            int componentEnd = indexOf(xml, COMPONENT_CLOSE, componentStart, end);
+            if (componentEnd < 0) break;
+            from = componentEnd + COMPONENT_CLOSE.length();
+
+            int type = componentType(xml, componentStart, componentEnd);
+            if (type < 0) continue;
+            GeocodeField field = COMPONENT_FIELDS[type];
+            if (!fields.contains(field)) continue;
+
+            String value = nonEmpty(elementText(xml, SHORT_NAME_OPEN, SHORT_NAME_CLOSE, componentStart, componentEnd));
+            if (type == LOCALITY_TYPE) {
+                // only a fallback for administrative_area_level_3, so not counted as found
+                if (locality == null) locality = value;
+                continue;
+            }
+
+            // first component of a type wins
+            if (value != null && get(gr, field) == null) {
+                set(gr, field, value);
+                pending--;
+            }
+        }
+        if (wantLocality && gr.getCity() == null) gr.setCity(locality);
+
+        gr.setCountryNameCode("");
+        gr.setBuildingSegmentName("");
+
+        if (fields.contains(GeocodeField.POSITION)) gr.setPosition(parseLocation(xml, from, end));
+        return gr;
+    }
+
+    private static String get(GeocodeResponse gr, GeocodeField field) {
+        switch (field) {
+            case BUILDING_NUMBER:   return gr.getBuildingNumberOrNull();
+            case STREET:            return gr.getStreet();
+            case LOCALITY:          return gr.getCity();
+            case COUNTY:            return gr.getCounty();
+            case STATE:             return gr.getState();
+            case COUNTRY:           return gr.getCountryName();
+            case POSTAL_CODE:       return gr.getPostalCode();
+            default:                return null;
+        }
+    }
+
+    private static void set(GeocodeResponse gr, GeocodeField field, String value) {
+        switch (field) {
+            case BUILDING_NUMBER:   gr.setBuildingNumber(value); break;
+            case STREET:            gr.setStreet(value); break;
+            case LOCALITY:          gr.setCity(value); break;
+            case COUNTY:            gr.setCounty(value); break;
+            case STATE:             gr.setState(value); break;
+            case COUNTRY:           gr.setCountryName(value); break;
+            case POSTAL_CODE:       gr.setPostalCode(value); break;
+            default:                break;
+        }
+    }
+
+    /**
+     * Match the first type of an address component against the mapped component types,
+     * comparing in place rather than extracting the type text.
+     *
+     * @return index into COMPONENT_TYPES, or -1 if the type is not mapped
+     */
+    private static int componentType(CharSequence xml, int from, int to) {
+        int start = indexOf(xml, TYPE_OPEN, from, to);
+        if (start < 0) return -1;
+        start += TYPE_OPEN.length();
+        int end = indexOf(xml, TYPE_CLOSE, start, to);
+        if (end < 0) return -1;
+
+        while (start < end && xml.charAt(start) <= ' ') start++;
+        while (end > start && xml.charAt(end - 1) <= ' ') end--;
+
+        for (int i = 0; i < COMPONENT_TYPES.length; i++) {
+            String candidate = COMPONENT_TYPES[i];
+            if (candidate.length() != end - start) continue;
+            int j = 0;
+            while (j < candidate.length() && xml.charAt(start + j) == candidate.charAt(j)) j++;
+            if (j == candidate.length()) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return geometry/location of the result, or null if absent or unparseable
+     */
+    private static LatLng parseLocation(CharSequence xml, int from, int end) {
+        int geometry = indexOf(xml, GEOMETRY_OPEN, from, end);
+        if (geometry < 0) return null;
+        int location = indexOf(xml, LOCATION_OPEN, geometry, end);
+        if (location < 0) return null;
+        int locationEnd = indexOf(xml, LOCATION_CLOSE, location, end);
+        if (locationEnd < 0) return null;
+
+        try {
+            double lat = elementNumber(xml, LAT_OPEN, LAT_CLOSE, location, locationEnd);
+            double lng = elementNumber(xml, LNG_OPEN, LNG_CLOSE, location, locationEnd);
+            return new LatLng(lat, lng);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return number in the first element with the given tags in [from, to), parsed in place
+     * @throws NumberFormatException if the element is absent or not a number
+     */
+    private static double elementNumber(CharSequence xml, String open, String close, int from, int to) {
+        int start = indexOf(xml, open, from, to);
+        if (start < 0) throw new NumberFormatException("missing " + open);
+        start += open.length();
+        int end = indexOf(xml, close, start, to);
+        if (end < 0) throw new NumberFormatException("missing " + close);
+        return LatLngCodec.parseCoordinate(xml, start, end);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Scanning utilities
+    // ------------------------------------------------------------------------------
+
+    /**
+     * @return trimmed, unescaped text of the first element with the given tags in [from, to),
+     *         or null if there is none
+     */
+    static String elementText(CharSequence xml, String open, String close, int from, int to) {
+        int start = indexOf(xml, open, from, to);
+        if (start < 0) return null;
+        start += open.length();
+        int end = indexOf(xml, close, start, to);
+        if (end < 0) return null;
+
+        while (start < end && xml.charAt(start) <= ' ') start++;
+        while (end > start && xml.charAt(end - 1) <= ' ') end--;
+        String text = (xml instanceof ResponseBuffer)
+                ? ((ResponseBuffer) xml).decode(start, end)
+                : xml.subSequence(start, end).toString();
+        return unescape(text);
+    }
+
+    /**
+     * @return index of <code>token</code> in [from, to), or -1
+     */
+    static int indexOf(CharSequence xml, String token, int from, int to) {
+        int last = to - token.length();
+        if (xml instanceof String) {
+            int found = ((String) xml).indexOf(token, from);
+            return (found >= 0 && found <= last) ? found : -1;
+        }
+        if (xml instanceof ResponseBuffer) return ((ResponseBuffer) xml).indexOf(token, from, to);
+        char first = token.charAt(0);
+        for (int i = from; i <= last; i++) {
+            if (xml.charAt(i) != first) continue;
+            int j = 1;
+            while (j < token.length() && xml.charAt(i + j) == token.charAt(j)) j++;
+            if (j == token.length()) return i;
+        }
+        return -1;
+    }
+
+    private static String nonEmpty(String value) {
+        return (value == null || value.length() == 0) ? null : value;
+    }
+
+    /**
+     * Replace the predefined XML entities and numeric character references.
+     */
+    static String unescape(String text) {
+        int amp = text.indexOf('&');
+        if (amp < 0) return text;
+
+        StringBuilder sb = new StringBuilder(text.length());
+        sb.append(text, 0, amp);
+        int i = amp;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            int semi = (c == '&') ? text.indexOf(';', i) : -1;
+            if (semi < 0) {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            String entity = text.substring(i + 1, semi);
+            if ("amp".equals(entity)) sb.append('&');
+            else if ("lt".equals(entity)) sb.append('<');
+            else if ("gt".equals(entity)) sb.append('>');
+            else if ("quot".equals(entity)) sb.append('"');
+            else if ("apos".equals(entity)) sb.append('\'');
+            else if (entity.startsWith("#")) appendCharacterReference(sb, entity, text, i, semi);
+            else sb.append(text, i, semi + 1);
+            i = semi + 1;
+        }
+        return sb.toString();
+    }
+
+    private static void appendCharacterReference(StringBuilder sb, String entity, String text, int start, int semi) {
+        try {
+            boolean hex = entity.length() > 1 && (entity.charAt(1) == 'x' || entity.charAt(1) == 'X');
+            sb.appendCodePoint(hex ? Integer.parseInt(entity.substring(2), 16) : Integer.parseInt(entity.substring(1)));
+        } catch (IllegalArgumentException e) {
+            // malformed reference, keep it verbatim
+            sb.append(text, start, semi + 1);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+/**
+ * Google V3 geocode service status codes, as reported in the <code>&lt;status&gt;</code>
+ * element of a response.
+ */
+public enum G3Status {
+
+    /** The geocode was successful and at least one result was returned. */
+    OK,
+    /** The geocode was successful but returned no results. */
+    ZERO_RESULTS,
+    /** The client is over its query quota. */
+    OVER_QUERY_LIMIT,
+    /** The request was denied, generally because of a bad client ID or signature. */
+    REQUEST_DENIED,
+    /** The query (address or latlng) is missing or malformed. */
+    INVALID_REQUEST,
+    /** A server error occurred; the request may succeed if tried again. */
+    UNKNOWN_ERROR,
+    /** A status value this class does not recognize. */
+    UNRECOGNIZED,
+    /** No response body was received, or it contained no status element. */
+    NO_RESPONSE;
+
+    private static final String STATUS_OPEN = "<status>";
+    private static final String STATUS_CLOSE = "</status>";
+    private static final G3Status[] VALUES = values();
+
+    /**
+     * Extract the status from a raw XML service response, without copying it.
+     *
+     * @param xmlResponse Google response, may be null
+     * @return status, never null
+     */
+    public static G3Status fromResponse(CharSequence xmlResponse) {
+        if (xmlResponse == null) return NO_RESPONSE;
+
+        int length = xmlResponse.length();
+        int start = G3ResponseParser.indexOf(xmlResponse, STATUS_OPEN, 0, length);
+        if (start < 0) return NO_RESPONSE;
+        start += STATUS_OPEN.length();
+
+        int end = G3ResponseParser.indexOf(xmlResponse, STATUS_CLOSE, start, length);
+        if (end < 0) return NO_RESPONSE;
+
+        while (start < end && xmlResponse.charAt(start) <= ' ') start++;
+        while (end > start && xmlResponse.charAt(end - 1) <= ' ') end--;
+        if (start == end) return NO_RESPONSE;
+        for (G3Status status : VALUES) {
+            if (regionEquals(xmlResponse, start, end, status.name())) return status;
+        }
+        return UNRECOGNIZED;
+    }
+
+    private static boolean regionEquals(CharSequence text, int start, int end, String name) {
+        if (end - start != name.length()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (text.charAt(start + i) != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Map a status code string (e.g. "ZERO_RESULTS") to its enum value.
+     *
+     * @param code status code
+     * @return status, never null
+     */
+    public static G3Status fromCode(String code) {
+        if (code == null || code.length() == 0) return NO_RESPONSE;
+        for (G3Status status : values()) {
+            if (status.name().equals(code)) return status;
+        }
+        return UNRECOGNIZED;
+    }
+}
@@ -59,7 +59,10 @@ public class G3UrlSigner {
     private static String urlString = "YOUR_URL_TO_SIGN";
 
     // This variable stores the binary key, which is computed from the string (Base64) key
-    private static byte[] key;
+    private final byte[] key;
+
+    // Mac.getInstance does a provider lookup on every call; each thread keeps an initialized Mac
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
 
 
     /**
@@ -115,12 +118,7 @@ public class G3UrlSigner {
         // Retrieve the proper URL components to sign
         String resource = path + '?' + query;
 
-        // Get an HMAC-SHA1 signing key from the raw key bytes
-        SecretKeySpec sha1Key = new SecretKeySpec(key, "HmacSHA1");
-
-        // Get an HMAC-SHA1 Mac instance and initialize it with the HMAC-SHA1 key
-        Mac mac = Mac.getInstance("HmacSHA1");
-        mac.init(sha1Key);
+        Mac mac = getMac();
 
         // compute the binary signature for the request
         byte[] sigBytes = mac.doFinal(resource.getBytes());
@@ -135,4 +133,21 @@ public class G3UrlSigner {
 
         return resource + "&signature=" + signature;
     }
+
+    /**
+     * @return this thread's HMAC-SHA1 Mac, initialized with the signing key
+     */
+    private Mac getMac() throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = macs.get();
+        if (mac == null) {
+            // Get an HMAC-SHA1 signing key from the raw key bytes
+            SecretKeySpec sha1Key = new SecretKeySpec(key, "HmacSHA1");
+
+            // Get an HMAC-SHA1 Mac instance and initialize it with the HMAC-SHA1 key
+            mac = Mac.getInstance("HmacSHA1");
+            mac.init(sha1Key);
+            macs.set(mac);
+        }
+        return mac;
+    }
 }
@@ -0,0 +1,338 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact, versioned binary encoding of {@link GeocodeResponse} and {@link LatLng}, for
+ * external caches and service-to-service transfer.
+ *
+ * <pre>
+ * LatLng:           version(1) lat(8) lng(8)
+ * GeocodeResponse:  version(1) presence(varint) field*
+ *
+ *   presence bit  field                    encoding
+ *   0             buildingNumber           varint length + UTF-8
+ *   1             buildingSegmentName      varint length + UTF-8
+ *   2             street                   varint length + UTF-8
+ *   3             township                 varint length + UTF-8
+ *   4             city                     varint length + UTF-8
+ *   5             county                   varint length + UTF-8
+ *   6             state                    varint length + UTF-8
+ *   7             countryName              varint length + UTF-8
+ *   8             countryNameCode          varint length + UTF-8
+ *   9             postalCode               varint length + UTF-8
+ *   10            position                 lat(8) lng(8), raw IEEE 754 doubles
+ *   11            buildingNumberLow        zig-zag varint
+ *   12            buildingNumberHigh       zig-zag varint
+ * </pre>
+ *
+ * Fields are written in bit order; absent (null) fields take no space. Empty strings are
+ * present with length zero, so null and "" survive a round trip distinctly. Doubles are
+ * big-endian, as ByteBuffer defaults. No reflection is involved.
+ */
+public final class GeocodeCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final int STRING_FIELDS = 10;
+    private static final int POSITION_BIT = 10;
+    private static final int LOW_BIT = 11;
+    private static final int HIGH_BIT = 12;
+
+    private GeocodeCodec() {
+    }
+
+    // ------------------------------------------------------------------------------
+    // LatLng
+    // ------------------------------------------------------------------------------
+
+    /**
+     * @param out destination; must have 17 bytes remaining
+     * @param position position to write
+     */
+    public static void writeLatLng(ByteBuffer out, LatLng position) {
+        out.put(VERSION);
+        out.putDouble(position.getLatitude());
+        out.putDouble(position.getLongitude());
+    }
+
+    /**
+     * @param in source, positioned at an encoded LatLng
+     * @return decoded position
+     * @throws IllegalArgumentException on an unsupported version
+     */
+    public static LatLng readLatLng(ByteBuffer in) {
+        checkVersion(in.get());
+        double lat = in.getDouble();
+        return new LatLng(lat, in.getDouble());
+    }
+
+    // ------------------------------------------------------------------------------
+    // GeocodeResponse
+    // ------------------------------------------------------------------------------
+
+    /**
+     * @param gr response
+     * @return exact number of bytes {@link #write(ByteBuffer, GeocodeResponse)} will produce
+     */
+    public static int encodedSize(GeocodeResponse gr) {
+        String[] strings = strings(gr);
+        int presence = presence(gr, strings);
+
+        int size = 1 + varintSize(presence);
+        for (String value : strings) {
+            if (value == null) continue;
+            int length = utf8Length(value);
+            size += varintSize(length) + length;
+        }
+        if ((presence & (1 << POSITION_BIT)) != 0) size += 16;
+        if ((presence & (1 << LOW_BIT)) != 0) size += varintSize(zigzag(gr.getBuildingNumberLow()));
+        if ((presence & (1 << HIGH_BIT)) != 0) size += varintSize(zigzag(gr.getBuildingNumberHigh()));
+        return size;
+    }
+
+    /**
+     * Encode a response.
+     *
+     * @param out destination; see {@link #encodedSize(GeocodeResponse)}
+     * @param gr response to write
+     * @throws java.nio.BufferOverflowException if <code>out</code> is too small
+     */
+    public static void write(ByteBuffer out, GeocodeResponse gr) {
+        String[] strings = strings(gr);
+        int presence = presence(gr, strings);
+
+        out.put(VERSION);
+        writeVarint(out, presence);
+        for (String value : strings) {
+            if (value != null) writeString(out, value);
+        }
+        if ((presence & (1 << POSITION_BIT)) != 0) {
+            out.putDouble(gr.getLatitude());
+            out.putDouble(gr.getLongitude());
+        }
+        if ((presence & (1 << LOW_BIT)) != 0) writeVarint(out, zigzag(gr.getBuildingNumberLow()));
+        if ((presence & (1 << HIGH_BIT)) != 0) writeVarint(out, zigzag(gr.getBuildingNumberHigh()));
+    }
+
+    /**
+     * @param gr response
+     * @return encoded bytes
+     */
+    public static byte[] encode(GeocodeResponse gr) {
+        byte[] bytes = new byte[encodedSize(gr)];
+        write(ByteBuffer.wrap(bytes), gr);
+        return bytes;
+    }
+
+    /**
+     * Decode a response.
+     *
+     * @param in source, positioned at an encoded response; advanced past it
+     * @return mutable response
+     * @throws IllegalArgumentException on an unsupported version or malformed data
+     * @throws BufferUnderflowException if the encoding is truncated
+     */
+    public static GeocodeResponse read(ByteBuffer in) {
+        checkVersion(in.get());
+        int presence = readVarint(in);
+
+        String[] strings = new String[STRING_FIELDS];
+        for (int i = 0; i < STRING_FIELDS; i++) {
+            if ((presence & (1 << i)) != 0) strings[i] = readString(in);
+        }
+
+        GeocodeResponse gr = new GeocodeResponse(strings[0], strings[1], strings[2], strings[3], strings[4],
+                strings[6], strings[7], strings[8], strings[9]);
+        gr.setCounty(strings[5]);
+
+        if ((presence & (1 << POSITION_BIT)) != 0) {
+            double lat = in.getDouble();
+            gr.setPosition(new LatLng(lat, in.getDouble()));
+        }
+        if ((presence & (1 << LOW_BIT)) != 0) gr.setBuildingNumberLow(unzigzag(readVarint(in)));
+        if ((presence & (1 << HIGH_BIT)) != 0) gr.setBuildingNumberHigh(unzigzag(readVarint(in)));
+        return gr;
+    }
+
+    /**
+     * Decode a response straight into compact form.
+     *
+     * @param in source, positioned at an encoded response
+     * @param pool pool for string values
+     * @return compact response
+     */
+    public static CompactGeocodeResponse readCompact(ByteBuffer in, GeocodeStringPool pool) {
+        return CompactGeocodeResponse.of(read(in), pool);
+    }
+
+    /**
+     * @param bytes encoded response
+     * @return mutable response
+     */
+    public static GeocodeResponse decode(byte[] bytes) {
+        return read(ByteBuffer.wrap(bytes));
+    }
+
+    // ------------------------------------------------------------------------------
+    // Field layout
+    // ------------------------------------------------------------------------------
+
+    private static String[] strings(GeocodeResponse gr) {
+        return new String[] {
+                gr.getBuildingNumberOrNull(), gr.getBuildingSegmentName(), gr.getStreet(), gr.getTownship(),
+                gr.getCity(), gr.getCounty(), gr.getState(), gr.getCountryName(), gr.getCountryNameCode(),
+                gr.getPostalCode() };
+    }
+
+    private static int presence(GeocodeResponse gr, String[] strings) {
+        int presence = 0;
+        for (int i = 0; i < strings.length; i++) {
+            if (strings[i] != null) presence |= 1 << i;
+        }
+        if (gr.hasPosition()) presence |= 1 << POSITION_BIT;
+        if (gr.getBuildingNumberLow() != null) presence |= 1 << LOW_BIT;
+        if (gr.getBuildingNumberHigh() != null) presence |= 1 << HIGH_BIT;
+        return presence;
+    }
+
+    private static void checkVersion(byte version) {
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported encoding version " + version);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Primitive encodings
+    // ------------------------------------------------------------------------------
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void writeVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Write varint byte length and UTF-8 bytes directly into the buffer. Unpaired surrogates
+     * are written as '?', matching String.getBytes.
+     */
+    static void writeString(ByteBuffer out, String value) {
+        writeVarint(out, utf8Length(value));
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = readVarint(in);
+        if (length < 0) throw new IllegalArgumentException("Malformed string length");
+        if (length > in.remaining()) throw new BufferUnderflowException();
+        if (in.hasArray()) {
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,78 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.Locale;
+
+/**
+ * Canonical cache and deduplication keys for geocode inputs. The request itself is not
+ * normalized: two addresses with the same key may still be sent with different case or
+ * spacing. They are treated as one input on the assumption that Google answers both the
+ * same, which holds for case and whitespace but is not guaranteed.
+ */
+public final class GeocodeKeys {
+
+    private GeocodeKeys() {
+    }
+
+    /**
+     * Address key: trimmed, lower case, internal whitespace collapsed to one space.
+     *
+     * @param address free-form address
+     * @return key
+     */
+    public static String forward(String address) {
+        StringBuilder strb = new StringBuilder(address.length() + 2).append("a:");
+        boolean space = false;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = strb.length() > 2;
+            } else {
+                if (space) strb.append(' ');
+                space = false;
+                strb.append(c);
+            }
+        }
+        return strb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Position key, using the same decimal form as the reverse request.
+     *
+     * @param lat latitude
+     * @param lng longitude
+     * @return key
+     */
+    public static String reverse(double lat, double lng) {
+        return new StringBuilder(48).append("l:").append(lat).append(',').append(lng).toString();
+    }
+}
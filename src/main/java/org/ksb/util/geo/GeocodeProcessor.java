@@ -0,0 +1,311 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stream stage that geocodes each item it receives: address Strings are forward geocoded,
+ * LatLng items reverse geocoded. Each input yields exactly one {@link GeocodeResult}; lookup
+ * failures are carried in the result rather than terminating the stream.
+ *
+ * Demand is strictly propagated. Items are only requested from upstream when the downstream
+ * subscriber has outstanding demand for them and fewer than <code>maxConcurrency</code>
+ * lookups are in flight, so the stage never holds more than <code>maxConcurrency</code>
+ * items, however slow the sink.
+ *
+ * In ordered mode results are emitted in input order; a slow lookup holds back the results
+ * behind it. In unordered mode results are emitted as soon as they complete.
+ *
+ * Supports a single downstream subscriber. Lookups run on the supplied executor, which the
+ * caller owns.
+ *
+ * @param <T> input type, String or LatLng
+ */
+public class GeocodeProcessor<T> implements Flow.Processor<T, GeocodeResult<T>> {
+
+    private final IGeocoder geocoder;
+    private final Executor executor;
+    private final int maxConcurrency;
+    private final boolean ordered;
+
+    // guarded by this
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super GeocodeResult<T>> downstream;
+    private boolean downstreamReady = false;
+    private long demand = 0;
+    private long upstreamOutstanding = 0;
+    private int inFlight = 0;
+    private long nextSequence = 0;
+    private long nextEmitSequence = 0;
+    private final Object[] reorder;
+    private final ArrayDeque<GeocodeResult<T>> ready;
+    private boolean upstreamDone = false;
+    private Throwable upstreamError = null;
+    private Throwable downstreamError = null;
+    private boolean terminated = false;
+    private boolean cancelled = false;
+
+    private final AtomicInteger wip = new AtomicInteger();
+
+    /**
+     * @param geocoder geocoder to apply to each item
+     * @param executor runs lookups; should allow at least <code>maxConcurrency</code> concurrent tasks
+     * @param maxConcurrency maximum lookups in flight
+     * @param ordered true to emit results in input order
+     */
+    public GeocodeProcessor(IGeocoder geocoder, Executor executor, int maxConcurrency, boolean ordered) {
+        if (geocoder == null || executor == null) throw new NullPointerException();
+        if (maxConcurrency < 1) throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        this.geocoder = geocoder;
+        this.executor = executor;
+        this.maxConcurrency = maxConcurrency;
+        this.ordered = ordered;
+        this.reorder = ordered ? new Object[maxConcurrency] : null;
+        this.ready = ordered ? null : new ArrayDeque<GeocodeResult<T>>(maxConcurrency);
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Flow.Publisher (downstream) methods
+    // ------------------------------------------------------------------------------
+
+    public void subscribe(Flow.Subscriber<? super GeocodeResult<T>> subscriber) {
+        if (subscriber == null) throw new NullPointerException();
+        boolean accepted;
+        synchronized (this) {
+            accepted = (downstream == null);
+            if (accepted) downstream = subscriber;
+        }
+        if (!accepted) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) { }
+                public void cancel() { }
+            });
+            subscriber.onError(new IllegalStateException("GeocodeProcessor supports a single subscriber"));
+            return;
+        }
+
+        subscriber.onSubscribe(new DownstreamSubscription());
+        synchronized (this) {
+            downstreamReady = true;
+        }
+        drain();
+    }
+
+    private class DownstreamSubscription implements Flow.Subscription {
+
+        public void request(long n) {
+            synchronized (GeocodeProcessor.this) {
+                if (n <= 0) {
+                    downstreamError = new IllegalArgumentException("request must be positive, was " + n);
+                } else {
+                    demand += n;
+                    if (demand < 0) demand = Long.MAX_VALUE;
+                }
+            }
+            drain();
+        }
+
+        public void cancel() {
+            Flow.Subscription s;
+            synchronized (GeocodeProcessor.this) {
+                cancelled = true;
+                s = upstream;
+            }
+            if (s != null) s.cancel();
+            drain();
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Flow.Subscriber (upstream) methods
+    // ------------------------------------------------------------------------------
+
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (subscription == null) throw new NullPointerException();
+        boolean accepted;
+        synchronized (this) {
+            accepted = (upstream == null && !cancelled);
+            if (accepted) upstream = subscription;
+        }
+        if (!accepted) {
+            subscription.cancel();
+            return;
+        }
+        drain();
+    }
+
+    public void onNext(final T item) {
+        if (item == null) throw new NullPointerException();
+        final long sequence;
+        synchronized (this) {
+            if (upstreamDone || cancelled) return;
+            upstreamOutstanding--;
+            inFlight++;
+            sequence = nextSequence++;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    complete(sequence, GeocodeResult.geocode(geocoder, item));
+                }
+            });
+        } catch (RuntimeException e) {
+            complete(sequence, new GeocodeResult<T>(item, null, e));
+        }
+    }
+
+    public void onError(Throwable throwable) {
+        if (throwable == null) throw new NullPointerException();
+        synchronized (this) {
+            if (upstreamDone) return;
+            upstreamDone = true;
+            upstreamError = throwable;
+        }
+        drain();
+    }
+
+    public void onComplete() {
+        synchronized (this) {
+            upstreamDone = true;
+        }
+        drain();
+    }
+
+    // ------------------------------------------------------------------------------
+    // Emission
+    // ------------------------------------------------------------------------------
+
+    private void complete(long sequence, GeocodeResult<T> result) {
+        synchronized (this) {
+            if (ordered) {
+                reorder[(int) (sequence % maxConcurrency)] = result;
+            } else {
+                ready.add(result);
+            }
+        }
+        drain();
+    }
+
+    @SuppressWarnings("unchecked")
+    private GeocodeResult<T> pollReady() {
+        if (ordered) {
+            int slot = (int) (nextEmitSequence % maxConcurrency);
+            GeocodeResult<T> result = (GeocodeResult<T>) reorder[slot];
+            if (result != null) {
+                reorder[slot] = null;
+                nextEmitSequence++;
+            }
+            return result;
+        }
+        return ready.poll();
+    }
+
+    /**
+     * Serialized emission loop. Whichever thread wins the work-in-progress counter emits
+     * ready results, delivers terminal signals and requests more from upstream; other
+     * threads just flag that another pass is needed.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) return;
+
+        int missed = 1;
+        while (true) {
+            while (true) {
+                Flow.Subscriber<? super GeocodeResult<T>> subscriber;
+                GeocodeResult<T> next = null;
+                Throwable error = null;
+                boolean complete = false;
+                Flow.Subscription requestFrom = null;
+                long toRequest = 0;
+
+                synchronized (this) {
+                    subscriber = downstream;
+                    if (subscriber == null || !downstreamReady || terminated) break;
+
+                    if (cancelled) {
+                        terminated = true;
+                        if (ready != null) ready.clear();
+                        break;
+                    }
+                    if (downstreamError != null) {
+                        terminated = true;
+                        error = downstreamError;
+                        requestFrom = upstream;
+                    } else if (demand > 0 && (next = pollReady()) != null) {
+                        demand--;
+                        inFlight--;
+                    } else if (upstreamDone && inFlight == 0) {
+                        terminated = true;
+                        error = upstreamError;
+                        complete = (error == null);
+                    } else if (!upstreamDone && upstream != null) {
+                        long capacity = Math.min((long) maxConcurrency, demand) - inFlight - upstreamOutstanding;
+                        if (capacity > 0) {
+                            upstreamOutstanding += capacity;
+                            requestFrom = upstream;
+                            toRequest = capacity;
+                        }
+                    }
+                }
+
+                if (next != null) {
+                    subscriber.onNext(next);
+                } else if (error != null) {
+                    if (requestFrom != null) requestFrom.cancel();
+                    subscriber.onError(error);
+                    break;
+                } else if (complete) {
+                    subscriber.onComplete();
+                    break;
+                } else if (toRequest > 0) {
+                    requestFrom.request(toRequest);
+                } else {
+                    break;
+                }
+            }
+
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) return;
+        }
+    }
+}
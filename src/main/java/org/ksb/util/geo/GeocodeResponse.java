@@ -34,9 +34,17 @@ package org.ksb.util.geo;
 /**
  * Describes the information returned from forward or reverse geocode lookup.
  *
+ * The position is stored as two doubles, not as a LatLng. {@link #setPosition(LatLng)}
+ * copies the coordinates, and {@link #getPosition()} returns a new LatLng on each call, so
+ * changing the returned object does not change the response; call setPosition instead.
+ * Use {@link #getLatitude()} and {@link #getLongitude()} to read the position without
+ * allocating.
  */
 public class GeocodeResponse {
 
+    /** Stored in place of a building number bound that is not set. */
+    private static final int NO_NUMBER = Integer.MIN_VALUE;
+
     private String  countryName;
     private String  countryNameCode;
     private String  state;
@@ -45,11 +53,13 @@ public class GeocodeResponse {
     private String  township;
     private String  street;
     private String  buildingNumber;
-    private Integer buildingNumberHigh;
-    private Integer buildingNumberLow;
+    private int     buildingNumberHigh = NO_NUMBER;
+    private int     buildingNumberLow = NO_NUMBER;
     private String  buildingSegmentName;
     private String  postalCode;
-    private LatLng  position;
+    // held inline rather than as a LatLng; NaN when there is no position
+    private double  latitude = Double.NaN;
+    private double  longitude = Double.NaN;
 
     /**
      * Default Constructor
@@ -96,7 +106,7 @@ public class GeocodeResponse {
     public String getBuildingNumber() {
         if (this.buildingNumber != null) {
             return this.buildingNumber;
-        } else if (buildingNumberHigh != null && buildingNumberLow != null) {
+        } else if (buildingNumberHigh != NO_NUMBER && buildingNumberLow != NO_NUMBER) {
             StringBuilder sb = new StringBuilder();
             sb.append(buildingNumberLow).append("-").append(buildingNumberHigh);
             return sb.toString();
@@ -105,6 +115,13 @@ public class GeocodeResponse {
         }
     }
 
+    /**
+     * @return the specific building number, or null if none was set
+     */
+    String getBuildingNumberOrNull() {
+        return this.buildingNumber;
+    }
+
     public void setBuildingSegmentName(String buildingSegmentName) {
         this.buildingSegmentName = buildingSegmentName;
     }
@@ -173,12 +190,35 @@ public class GeocodeResponse {
         return this.postalCode;
     }
 
+    /**
+     * @param position position whose coordinates are copied, or null for none; the object
+     *        itself is not kept
+     */
     public void setPosition(LatLng position) {
-        this.position = position;
+        this.latitude = (position != null) ? position.getLatitude() : Double.NaN;
+        this.longitude = (position != null) ? position.getLongitude() : Double.NaN;
     }
 
+    /**
+     * @return a new LatLng for the position on each call, or null if there is none;
+     *         changing it does not change this response
+     */
     public LatLng getPosition() {
-        return this.position;
+        return hasPosition() ? new LatLng(latitude, longitude) : null;
+    }
+
+    public boolean hasPosition() {
+        return !Double.isNaN(latitude);
+    }
+
+    /** @return latitude, or NaN if there is no position */
+    public double getLatitude() {
+        return latitude;
+    }
+
+    /** @return longitude, or NaN if there is no position */
+    public double getLongitude() {
+        return longitude;
     }
 
     /**
@@ -206,27 +246,27 @@ public class GeocodeResponse {
      * @return the buildingNumberHigh
      */
     public Integer getBuildingNumberHigh() {
-        return buildingNumberHigh;
+        return (buildingNumberHigh != NO_NUMBER) ? Integer.valueOf(buildingNumberHigh) : null;
     }
 
     /**
      * @param buildingNumberHigh the buildingNumberHigh to set
      */
     public void setBuildingNumberHigh(Integer buildingNumberHigh) {
-        this.buildingNumberHigh = buildingNumberHigh;
+        this.buildingNumberHigh = (buildingNumberHigh != null) ? buildingNumberHigh : NO_NUMBER;
     }
 
     /**
      * @return the buildingNumberLow
      */
     public Integer getBuildingNumberLow() {
-        return buildingNumberLow;
+        return (buildingNumberLow != NO_NUMBER) ? Integer.valueOf(buildingNumberLow) : null;
     }
 
     /**
      * @param buildingNumberLow the buildingNumberLow to set
      */
     public void setBuildingNumberLow(Integer buildingNumberLow) {
-        this.buildingNumberLow = buildingNumberLow;
+        this.buildingNumberLow = (buildingNumberLow != null) ? buildingNumberLow : NO_NUMBER;
     }
 }
@@ -0,0 +1,260 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-memory cache of successful geocodes, keyed by {@link GeocodeKeys}. Values are
+ * stored as immutable {@link CompactGeocodeResponse}s with pooled strings.
+ *
+ * The cache can be written to a snapshot (for example from a shutdown hook) and bulk-loaded
+ * at startup, so a restarted process does not begin cold. Snapshot entries are encoded
+ * with {@link GeocodeCodec}.
+ *
+ * When full, an arbitrary entry is evicted to make room; this is a warm-start and
+ * deduplication cache, not an LRU.
+ */
+public class GeocodeResponseCache {
+
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    private static final int MAGIC = 0x47335243;    // "G3RC"
+    private static final int VERSION = 1;
+
+    private final ConcurrentHashMap<String, CompactGeocodeResponse> entries;
+    private final int capacity;
+    private final GeocodeStringPool pool;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public GeocodeResponseCache() {
+        this(DEFAULT_CAPACITY, GeocodeStringPool.shared());
+    }
+
+    /**
+     * @param capacity maximum number of entries
+     * @param pool pool for response strings
+     */
+    public GeocodeResponseCache(int capacity, GeocodeStringPool pool) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.pool = pool;
+        this.entries = new ConcurrentHashMap<String, CompactGeocodeResponse>(Math.min(capacity, 1 << 16));
+    }
+
+    /**
+     * @param key canonical input key
+     * @return cached response, or null
+     */
+    public GeocodeResponse get(String key) {
+        CompactGeocodeResponse gr = entries.get(key);
+        if (gr != null) hits.increment(); else misses.increment();
+        return gr;
+    }
+
+    /**
+     * @param key canonical input key
+     * @param response response to cache
+     * @return the immutable cached copy
+     */
+    public GeocodeResponse put(String key, GeocodeResponse response) {
+        CompactGeocodeResponse compact = CompactGeocodeResponse.of(response, pool);
+        if (entries.size() >= capacity && !entries.containsKey(key)) evict();
+        entries.put(key, compact);
+        return compact;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private void evict() {
+        Iterator<String> keys = entries.keySet().iterator();
+        while (entries.size() >= capacity && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Snapshots
+    // ------------------------------------------------------------------------------
+
+    /**
+     * Write every entry. Concurrent updates may or may not be included.
+     *
+     * @param stream destination; not closed
+     * @return number of entries written
+     * @throws IOException on write failure
+     */
+    public int save(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int count = 0;
+        for (Map.Entry<String, CompactGeocodeResponse> e : entries.entrySet()) {
+            int size = GeocodeCodec.encodedSize(e.getValue());
+            if (size > buffer.capacity()) buffer = ByteBuffer.allocate(size);
+            buffer.clear();
+            GeocodeCodec.write(buffer, e.getValue());
+
+            out.writeBoolean(true);
+            out.writeUTF(e.getKey());
+            out.writeInt(size);
+            out.write(buffer.array(), 0, size);
+            count++;
+        }
+        out.writeBoolean(false);
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Snapshot to a file, replacing it atomically.
+     *
+     * @param file destination
+     * @return number of entries written
+     * @throws IOException on write failure
+     */
+    public int save(File file) throws IOException {
+        File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        int count;
+        try {
+            count = save(out);
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * Bulk-load a snapshot into this cache, up to its capacity.
+     *
+     * @param stream source written by {@link #save(OutputStream)}; not closed
+     * @return number of entries loaded
+     * @throws IOException on read failure or unrecognized data
+     */
+    public int load(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 65536));
+        if (in.readInt() != MAGIC) throw new IOException("Not a geocode cache snapshot");
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("Unsupported snapshot version " + version);
+
+        byte[] bytes = new byte[1024];
+        int count = 0;
+        while (in.readBoolean()) {
+            String key = in.readUTF();
+            int size = in.readInt();
+            if (size < 0) throw new IOException("Malformed snapshot entry");
+            if (size > bytes.length) bytes = new byte[size];
+            in.readFully(bytes, 0, size);
+            if (entries.size() >= capacity) continue;
+            try {
+                entries.put(key, GeocodeCodec.readCompact(ByteBuffer.wrap(bytes, 0, size), pool));
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed snapshot entry for " + key, e);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param file snapshot written by {@link #save(File)}
+     * @return number of entries loaded
+     * @throws IOException on read failure or unrecognized data
+     */
+    public int load(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Snapshot to a file when the JVM shuts down.
+     *
+     * @param file destination
+     * @return the registered hook, for <code>Runtime.removeShutdownHook</code>
+     */
+    public Thread saveOnShutdown(final File file) {
+        Thread hook = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    save(file);
+                } catch (IOException e) {
+                    System.err.println("Unable to save geocode cache snapshot " + file + ": " + e);
+                }
+            }
+        }, "geocode-cache-snapshot");
+        Runtime.getRuntime().addShutdownHook(hook);
+        return hook;
+    }
+}
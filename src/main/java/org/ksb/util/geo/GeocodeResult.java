@@ -0,0 +1,94 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+/**
+ * Outcome of geocoding one input: the input itself, the response (null when the service
+ * returned no result) and the exception, if the lookup failed.
+ *
+ * @param <T> input type, typically an address String or a LatLng
+ */
+public class GeocodeResult<T> {
+
+    private final T input;
+    private final GeocodeResponse response;
+    private final Throwable error;
+
+    public GeocodeResult(T input, GeocodeResponse response, Throwable error) {
+        this.input = input;
+        this.response = response;
+        this.error = error;
+    }
+
+    public T getInput() {
+        return input;
+    }
+
+    /**
+     * @return response, or null if there was no result or the lookup failed
+     */
+    public GeocodeResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * @return failure cause, or null if the lookup completed
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return response != null && error == null;
+    }
+
+    /**
+     * Geocode a single input, capturing any exception in the result.
+     *
+     * @param geocoder geocoder to use
+     * @param input address String or LatLng
+     * @param <T> input type
+     * @return result, never null
+     */
+    public static <T> GeocodeResult<T> geocode(IGeocoder geocoder, T input) {
+        try {
+            GeocodeResponse response;
+            if (input instanceof LatLng) {
+                response = geocoder.getReverseGeocode((LatLng) input);
+            } else {
+                response = geocoder.getForwardGeocode(String.valueOf(input));
+            }
+            return new GeocodeResult<T>(input, response, null);
+        } catch (Exception e) {
+            return new GeocodeResult<T>(input, null, e);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * All results of a geocode request, in service order, decoded lazily.
+ *
+ * The first result is decoded when the list is created. The others are decoded from offsets
+ * into the retained response text the first time they are accessed, and then cached. Each
+ * element holds values from its own result only.
+ *
+ * The list is read-only and safe for concurrent access. It keeps the raw response text
+ * reachable for as long as the list is.
+ */
+public class GeocodeResults extends AbstractList<GeocodeResponse> implements RandomAccess {
+
+    private final G3Status status;
+    private final CharSequence xml;
+    private final int[] bounds;
+    private final LatLng defaultPosition;
+    private final G3GeocoderMetrics metrics;
+    private final AtomicReferenceArray<GeocodeResponse> decoded;
+
+    /**
+     * @param status service status of the response
+     * @param xml raw response text
+     * @param bounds result content offsets, as from G3ResponseParser.resultBounds
+     * @param defaultPosition position for results without a location, or null
+     * @param metrics metrics to record decode time against, or null
+     */
+    GeocodeResults(G3Status status, CharSequence xml, int[] bounds, LatLng defaultPosition, G3GeocoderMetrics metrics) {
+        this.status = status;
+        this.xml = xml;
+        this.bounds = bounds;
+        this.defaultPosition = defaultPosition;
+        this.metrics = metrics;
+        this.decoded = new AtomicReferenceArray<GeocodeResponse>(bounds.length / 2);
+        if (bounds.length > 0) get(0);
+    }
+
+    /**
+     * @param status non-OK service status
+     * @return empty results carrying the status
+     */
+    static GeocodeResults empty(G3Status status) {
+        return new GeocodeResults(status, "", new int[0], null, null);
+    }
+
+    /**
+     * @return service status of the response
+     */
+    public G3Status getStatus() {
+        return status;
+    }
+
+    @Override
+    public int size() {
+        return bounds.length / 2;
+    }
+
+    /**
+     * @return the first result, or null if there are none
+     */
+    public GeocodeResponse first() {
+        return isEmpty() ? null : get(0);
+    }
+
+    /**
+     * @param index result index
+     * @return result, decoded on first access
+     */
+    @Override
+    public GeocodeResponse get(int index) {
+        if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+
+        GeocodeResponse gr = decoded.get(index);
+        if (gr != null) return gr;
+
+        G3GeocoderEvents.Map event = new G3GeocoderEvents.Map();
+        event.begin();
+        long start = System.nanoTime();
+        gr = G3ResponseParser.parseResult(xml, bounds[index * 2], bounds[index * 2 + 1]);
+        if (gr.getPosition() == null && defaultPosition != null) {
+            gr.setPosition(new LatLng(defaultPosition.getLatitude(), defaultPosition.getLongitude()));
+        }
+        if (metrics != null) metrics.recordStage(G3GeocoderMetrics.Stage.MAP, start);
+        event.complete(index, G3GeocoderEvents.ALL_FIELDS);
+
+        // publish once; a racing decoder's copy is discarded
+        if (!decoded.compareAndSet(index, null, gr)) gr = decoded.get(index);
+        return gr;
+    }
+
+    /**
+     * @return number of results decoded so far
+     */
+    public int getDecodedCount() {
+        int n = 0;
+        for (int i = 0; i < decoded.length(); i++) {
+            if (decoded.get(i) != null) n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,92 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded, thread-safe string pool used to share repeated response values (country, state,
+ * county, city ...) between many responses.
+ *
+ * Unlike <code>String.intern()</code> the pool is private and has a fixed capacity: once full,
+ * values not already pooled are returned as-is, so a high-cardinality field cannot grow the
+ * pool without bound.
+ */
+public class GeocodeStringPool {
+
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    private static final GeocodeStringPool SHARED = new GeocodeStringPool(DEFAULT_CAPACITY);
+
+    private final ConcurrentHashMap<String, String> pool;
+    private final int capacity;
+
+    /**
+     * @param capacity maximum number of distinct values to hold
+     */
+    public GeocodeStringPool(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("capacity must not be negative");
+        this.capacity = capacity;
+        this.pool = new ConcurrentHashMap<String, String>(Math.min(capacity, 1024));
+    }
+
+    /**
+     * @return JVM-wide pool with {@link #DEFAULT_CAPACITY}
+     */
+    public static GeocodeStringPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param value string to canonicalize, may be null
+     * @return the pooled instance equal to <code>value</code>, or <code>value</code> itself
+     */
+    public String intern(String value) {
+        if (value == null) return null;
+        String pooled = pool.get(value);
+        if (pooled != null) return pooled;
+        if (pool.size() >= capacity) return value;
+        pooled = pool.putIfAbsent(value, value);
+        return pooled != null ? pooled : value;
+    }
+
+    public int size() {
+        return pool.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void clear() {
+        pool.clear();
+    }
+}
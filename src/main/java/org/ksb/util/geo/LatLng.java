@@ -31,7 +31,6 @@
 package org.ksb.util.geo;
 
 import java.io.Serializable;
-import java.text.NumberFormat;
 
 /**
  * Latitude and longitude of a geopoint.
@@ -72,17 +71,13 @@ public class LatLng implements Serializable {
      * String Constructor
      *
      * @param latlng String with 2, comma-separated doubles
+     * @see LatLngCodec#parse(CharSequence)
      */
     public LatLng(String latlng) {
         super();
-        String[] parts = latlng.split(",");
-        if (parts.length != 2)
-            throw new IllegalArgumentException(
-                    "Expected latlng to be in format 'lat,lon' but found ["
-                            + latlng + "]");
-
-        this.latitude = Double.parseDouble(parts[0]);
-        this.longitude = Double.parseDouble(parts[1]);
+        int comma = LatLngCodec.separator(latlng, 0, latlng.length());
+        this.latitude = LatLngCodec.parseCoordinate(latlng, 0, comma);
+        this.longitude = LatLngCodec.parseCoordinate(latlng, comma + 1, latlng.length());
     }
 
     /**
@@ -92,16 +87,15 @@ public class LatLng implements Serializable {
      * @param lng String
      */
     public LatLng(String lat, String lng) {
-        this.latitude = Double.parseDouble(lat);
-        this.longitude = Double.parseDouble(lng);
+        this.latitude = LatLngCodec.parseCoordinate(lat, 0, lat.length());
+        this.longitude = LatLngCodec.parseCoordinate(lng, 0, lng.length());
     }
 
+    /**
+     * @return <code>lat,lng</code> to 5 decimal places, trailing zeros dropped
+     */
     public String toString() {
-        NumberFormat format = NumberFormat.getNumberInstance();
-        format.setMaximumFractionDigits(5);
-
-        return new StringBuilder().append(format.format(latitude)).append(',')
-                .append(format.format(longitude)).toString();
+        return LatLngCodec.append(new StringBuilder(24), latitude, longitude, 5).toString();
     }
 
     // From http://www.cs.jhu.edu/~jason/226/hw10/source/geography/Point.java
@@ -123,9 +117,16 @@ public class LatLng implements Serializable {
      * the poles.
      */
     public double distanceTo(LatLng p) {
+        return distance(latitude, longitude, p.latitude, p.longitude);
+    }
+
+    /**
+     * {@link #distanceTo(LatLng)} on raw coordinates, for callers holding flat arrays.
+     */
+    static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
         // WARNING: These two lines of code are duplicated in another method.
-        double lat1 = radians(latitude), lat2 = radians(p.latitude), dlat = lat2  - lat1;
-        double dlong = radians(p.longitude) - radians(longitude);
+        double lat1 = radians(latitude1), lat2 = radians(latitude2), dlat = lat2  - lat1;
+        double dlong = radians(longitude2) - radians(longitude1);
 
         // Formula from http://williams.best.vwh.net/avform.htm#Dist
         // See http://mathforum.org/library/drmath/view/51879.html for a
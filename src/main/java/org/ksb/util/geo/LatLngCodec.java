@@ -0,0 +1,320 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses and formats <code>lat,lng</code> text without intermediate Strings. Parsing reads
+ * straight from a {@link CharSequence} or byte range into doubles; formatting writes fixed
+ * precision digits into a caller's {@link StringBuilder} or byte buffer.
+ *
+ * Numbers of up to 18 significant digits are parsed exactly (the same double as
+ * {@link Double#parseDouble(String)}); anything else, including NaN, hex and overlong input,
+ * is handed to {@link Double#parseDouble(String)}.
+ */
+public final class LatLngCodec {
+
+    /** Most fraction digits {@link #append(StringBuilder, double, int)} will write. */
+    public static final int MAX_DECIMALS = 9;
+
+    /** Longest text {@link #format(double, double, int, byte[], int)} can write. */
+    public static final int MAX_PAIR_LENGTH = 49;
+
+    /** Magnitudes at or above this are written by Double.toString rather than in fixed point. */
+    private static final double FIXED_LIMIT = 1e9;
+
+    /** Largest mantissa that converts to a double exactly. */
+    private static final long EXACT_MANTISSA = 1L << 53;
+
+    private static final double[] POWERS = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static final long[] LONG_POWERS = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
+    private LatLngCodec() {
+    }
+
+    // ------------------------------------------------------------------------------
+    // Parsing
+    // ------------------------------------------------------------------------------
+
+    /**
+     * @param text <code>lat,lng</code>, optionally with whitespace around either number
+     * @return position
+     * @throws IllegalArgumentException if the text is not two comma-separated numbers
+     */
+    public static LatLng parse(CharSequence text) {
+        int comma = separator(text, 0, text.length());
+        return new LatLng(parseCoordinate(text, 0, comma), parseCoordinate(text, comma + 1, text.length()));
+    }
+
+    /**
+     * Parse the pair in [start, end) into <code>out[offset]</code> (latitude) and
+     * <code>out[offset + 1]</code> (longitude).
+     *
+     * @throws IllegalArgumentException if the range is not two comma-separated numbers
+     */
+    public static void parse(CharSequence text, int start, int end, double[] out, int offset) {
+        int comma = separator(text, start, end);
+        out[offset] = parseCoordinate(text, start, comma);
+        out[offset + 1] = parseCoordinate(text, comma + 1, end);
+    }
+
+    /**
+     * Parse an ASCII/UTF-8 encoded pair in [start, end); see
+     * {@link #parse(CharSequence, int, int, double[], int)}.
+     */
+    public static void parse(byte[] text, int start, int end, double[] out, int offset) {
+        int comma = separator(text, start, end);
+        out[offset] = parseCoordinate(text, start, comma);
+        out[offset + 1] = parseCoordinate(text, comma + 1, end);
+    }
+
+    /**
+     * @return the number in [start, end), surrounding whitespace ignored
+     * @throws NumberFormatException if the range is not a number
+     */
+    public static double parseCoordinate(CharSequence text, int start, int end) {
+        return parseNumber(text, start, end);
+    }
+
+    /**
+     * @return the ASCII/UTF-8 encoded number in [start, end), surrounding whitespace ignored
+     * @throws NumberFormatException if the range is not a number
+     */
+    public static double parseCoordinate(byte[] text, int start, int end) {
+        return parseNumber(text, start, end);
+    }
+
+    /**
+     * @return index of the only comma in [start, end)
+     * @throws IllegalArgumentException if there is not exactly one
+     */
+    static int separator(Object text, int start, int end) {
+        int comma = -1;
+        for (int i = start; i < end; i++) {
+            if (charAt(text, i) == ',') {
+                if (comma >= 0) throw malformed(text, start, end);
+                comma = i;
+            }
+        }
+        if (comma < 0) throw malformed(text, start, end);
+        return comma;
+    }
+
+    private static double parseNumber(Object text, int start, int end) {
+        while (start < end && charAt(text, start) <= ' ') start++;
+        while (end > start && charAt(text, end - 1) <= ' ') end--;
+
+        int i = start;
+        boolean negative = false;
+        if (i < end && (charAt(text, i) == '-' || charAt(text, i) == '+')) {
+            negative = charAt(text, i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int significant = 0;
+        int scale = 0;
+        boolean digits = false;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            int c = charAt(text, i);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0 && ++significant > 18) return fallback(text, start, end);
+                if (fraction) scale--;
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else if ((c == 'e' || c == 'E') && digits) {
+                int exponent = parseExponent(text, i + 1, end);
+                if (exponent == Integer.MIN_VALUE) return fallback(text, start, end);
+                scale += exponent;
+                break;
+            } else {
+                return fallback(text, start, end);
+            }
+        }
+        if (!digits) return fallback(text, start, end);
+
+        double value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (mantissa < EXACT_MANTISSA && scale >= -22 && scale <= 22) {
+            // both operands are exact, so the one rounding step gives the correctly rounded result
+            value = (scale < 0) ? mantissa / POWERS[-scale] : mantissa * POWERS[scale];
+        } else {
+            return fallback(text, start, end);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return exponent in [from, end), or Integer.MIN_VALUE if it is malformed or too large
+     */
+    private static int parseExponent(Object text, int from, int end) {
+        boolean negative = false;
+        if (from < end && (charAt(text, from) == '-' || charAt(text, from) == '+')) {
+            negative = charAt(text, from) == '-';
+            from++;
+        }
+        if (from == end || end - from > 3) return Integer.MIN_VALUE;
+        int exponent = 0;
+        for (int i = from; i < end; i++) {
+            int c = charAt(text, i);
+            if (c < '0' || c > '9') return Integer.MIN_VALUE;
+            exponent = exponent * 10 + (c - '0');
+        }
+        return negative ? -exponent : exponent;
+    }
+
+    private static double fallback(Object text, int start, int end) {
+        return Double.parseDouble(substring(text, start, end));
+    }
+
+    private static IllegalArgumentException malformed(Object text, int start, int end) {
+        return new IllegalArgumentException(
+                "Expected latlng to be in format 'lat,lon' but found [" + substring(text, start, end) + "]");
+    }
+
+    private static int charAt(Object text, int i) {
+        return (text instanceof byte[]) ? ((byte[]) text)[i] & 0xff : ((CharSequence) text).charAt(i);
+    }
+
+    private static String substring(Object text, int start, int end) {
+        return (text instanceof byte[])
+                ? new String((byte[]) text, start, end - start, StandardCharsets.UTF_8)
+                : ((CharSequence) text).subSequence(start, end).toString();
+    }
+
+    // ------------------------------------------------------------------------------
+    // Formatting
+    // ------------------------------------------------------------------------------
+
+    /**
+     * Append <code>lat,lng</code>, each rounded half-up to at most <code>decimals</code> fraction
+     * digits with trailing zeros dropped. The decimal separator is always '.'.
+     *
+     * @return strb
+     */
+    public static StringBuilder append(StringBuilder strb, double lat, double lng, int decimals) {
+        write(strb, 0, lat, decimals);
+        strb.append(',');
+        write(strb, 0, lng, decimals);
+        return strb;
+    }
+
+    /**
+     * Append one coordinate; see {@link #append(StringBuilder, double, double, int)}.
+     *
+     * @return strb
+     */
+    public static StringBuilder append(StringBuilder strb, double value, int decimals) {
+        write(strb, 0, value, decimals);
+        return strb;
+    }
+
+    /**
+     * Write <code>lat,lng</code> as ASCII at <code>buffer[offset]</code>; see
+     * {@link #append(StringBuilder, double, double, int)}. The buffer needs at most
+     * {@link #MAX_PAIR_LENGTH} bytes from offset.
+     *
+     * @return offset just past the last byte written
+     */
+    public static int format(double lat, double lng, int decimals, byte[] buffer, int offset) {
+        offset = write(buffer, offset, lat, decimals);
+        buffer[offset++] = ',';
+        return write(buffer, offset, lng, decimals);
+    }
+
+    /**
+     * Write one coordinate as ASCII at <code>buffer[offset]</code>.
+     *
+     * @return offset just past the last byte written
+     */
+    public static int format(double value, int decimals, byte[] buffer, int offset) {
+        return write(buffer, offset, value, decimals);
+    }
+
+    private static int write(Object sink, int pos, double value, int decimals) {
+        if (decimals < 0 || decimals > MAX_DECIMALS)
+            throw new IllegalArgumentException("decimals must be in [0, " + MAX_DECIMALS + "]: " + decimals);
+
+        double magnitude = Math.abs(value);
+        if (!(magnitude < FIXED_LIMIT)) {
+            String text = Double.toString(value);
+            for (int i = 0; i < text.length(); i++) pos = put(sink, pos, text.charAt(i));
+            return pos;
+        }
+
+        long scaled = Math.round(magnitude * LONG_POWERS[decimals]);
+        while (decimals > 0 && scaled % 10 == 0) {
+            scaled /= 10;
+            decimals--;
+        }
+        if (value < 0 && scaled != 0) pos = put(sink, pos, '-');
+
+        long whole = scaled / LONG_POWERS[decimals];
+        int width = 1;
+        while (width < LONG_POWERS.length && whole >= LONG_POWERS[width]) width++;
+        pos = putDigits(sink, pos, whole, width);
+        if (decimals > 0) {
+            pos = put(sink, pos, '.');
+            pos = putDigits(sink, pos, scaled % LONG_POWERS[decimals], decimals);
+        }
+        return pos;
+    }
+
+    /**
+     * Write the low <code>width</code> digits of value, zero padded.
+     */
+    private static int putDigits(Object sink, int pos, long value, int width) {
+        for (int i = width - 1; i >= 0; i--) {
+            pos = put(sink, pos, (char) ('0' + (value / LONG_POWERS[i]) % 10));
+        }
+        return pos;
+    }
+
+    private static int put(Object sink, int pos, char c) {
+        if (sink instanceof byte[]) {
+            ((byte[]) sink)[pos] = (byte) c;
+        } else {
+            ((StringBuilder) sink).append(c);
+        }
+        return pos + 1;
+    }
+}
@@ -0,0 +1,438 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers inputs that Google answered with a non-OK status, so they are not re-sent.
+ *
+ * Each cached status has its own TTL and its own pair of generations. A generation is a
+ * {@link BloomFilter} backed by a fixed-size table of 64-bit key fingerprints: the filter
+ * turns away almost every good input with a few bit probes, and an input only counts as
+ * known-bad once its fingerprint is found too, so a filter false positive never rejects a
+ * good input. Memory is bounded at 16 to 32 bytes per expected insertion per generation.
+ *
+ * Generations rotate every half TTL, or as soon as the current one has taken
+ * <code>expectedInsertions</code> distinct inputs, whichever comes first. An entry therefore
+ * lives at most TTL, and less when bad inputs arrive faster than expected; size the
+ * generations for the expected number of bad inputs per half TTL.
+ *
+ * Only input-specific statuses belong here (ZERO_RESULTS, INVALID_REQUEST). Quota and
+ * service errors are not about the input and are ignored unless configured explicitly.
+ *
+ * The filters can be saved and loaded, so knowledge survives restarts. Generation ages are
+ * wall-clock based and keep running while the process is down.
+ */
+public class NegativeGeocodeCache {
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+    public static final int DEFAULT_EXPECTED_INSERTIONS = 100000;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.001;
+
+    private static final int MAX_EXPECTED_INSERTIONS = 1 << 28;
+    private static final int MAGIC = 0x47334e43;   // "G3NC"
+    private static final int VERSION = 2;
+
+    private final int expectedInsertions;
+    private final double falsePositiveRate;
+    private final AtomicReferenceArray<Generations> filters =
+            new AtomicReferenceArray<Generations>(G3Status.values().length);
+    private volatile LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * Cache ZERO_RESULTS and INVALID_REQUEST for {@link #DEFAULT_TTL_MILLIS}.
+     */
+    public NegativeGeocodeCache() {
+        this(DEFAULT_EXPECTED_INSERTIONS, DEFAULT_FALSE_POSITIVE_RATE);
+        setTtl(G3Status.ZERO_RESULTS, DEFAULT_TTL_MILLIS);
+        setTtl(G3Status.INVALID_REQUEST, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Empty cache with no statuses configured; see {@link #setTtl(G3Status, long)}.
+     *
+     * @param expectedInsertions distinct inputs per status per generation (half TTL); a
+     *        generation that fills up rotates early
+     * @param falsePositiveRate target Bloom filter false positive rate per generation
+     */
+    public NegativeGeocodeCache(int expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions > MAX_EXPECTED_INSERTIONS) {
+            throw new IllegalArgumentException("expectedInsertions must be at most " + MAX_EXPECTED_INSERTIONS);
+        }
+        new BloomFilter(expectedInsertions, falsePositiveRate);    // validate arguments
+        this.expectedInsertions = expectedInsertions;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * Cache a status, or stop caching it. Changing a TTL discards what was known for the status.
+     *
+     * @param status non-OK status
+     * @param ttlMillis time to remember an input, or 0 to stop caching the status
+     */
+    public void setTtl(G3Status status, long ttlMillis) {
+        if (status == G3Status.OK) throw new IllegalArgumentException("OK responses are not negative");
+        filters.set(status.ordinal(), (ttlMillis > 0) ? new Generations(ttlMillis, clock.getAsLong()) : null);
+    }
+
+    /**
+     * @param status status
+     * @return TTL in milliseconds, 0 if the status is not cached
+     */
+    public long getTtl(G3Status status) {
+        Generations g = filters.get(status.ordinal());
+        return (g == null) ? 0 : g.ttlMillis;
+    }
+
+    /**
+     * @param key canonical input key, see {@link GeocodeKeys}
+     * @param status status Google answered with; ignored unless cached
+     */
+    public void record(String key, G3Status status) {
+        if (status == null) return;
+        Generations g = filters.get(status.ordinal());
+        if (g != null) g.add(key, clock.getAsLong());
+    }
+
+    /**
+     * @param key canonical input key, see {@link GeocodeKeys}
+     * @return cached status, or null if the input is not known to be bad
+     */
+    public G3Status lookup(String key) {
+        long now = clock.getAsLong();
+        for (int i = 0; i < filters.length(); i++) {
+            Generations g = filters.get(i);
+            if (g != null && g.contains(key, now)) return G3Status.values()[i];
+        }
+        return null;
+    }
+
+    /**
+     * Forget everything, keeping the configured TTLs.
+     */
+    public void clear() {
+        long now = clock.getAsLong();
+        for (int i = 0; i < filters.length(); i++) {
+            Generations g = filters.get(i);
+            if (g != null) filters.set(i, new Generations(g.ttlMillis, now));
+        }
+    }
+
+    void setClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Persistence
+    // ------------------------------------------------------------------------------
+
+    /**
+     * Write the configured statuses and their filters.
+     *
+     * @param stream destination; not closed
+     * @throws IOException on write failure
+     */
+    public void save(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(expectedInsertions);
+        out.writeDouble(falsePositiveRate);
+
+        int count = 0;
+        for (int i = 0; i < filters.length(); i++) if (filters.get(i) != null) count++;
+        out.writeInt(count);
+        long now = clock.getAsLong();
+        for (int i = 0; i < filters.length(); i++) {
+            Generations g = filters.get(i);
+            if (g == null) continue;
+            synchronized (g) {
+                g.rotate(now);
+                out.writeUTF(G3Status.values()[i].name());
+                out.writeLong(g.ttlMillis);
+                out.writeLong(g.currentStart);
+                g.current.writeTo(out);
+                g.previous.writeTo(out);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Save to a file, replacing it atomically.
+     *
+     * @param file destination
+     * @throws IOException on write failure
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            save(out);
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param stream source written by {@link #save(OutputStream)}; not closed
+     * @return cache
+     * @throws IOException on read failure or unrecognized data
+     */
+    public static NegativeGeocodeCache load(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC) throw new IOException("Not a negative geocode cache");
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("Unsupported negative cache version " + version);
+
+        NegativeGeocodeCache cache = new NegativeGeocodeCache(in.readInt(), in.readDouble());
+        int count = in.readInt();
+        for (int n = 0; n < count; n++) {
+            G3Status status = G3Status.fromCode(in.readUTF());
+            long ttlMillis = in.readLong();
+            long currentStart = in.readLong();
+            Generation current = cache.readGeneration(in);
+            Generation previous = cache.readGeneration(in);
+            if (status == G3Status.OK || status == G3Status.UNRECOGNIZED || ttlMillis <= 0) {
+                throw new IOException("Malformed negative cache entry");
+            }
+            cache.filters.set(status.ordinal(), cache.new Generations(ttlMillis, currentStart, current, previous));
+        }
+        return cache;
+    }
+
+    /**
+     * @param file source written by {@link #save(File)}
+     * @return cache
+     * @throws IOException on read failure or unrecognized data
+     */
+    public static NegativeGeocodeCache load(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Aging generations
+    // ------------------------------------------------------------------------------
+
+    /**
+     * Current and previous generation for one status. Adds go to the current generation;
+     * lookups check both. Every half TTL, or when the current generation is full, the
+     * previous generation is dropped and the current one takes its place.
+     */
+    private final class Generations {
+
+        final long ttlMillis;
+        volatile long currentStart;
+        volatile Generation current;
+        volatile Generation previous;
+
+        Generations(long ttlMillis, long now) {
+            this.ttlMillis = ttlMillis;
+            this.currentStart = now;
+            this.current = new Generation();
+            this.previous = new Generation();
+        }
+
+        Generations(long ttlMillis, long currentStart, Generation current, Generation previous) {
+            this.ttlMillis = ttlMillis;
+            this.currentStart = currentStart;
+            this.current = current;
+            this.previous = previous;
+        }
+
+        Generation current(long now) {
+            if (now - currentStart >= ttlMillis / 2) {
+                synchronized (this) {
+                    rotate(now);
+                }
+            }
+            return current;
+        }
+
+        void add(String key, long now) {
+            Generation c = current(now);
+            if (c.add(key) && c.size.get() >= expectedInsertions) {
+                synchronized (this) {
+                    if (current == c) {
+                        previous = c;
+                        current = new Generation();
+                        currentStart = now;
+                    }
+                }
+            }
+        }
+
+        boolean contains(String key, long now) {
+            Generation c = current(now);
+            return c.contains(key) || previous.contains(key);
+        }
+
+        /** Caller holds the monitor. */
+        void rotate(long now) {
+            long age = now - currentStart;
+            long half = ttlMillis / 2;
+            if (age < half) return;
+            previous = (age < ttlMillis) ? current : new Generation();
+            current = new Generation();
+            currentStart = (age < ttlMillis) ? currentStart + half : now;
+        }
+    }
+
+    /**
+     * One generation: Bloom filter in front of an open-addressed set of key fingerprints,
+     * sized so it is never more than half full at <code>expectedInsertions</code>.
+     */
+    private final class Generation {
+
+        final BloomFilter filter;
+        final AtomicLongArray fingerprints;
+        final AtomicInteger size = new AtomicInteger();
+
+        Generation() {
+            this(new BloomFilter(expectedInsertions, falsePositiveRate),
+                 new AtomicLongArray(Integer.highestOneBit(Math.max(1, expectedInsertions - 1)) << 2));
+        }
+
+        Generation(BloomFilter filter, AtomicLongArray fingerprints) {
+            this.filter = filter;
+            this.fingerprints = fingerprints;
+        }
+
+        /** @return true if the key was not already present */
+        boolean add(String key) {
+            filter.add(key);
+            long fingerprint = fingerprint(key);
+            int mask = fingerprints.length() - 1;
+            for (int n = 0, i = (int) fingerprint & mask; n <= mask; n++, i = (i + 1) & mask) {
+                long slot = fingerprints.get(i);
+                if (slot == fingerprint) return false;
+                if (slot == 0 && fingerprints.compareAndSet(i, 0, fingerprint)) {
+                    size.incrementAndGet();
+                    return true;
+                }
+                if (fingerprints.get(i) == fingerprint) return false;
+            }
+            return false;   // full; only reachable under a burst of racing adds
+        }
+
+        boolean contains(String key) {
+            if (!filter.mightContain(key)) return false;
+            long fingerprint = fingerprint(key);
+            int mask = fingerprints.length() - 1;
+            for (int n = 0, i = (int) fingerprint & mask; n <= mask; n++, i = (i + 1) & mask) {
+                long slot = fingerprints.get(i);
+                if (slot == fingerprint) return true;
+                if (slot == 0) return false;
+            }
+            return false;
+        }
+
+        /**
+         * Adds do not lock, so the fingerprints are snapshotted first and the snapshot's own
+         * length is written as the count. The filter is written after the snapshot, and a
+         * key's filter bits are set before its fingerprint, so every saved fingerprint
+         * passes the saved filter.
+         */
+        void writeTo(DataOutput out) throws IOException {
+            long[] snapshot = new long[fingerprints.length()];
+            int count = 0;
+            for (int i = 0; i < fingerprints.length(); i++) {
+                long slot = fingerprints.get(i);
+                if (slot != 0) snapshot[count++] = slot;
+            }
+            filter.writeTo(out);
+            out.writeInt(fingerprints.length());
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) out.writeLong(snapshot[i]);
+        }
+    }
+
+    private Generation readGeneration(DataInput in) throws IOException {
+        BloomFilter filter = BloomFilter.readFrom(in);
+        int length = in.readInt();
+        int size = in.readInt();
+        if (length <= 0 || Integer.bitCount(length) != 1 || size < 0 || size > length) {
+            throw new IOException("Malformed negative cache generation");
+        }
+        Generation g = new Generation(filter, new AtomicLongArray(length));
+        for (int n = 0; n < size; n++) {
+            long fingerprint = in.readLong();
+            if (fingerprint == 0) throw new IOException("Malformed negative cache generation");
+            int mask = length - 1;
+            int i = (int) fingerprint & mask;
+            while (g.fingerprints.get(i) != 0) i = (i + 1) & mask;
+            g.fingerprints.set(i, fingerprint);
+        }
+        g.size.set(size);
+        return g;
+    }
+
+    /**
+     * 64-bit key fingerprint, independent of the Bloom filter hash; never 0, which marks an
+     * empty slot.
+     */
+    static long fingerprint(String key) {
+        long h = 0x9e3779b97f4a7c15L ^ key.length();
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0xbf58476d1ce4e5b9L;
+            h ^= h >>> 29;
+        }
+        h ^= h >>> 32;
+        h *= 0x94d049bb133111ebL;
+        h ^= h >>> 29;
+        return (h != 0) ? h : 1;
+    }
+}
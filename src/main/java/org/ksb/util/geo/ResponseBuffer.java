@@ -0,0 +1,334 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Pooled byte buffer holding one decoded response body, readable as a CharSequence.
+ *
+ * The sequence is a one-byte-per-char view of the raw UTF-8 bytes. Markup in a Google
+ * response is ASCII, so scanning for tags by char works directly on the bytes; UTF-8 is
+ * decoded only for the element text actually extracted ({@link #decode(int, int)}), and
+ * offsets are byte offsets throughout.
+ *
+ * Buffers come from a small shared pool ({@link #acquire()}) together with the inflaters
+ * and scratch arrays used to decode compressed bodies, and must be {@link #release()
+ * released} once the response has been parsed. A released buffer must not be used again;
+ * {@link #copy()} gives an unpooled snapshot for data that outlives the parse.
+ */
+final class ResponseBuffer implements CharSequence {
+
+    /** Buffers kept for reuse. */
+    static final int POOL_SIZE = 64;
+
+    /** Buffers grown beyond this are dropped rather than pooled. */
+    static final int MAX_POOLED_BYTES = 1 << 20;
+
+    private static final int INITIAL_BYTES = 16384;
+
+    private static final ArrayBlockingQueue<ResponseBuffer> POOL = new ArrayBlockingQueue<ResponseBuffer>(POOL_SIZE);
+
+    private final boolean pooled;
+    private byte[] data;
+    private int length;
+    private int statusCode;
+
+    // raw body and decoding state, only for pooled buffers
+    private byte[] wire;
+    private int wireLength;
+    private Inflater zlibInflater;
+    private Inflater rawInflater;
+    private CRC32 crc;
+
+    private ResponseBuffer(byte[] data, int length, boolean pooled) {
+        this.data = data;
+        this.length = length;
+        this.pooled = pooled;
+    }
+
+    /**
+     * @return empty buffer from the pool, or a new one if the pool is empty
+     */
+    static ResponseBuffer acquire() {
+        ResponseBuffer buffer = POOL.poll();
+        return (buffer != null) ? buffer : new ResponseBuffer(new byte[INITIAL_BYTES], 0, true);
+    }
+
+    /**
+     * Return the buffer to the pool. Unpooled copies are left to the garbage collector.
+     */
+    void release() {
+        if (!pooled) return;
+        length = 0;
+        wireLength = 0;
+        statusCode = 0;
+        if (data.length > MAX_POOLED_BYTES || (wire != null && wire.length > MAX_POOLED_BYTES)) {
+            if (zlibInflater != null) zlibInflater.end();
+            if (rawInflater != null) rawInflater.end();
+            return;
+        }
+        POOL.offer(this);
+    }
+
+    /**
+     * @param text text to hold, e.g. a constant response
+     * @return unpooled buffer
+     */
+    static ResponseBuffer of(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return new ResponseBuffer(bytes, bytes.length, false);
+    }
+
+    /**
+     * @return unpooled buffer with the same content, sized exactly
+     */
+    ResponseBuffer copy() {
+        return new ResponseBuffer(Arrays.copyOf(data, length), length, false);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Reading
+    // ------------------------------------------------------------------------------
+
+    /**
+     * Read a whole response body, decoding it according to its Content-Encoding.
+     *
+     * @param body raw response body; not closed
+     * @param contentEncoding Content-Encoding header, may be null
+     * @return bytes read from the wire
+     * @throws IOException on read failure or a corrupt compressed body
+     */
+    long read(InputStream body, String contentEncoding) throws IOException {
+        beginWire();
+        while (true) {
+            if (wireLength == wire.length) wire = Arrays.copyOf(wire, wire.length * 2);
+            int r = body.read(wire, wireLength, wire.length - wireLength);
+            if (r < 0) break;
+            wireLength += r;
+        }
+        return decodeWire(contentEncoding);
+    }
+
+    /**
+     * Start collecting a body pushed in chunks with {@link #appendWire(ByteBuffer)}.
+     */
+    void beginWire() {
+        if (wire == null) wire = new byte[INITIAL_BYTES];
+        wireLength = 0;
+        length = 0;
+    }
+
+    /**
+     * @param chunk next chunk of the raw body; consumed
+     */
+    void appendWire(ByteBuffer chunk) {
+        int n = chunk.remaining();
+        if (wireLength + n > wire.length) wire = Arrays.copyOf(wire, Math.max(wire.length * 2, wireLength + n));
+        chunk.get(wire, wireLength, n);
+        wireLength += n;
+    }
+
+    /**
+     * Decode the collected raw body into this buffer's content.
+     *
+     * @param contentEncoding Content-Encoding header, may be null
+     * @return bytes received from the wire
+     * @throws IOException on a corrupt compressed body
+     */
+    long decodeWire(String contentEncoding) throws IOException {
+        String encoding = (contentEncoding != null) ? contentEncoding.trim() : "";
+        boolean gzip = "gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding);
+        boolean deflate = "deflate".equalsIgnoreCase(encoding);
+        byte[] raw = wire;
+        int n = wireLength;
+        if (!gzip && !deflate) {
+            // uncompressed: the raw bytes are the content, so swap rather than copy
+            wire = data;
+            data = raw;
+            length = n;
+            return n;
+        }
+
+        if (gzip) {
+            int offset = gzipHeaderLength(raw, n);
+            if (rawInflater == null) rawInflater = new Inflater(true);
+            int consumed = inflate(rawInflater, raw, offset, n - offset);
+            int trailer = offset + consumed;
+            if (trailer + 8 > n) throw new ZipException("Truncated gzip response");
+            if (crc == null) crc = new CRC32();
+            crc.reset();
+            crc.update(data, 0, length);
+            if ((int) crc.getValue() != littleEndianInt(raw, trailer) || length != littleEndianInt(raw, trailer + 4)) {
+                throw new ZipException("Corrupt gzip response");
+            }
+        } else {
+            if (zlibInflater == null) zlibInflater = new Inflater();
+            inflate(zlibInflater, raw, 0, n);
+        }
+        return n;
+    }
+
+    /**
+     * @return bytes of input consumed
+     */
+    private int inflate(Inflater inflater, byte[] raw, int offset, int count) throws IOException {
+        inflater.reset();
+        inflater.setInput(raw, offset, count);
+        length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == data.length) data = Arrays.copyOf(data, data.length * 2);
+                int n = inflater.inflate(data, length, data.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ZipException("Truncated compressed response");
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+        return count - inflater.getRemaining();
+    }
+
+    /**
+     * @return length of the gzip member header (RFC 1952)
+     */
+    private static int gzipHeaderLength(byte[] raw, int n) throws ZipException {
+        if (n < 10 || (raw[0] & 0xff) != 0x1f || (raw[1] & 0xff) != 0x8b || raw[2] != 8) {
+            throw new ZipException("Not in gzip format");
+        }
+        int flags = raw[3] & 0xff;
+        int offset = 10;
+        if ((flags & 4) != 0) {
+            if (offset + 2 > n) throw new ZipException("Truncated gzip header");
+            offset += 2 + ((raw[offset] & 0xff) | (raw[offset + 1] & 0xff) << 8);
+        }
+        if ((flags & 8) != 0) offset = skipZeroTerminated(raw, offset, n);
+        if ((flags & 16) != 0) offset = skipZeroTerminated(raw, offset, n);
+        if ((flags & 2) != 0) offset += 2;
+        if (offset > n) throw new ZipException("Truncated gzip header");
+        return offset;
+    }
+
+    private static int skipZeroTerminated(byte[] raw, int offset, int n) throws ZipException {
+        while (offset < n && raw[offset] != 0) offset++;
+        if (offset >= n) throw new ZipException("Truncated gzip header");
+        return offset + 1;
+    }
+
+    private static int littleEndianInt(byte[] raw, int offset) {
+        return (raw[offset] & 0xff) | (raw[offset + 1] & 0xff) << 8
+                | (raw[offset + 2] & 0xff) << 16 | (raw[offset + 3] & 0xff) << 24;
+    }
+
+    /** @return bytes received from the wire for the current content */
+    int getWireLength() {
+        return wireLength;
+    }
+
+    /** @return HTTP status the content arrived with, 0 if not recorded */
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    void setStatusCode(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Access
+    // ------------------------------------------------------------------------------
+
+    /**
+     * @return index of the ASCII token in [from, to), or -1
+     */
+    int indexOf(String token, int from, int to) {
+        int last = Math.min(to, length) - token.length();
+        byte first = (byte) token.charAt(0);
+        byte[] bytes = data;
+        for (int i = from; i <= last; i++) {
+            if (bytes[i] != first) continue;
+            int j = 1;
+            while (j < token.length() && bytes[i + j] == (byte) token.charAt(j)) j++;
+            if (j == token.length()) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether [start, end) holds exactly the ASCII text
+     */
+    boolean regionEquals(int start, int end, String text) {
+        if (end - start != text.length()) return false;
+        for (int i = 0; i < text.length(); i++) {
+            if (data[start + i] != (byte) text.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return UTF-8 text of [start, end)
+     */
+    String decode(int start, int end) {
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(int index) {
+        if (index >= length) throw new IndexOutOfBoundsException(String.valueOf(index));
+        return (char) (data[index] & 0xff);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) throw new IndexOutOfBoundsException(start + ", " + end);
+        return new ResponseBuffer(Arrays.copyOfRange(data, start, end), end - start, false);
+    }
+
+    /**
+     * @return whole content decoded as UTF-8
+     */
+    public String toString() {
+        return decode(0, length);
+    }
+}
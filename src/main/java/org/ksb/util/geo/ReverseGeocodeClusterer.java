@@ -0,0 +1,211 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reverse geocodes a batch of points with one lookup per cluster of nearby points.
+ *
+ * Points are clustered greedily in input order: a point joins a representative within
+ * the radius, otherwise it becomes a new representative. Candidates are found
+ * through a grid of latitude rows one radius high, each cut into cells at least one radius
+ * wide at that row's latitude, so only the 3x3 neighbouring cells are searched; they are
+ * confirmed with {@link LatLng#distanceTo(LatLng)}.
+ * Every input is therefore within the radius of the point actually geocoded for it.
+ * Clusters do not span the 180th meridian.
+ */
+public class ReverseGeocodeClusterer {
+
+    /** Mean earth radius used for the grid projection, in meters. */
+    private static final double EARTH_RADIUS = 6371000;
+
+    private final IGeocoder geocoder;
+    private double radiusMeters = 25;
+    private int parallelism = 4;
+
+    private int clusterCount = 0;
+
+    public ReverseGeocodeClusterer(IGeocoder geocoder) {
+        if (geocoder == null) throw new NullPointerException();
+        this.geocoder = geocoder;
+    }
+
+    /**
+     * @param meters largest distance from a point to its representative; zero merges only
+     *               identical points
+     */
+    public void setRadiusMeters(double meters) {
+        if (!(meters >= 0)) throw new IllegalArgumentException("radius must not be negative");
+        this.radiusMeters = meters;
+    }
+
+    public double getRadiusMeters() {
+        return radiusMeters;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be at least 1");
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** @return number of lookups made by the last batch */
+    public int getClusterCount() {
+        return clusterCount;
+    }
+
+    /**
+     * Reverse geocode every point, one lookup per cluster.
+     *
+     * @param points input points
+     * @return one result per point, in input order; points in a cluster share the response
+     * @throws InterruptedException if interrupted while waiting for lookups
+     */
+    public List<ClusteredGeocodeResult> geocodeAll(List<LatLng> points) throws InterruptedException {
+        int[] clusterOf = new int[points.size()];
+        List<LatLng> representatives = cluster(points, clusterOf);
+        clusterCount = representatives.size();
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<GeocodeResult<LatLng>>> lookups = new ArrayList<Future<GeocodeResult<LatLng>>>(clusterCount);
+            for (final LatLng representative : representatives) {
+                lookups.add(executor.submit(new Callable<GeocodeResult<LatLng>>() {
+                    public GeocodeResult<LatLng> call() {
+                        return GeocodeResult.geocode(geocoder, representative);
+                    }
+                }));
+            }
+
+            List<ClusteredGeocodeResult> results = new ArrayList<ClusteredGeocodeResult>(points.size());
+            for (int i = 0; i < points.size(); i++) {
+                LatLng point = points.get(i);
+                LatLng representative = representatives.get(clusterOf[i]);
+                GeocodeResult<LatLng> result;
+                try {
+                    result = lookups.get(clusterOf[i]).get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+                double distance = (point == representative) ? 0 : point.distanceTo(representative);
+                results.add(new ClusteredGeocodeResult(point, representative, distance,
+                        result.getResponse(), result.getError()));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Assign each point to a cluster.
+     *
+     * @param points input points
+     * @param clusterOf receives the cluster index of each point
+     * @return cluster representatives, indexed by cluster
+     */
+    List<LatLng> cluster(List<LatLng> points, int[] clusterOf) {
+        List<LatLng> representatives = new ArrayList<LatLng>();
+        Map<Long, List<Integer>> grid = new HashMap<Long, List<Integer>>();
+        // zero radius still needs a finite cell; identical points land in the same one
+        double cellLat = LatLng.degrees(Math.max(radiusMeters, 1.0) / EARTH_RADIUS);
+
+        for (int i = 0; i < points.size(); i++) {
+            LatLng point = points.get(i);
+            long cy = (long) Math.floor(point.getLatitude() / cellLat);
+
+            int found = -1;
+            for (long row = cy - 1; row <= cy + 1 && found < 0; row++) {
+                long cx = (long) Math.floor(point.getLongitude() / cellWidth(row, cellLat));
+                for (long col = cx - 1; col <= cx + 1 && found < 0; col++) {
+                    List<Integer> members = grid.get(cellKey(col, row));
+                    if (members == null) continue;
+                    for (int c : members) {
+                        LatLng representative = representatives.get(c);
+                        if (approximateDistance(point, representative) <= radiusMeters * 1.01 + 0.01
+                                && point.distanceTo(representative) <= radiusMeters) {
+                            found = c;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (found < 0) {
+                found = representatives.size();
+                representatives.add(point);
+                Long key = cellKey((long) Math.floor(point.getLongitude() / cellWidth(cy, cellLat)), cy);
+                List<Integer> members = grid.get(key);
+                if (members == null) grid.put(key, members = new ArrayList<Integer>(2));
+                members.add(found);
+            }
+            clusterOf[i] = found;
+        }
+        return representatives;
+    }
+
+    /**
+     * Longitude width of the cells in a row, in degrees: one radius at the latitude a row
+     * beyond the row's poleward edge, so that a neighbour in an adjacent row is never more
+     * than one cell away.
+     */
+    private static double cellWidth(long row, double cellLat) {
+        double poleward = Math.max(Math.abs(row * cellLat), Math.abs((row + 1) * cellLat)) + cellLat;
+        if (poleward >= 90) return 360;
+        return Math.min(360, cellLat / Math.cos(LatLng.radians(poleward)));
+    }
+
+    private static long cellKey(long cx, long cy) {
+        return (cx << 32) ^ (cy & 0xffffffffL);
+    }
+
+    /**
+     * Equirectangular distance in meters; close to the great-circle distance over the short
+     * spans compared here, and a cheap filter before {@link LatLng#distanceTo(LatLng)}.
+     */
+    static double approximateDistance(LatLng a, LatLng b) {
+        double lat1 = LatLng.radians(a.getLatitude()), lat2 = LatLng.radians(b.getLatitude());
+        double x = (LatLng.radians(b.getLongitude()) - LatLng.radians(a.getLongitude())) * Math.cos((lat1 + lat2) / 2);
+        double y = lat2 - lat1;
+        return EARTH_RADIUS * Math.sqrt(x * x + y * y);
+    }
+}
@@ -0,0 +1,243 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reverse geocodes a route with far fewer lookups than it has points.
+ *
+ * The route is first sampled at its ends and every {@link #setMaxSpacingMeters(double) max
+ * spacing} along it. Wherever two neighbouring samples differ in street, city or postal
+ * code, the point halfway between them (by distance along the route) is sampled too, and so
+ * on until neighbours agree, are adjacent points, or are within the
+ * {@link #setMinSpacingMeters(double) min spacing}. Each round's lookups run in parallel.
+ *
+ * Segment boundaries therefore fall on route points and are accurate to the min spacing. A
+ * change that reverts between two samples that agree (a short detour onto another street)
+ * is not seen; a smaller max spacing catches more of them at the cost of more lookups.
+ */
+public class RouteGeocoder {
+
+    private final IGeocoder geocoder;
+    private double minSpacingMeters = 20;
+    private double maxSpacingMeters = 500;
+    private int parallelism = 4;
+
+    private int lookupCount = 0;
+
+    public RouteGeocoder(IGeocoder geocoder) {
+        if (geocoder == null) throw new NullPointerException();
+        this.geocoder = geocoder;
+    }
+
+    /**
+     * @param meters samples closer than this along the route are not subdivided further
+     */
+    public void setMinSpacingMeters(double meters) {
+        if (!(meters >= 0)) throw new IllegalArgumentException("min spacing must not be negative");
+        this.minSpacingMeters = meters;
+    }
+
+    public double getMinSpacingMeters() {
+        return minSpacingMeters;
+    }
+
+    /**
+     * @param meters distance along the route between the initial samples
+     */
+    public void setMaxSpacingMeters(double meters) {
+        if (!(meters > 0)) throw new IllegalArgumentException("max spacing must be positive");
+        this.maxSpacingMeters = meters;
+    }
+
+    public double getMaxSpacingMeters() {
+        return maxSpacingMeters;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be at least 1");
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** @return number of lookups made by the last route */
+    public int getLookupCount() {
+        return lookupCount;
+    }
+
+    /**
+     * @param route route points in travel order
+     * @return segments in route order; empty if the route is empty
+     * @throws InterruptedException if interrupted while waiting for lookups
+     */
+    public List<RouteSegment> geocodeRoute(List<LatLng> route) throws InterruptedException {
+        double[] coords = new double[route.size() * 2];
+        for (int i = 0; i < route.size(); i++) {
+            coords[2 * i] = route.get(i).getLatitude();
+            coords[2 * i + 1] = route.get(i).getLongitude();
+        }
+        return geocode(coords);
+    }
+
+    /**
+     * @param encoded route as a Google encoded polyline
+     * @return segments in route order
+     * @throws InterruptedException if interrupted while waiting for lookups
+     * @throws IllegalArgumentException if the polyline is malformed
+     */
+    public List<RouteSegment> geocodePolyline(CharSequence encoded) throws InterruptedException {
+        return geocode(EncodedPolyline.decode(encoded));
+    }
+
+    /**
+     * @param coords <code>{lat0, lng0, lat1, lng1, ...}</code>
+     * @return segments in route order
+     * @throws InterruptedException if interrupted while waiting for lookups
+     */
+    public List<RouteSegment> geocode(double[] coords) throws InterruptedException {
+        int count = coords.length / 2;
+        lookupCount = 0;
+        List<RouteSegment> segments = new ArrayList<RouteSegment>();
+        if (count == 0) return segments;
+
+        double[] along = new double[count];
+        for (int i = 1; i < count; i++) {
+            along[i] = along[i - 1]
+                    + LatLng.distance(coords[2 * i - 2], coords[2 * i - 1], coords[2 * i], coords[2 * i + 1]);
+        }
+
+        List<GeocodeResult<LatLng>> samples =
+                new ArrayList<GeocodeResult<LatLng>>(Collections.<GeocodeResult<LatLng>>nCopies(count, null));
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Integer> pending = new ArrayList<Integer>();
+            pending.add(0);
+            double next = maxSpacingMeters;
+            for (int i = 1; i < count - 1; i++) {
+                if (along[i] >= next) {
+                    pending.add(i);
+                    next = along[i] + maxSpacingMeters;
+                }
+            }
+            if (count > 1) pending.add(count - 1);
+
+            while (!pending.isEmpty()) {
+                lookup(executor, coords, pending, samples);
+                pending.clear();
+
+                int previous = -1;
+                for (int i = 0; i < count; i++) {
+                    if (samples.get(i) == null) continue;
+                    if (previous >= 0 && i - previous > 1 && along[i] - along[previous] > minSpacingMeters
+                            && !sameLabel(samples.get(previous).getResponse(), samples.get(i).getResponse())) {
+                        pending.add(midpoint(along, previous, i));
+                    }
+                    previous = i;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int start = 0;
+        for (int i = 1; i < count; i++) {
+            if (samples.get(i) != null && !sameLabel(samples.get(start).getResponse(), samples.get(i).getResponse())) {
+                segments.add(segment(samples.get(start), start, i, along));
+                start = i;
+            }
+        }
+        segments.add(segment(samples.get(start), start, count - 1, along));
+        return segments;
+    }
+
+    private void lookup(ExecutorService executor, final double[] coords, List<Integer> indexes,
+                        List<GeocodeResult<LatLng>> samples) throws InterruptedException {
+        List<Future<GeocodeResult<LatLng>>> lookups = new ArrayList<Future<GeocodeResult<LatLng>>>(indexes.size());
+        for (final int i : indexes) {
+            lookups.add(executor.submit(new Callable<GeocodeResult<LatLng>>() {
+                public GeocodeResult<LatLng> call() {
+                    return GeocodeResult.geocode(geocoder, new LatLng(coords[2 * i], coords[2 * i + 1]));
+                }
+            }));
+        }
+        lookupCount += indexes.size();
+        for (int k = 0; k < indexes.size(); k++) {
+            try {
+                samples.set(indexes.get(k), lookups.get(k).get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * @return route point strictly between from and to that is nearest halfway along the route
+     */
+    static int midpoint(double[] along, int from, int to) {
+        double half = (along[from] + along[to]) / 2;
+        int low = from + 1, high = to - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (along[mid] < half) low = mid + 1; else high = mid;
+        }
+        if (low > from + 1 && half - along[low - 1] < along[low] - half) low--;
+        return low;
+    }
+
+    /**
+     * Failed and empty lookups match each other and nothing else.
+     */
+    static boolean sameLabel(GeocodeResponse a, GeocodeResponse b) {
+        if (a == null || b == null) return a == b;
+        return equal(a.getStreet(), b.getStreet()) && equal(a.getCity(), b.getCity())
+                && equal(a.getPostalCode(), b.getPostalCode());
+    }
+
+    private static boolean equal(String a, String b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    private static RouteSegment segment(GeocodeResult<LatLng> sample, int start, int end, double[] along) {
+        return new RouteSegment(sample.getInput(), start, end, along[end] - along[start],
+                sample.getResponse(), sample.getError());
+    }
+}
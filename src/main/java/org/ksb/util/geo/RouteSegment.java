@@ -0,0 +1,72 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+/**
+ * Stretch of a route whose sampled points share one street, city and postal code. The input
+ * is the route point that was geocoded for the segment.
+ */
+public class RouteSegment extends GeocodeResult<LatLng> {
+
+    private final int startIndex;
+    private final int endIndex;
+    private final double length;
+
+    public RouteSegment(LatLng input, int startIndex, int endIndex, double length,
+                        GeocodeResponse response, Throwable error) {
+        super(input, response, error);
+        this.startIndex = startIndex;
+        this.endIndex = endIndex;
+        this.length = length;
+    }
+
+    /**
+     * @return index of the first route point in the segment
+     */
+    public int getStartIndex() {
+        return startIndex;
+    }
+
+    /**
+     * @return index of the last route point in the segment, which is also the first point of
+     *         the next segment
+     */
+    public int getEndIndex() {
+        return endIndex;
+    }
+
+    /**
+     * @return length of the segment along the route, in meters
+     */
+    public double getLength() {
+        return length;
+    }
+}
@@ -164,9 +164,10 @@ public class ITG3Geocoder {
             assertTrue("US".equalsIgnoreCase(response.getCountryName())) ;
             assertTrue("11772".equalsIgnoreCase(response.getPostalCode())) ;
 
+            // position of the first (street address) result
             LatLng ll = response.getPosition();
-            assertTrue(ll.getLatitude() == 37.09024);
-            assertTrue(ll.getLongitude() == -95.712891);
+            assertEquals("latitude check", 40.686509, ll.getLatitude(), 0.0005);
+            assertEquals("longitude check", -72.996822, ll.getLongitude(), 0.0005);
 
             if (VERBOSE) {
                 System.out.println();
@@ -0,0 +1,227 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * End-to-end load test of the fetch/parse path against {@link StubGeocodeServer}.
+ *
+ * Starts the stub, points a shared {@link G3Geocoder} at it and drives it with an increasing
+ * number of client threads, reporting throughput and latency percentiles per thread count.
+ * No network access is needed. Run with the <code>loadtest</code> Maven profile:
+ *
+ * <pre>
+ *   mvn -P loadtest test -Dloadtest.args="-t 1,4,16 -d 10 -l 20 -j 10 -e 0.01"
+ * </pre>
+ *
+ * <ul>
+ * <li>-t comma-separated client thread counts (default 1,2,4,8)</li>
+ * <li>-d measured seconds per thread count (default 5)</li>
+ * <li>-w warm-up seconds before measuring (default 2)</li>
+ * <li>-l stub latency in milliseconds (default 0)</li>
+ * <li>-j stub latency jitter in milliseconds (default 0)</li>
+ * <li>-e fraction of requests answered with HTTP 500 (default 0)</li>
+ * <li>-s STATUS:rate status injection, e.g. OVER_QUERY_LIMIT:0.05</li>
+ * </ul>
+ */
+public class LoadTestHarness {
+
+    /**
+     * Outcome of one load run.
+     */
+    public static class Result {
+        public final int threads;
+        public final long operations;
+        public final long failures;
+        public final long elapsedNanos;
+        private final long[] sortedLatencies;
+
+        Result(int threads, long failures, long elapsedNanos, long[] sortedLatencies) {
+            this.threads = threads;
+            this.operations = sortedLatencies.length;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+            this.sortedLatencies = sortedLatencies;
+        }
+
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0.0 : operations * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @param percentile value in (0, 100]
+         * @return latency at the percentile in milliseconds
+         */
+        public double getPercentileMillis(double percentile) {
+            if (sortedLatencies.length == 0) return 0.0;
+            int index = (int) Math.ceil(sortedLatencies.length * (percentile / 100.0)) - 1;
+            index = Math.max(0, Math.min(sortedLatencies.length - 1, index));
+            return sortedLatencies[index] / 1e6;
+        }
+    }
+
+    /**
+     * Drive a geocoder with concurrent clients for a fixed time. Clients alternate forward
+     * and reverse lookups. A null response or an exception counts as a failure.
+     *
+     * @param geocoder geocoder under test, shared by all clients
+     * @param threads number of concurrent clients
+     * @param durationMillis how long to run
+     * @return result
+     * @throws InterruptedException if interrupted while waiting for clients
+     */
+    public static Result run(final IGeocoder geocoder, int threads, final long durationMillis)
+            throws InterruptedException {
+        final CountDownLatch startGate = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[][] latencies = new long[threads][];
+        final int[] counts = new int[threads];
+        final long[] failures = new long[threads];
+        final long[] deadline = new long[1];
+
+        for (int t = 0; t < threads; t++) {
+            final int client = t;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    long[] samples = new long[1024];
+                    int n = 0;
+                    long failed = 0;
+                    try {
+                        startGate.await();
+                        while (System.nanoTime() < deadline[0]) {
+                            long start = System.nanoTime();
+                            GeocodeResponse response;
+                            try {
+                                response = (n & 1) == 0
+                                        ? geocoder.getForwardGeocode("1488 Montgomery Highway Birmingham AL 35216")
+                                        : geocoder.getReverseGeocode(40.714224, -72.961452);
+                            } catch (Exception e) {
+                                response = null;
+                            }
+                            if (response == null) failed++;
+                            if (n == samples.length) samples = Arrays.copyOf(samples, n * 2);
+                            samples[n++] = System.nanoTime() - start;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        latencies[client] = samples;
+                        counts[client] = n;
+                        failures[client] = failed;
+                        done.countDown();
+                    }
+                }
+            }, "load-client-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long start = System.nanoTime();
+        deadline[0] = start + durationMillis * 1000000L;
+        startGate.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        int total = 0;
+        long failed = 0;
+        for (int t = 0; t < threads; t++) {
+            total += counts[t];
+            failed += failures[t];
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, all, offset, counts[t]);
+            offset += counts[t];
+        }
+        Arrays.sort(all);
+        return new Result(threads, failed, elapsed, all);
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> threadCounts = new ArrayList<Integer>(Arrays.asList(1, 2, 4, 8));
+        int seconds = 5;
+        int warmupSeconds = 2;
+        StubGeocodeServer server = new StubGeocodeServer();
+
+        int latency = 0;
+        int jitter = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String flag = args[i];
+            String value = args[i + 1];
+            if ("-t".equals(flag)) {
+                threadCounts.clear();
+                for (String count : value.split(",")) threadCounts.add(Integer.parseInt(count.trim()));
+            } else if ("-d".equals(flag)) {
+                seconds = Integer.parseInt(value);
+            } else if ("-w".equals(flag)) {
+                warmupSeconds = Integer.parseInt(value);
+            } else if ("-l".equals(flag)) {
+                latency = Integer.parseInt(value);
+            } else if ("-j".equals(flag)) {
+                jitter = Integer.parseInt(value);
+            } else if ("-e".equals(flag)) {
+                server.setErrorRate(Double.parseDouble(value));
+            } else if ("-s".equals(flag)) {
+                String[] parts = value.split(":");
+                server.setInjectedStatus(G3Status.fromCode(parts[0]), Double.parseDouble(parts[1]));
+            } else {
+                System.err.println("Unknown option " + flag);
+                System.exit(2);
+            }
+        }
+        server.setLatency(latency, jitter);
+        server.start();
+
+        try {
+            G3Geocoder geocoder = new G3Geocoder();
+            geocoder.setBaseURL(server.getBaseURL());
+
+            if (warmupSeconds > 0) run(geocoder, threadCounts.get(threadCounts.size() - 1), warmupSeconds * 1000L);
+
+            System.out.println(String.format("%8s %10s %10s %9s %9s %9s %9s %9s %9s",
+                    "threads", "ops", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "failures"));
+            for (int threads : threadCounts) {
+                Result r = run(geocoder, threads, seconds * 1000L);
+                System.out.println(String.format("%8d %10d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9d",
+                        r.threads, r.operations, r.getThroughput(),
+                        r.getPercentileMillis(50), r.getPercentileMillis(90), r.getPercentileMillis(99),
+                        r.getPercentileMillis(99.9), r.getPercentileMillis(100), r.failures));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
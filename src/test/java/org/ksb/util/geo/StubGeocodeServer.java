@@ -0,0 +1,300 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the Google V3 geocode endpoint. Replays the XML fixtures from the
+ * test resources, with optional latency, HTTP error and status injection.
+ *
+ * Point a geocoder at it with <code>geocoder.setBaseURL(server.getBaseURL())</code>.
+ * Forward requests (<code>?address=</code>) are answered with GoogleForwardGeocodeFull.xml,
+ * reverse requests (<code>?latlng=</code>) with GoogleReverseGeocodeFull.xml.
+ *
+ * Bodies are gzip or deflate encoded when the request's Accept-Encoding allows it, as
+ * Google does; see {@link #setCompression(boolean)}.
+ *
+ * Delayed responses are completed from a scheduler rather than by sleeping in the handler,
+ * so latency injection does not cap the number of requests the stub can hold in flight.
+ */
+public class StubGeocodeServer {
+
+    public static final String PATH = "/maps/api/geocode";
+
+    static {
+        // headers and body go out in separate writes; with Nagle on, the client's delayed ACK
+        // adds ~40 ms to every response
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final byte[] forwardBody;
+    private final byte[] reverseBody;
+    private final String errorTemplate;
+    private final byte[][] forwardEncoded;
+    private final byte[][] reverseEncoded;
+
+    private volatile int latencyMillis = 0;
+    private volatile int latencyJitterMillis = 0;
+    private volatile double errorRate = 0.0;
+    private volatile int errorStatus = 500;
+    private volatile double statusRate = 0.0;
+    private volatile G3Status injectedStatus = G3Status.ZERO_RESULTS;
+    private volatile boolean compression = true;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService handlerPool;
+    private ScheduledExecutorService scheduler;
+
+    public StubGeocodeServer() {
+        forwardBody = getResourceBytes("GoogleForwardGeocodeFull.xml");
+        reverseBody = getResourceBytes("GoogleReverseGeocodeFull.xml");
+        errorTemplate = new String(getResourceBytes("GoogleReverseGeocodeError.xml"), StandardCharsets.UTF_8);
+        try {
+            forwardEncoded = new byte[][] { encode(forwardBody, "gzip"), encode(forwardBody, "deflate") };
+            reverseEncoded = new byte[][] { encode(reverseBody, "gzip"), encode(reverseBody, "deflate") };
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Lifecycle
+    // ------------------------------------------------------------------------------
+
+    /**
+     * Start listening on an ephemeral loopback port.
+     *
+     * @return this server
+     * @throws IOException if the socket cannot be bound
+     */
+    public StubGeocodeServer start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        handlerPool = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+        scheduler = Executors.newScheduledThreadPool(2);
+        server.setExecutor(handlerPool);
+        server.createContext(PATH, new GeocodeHandler());
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        if (server != null) server.stop(0);
+        if (scheduler != null) scheduler.shutdownNow();
+        if (handlerPool != null) handlerPool.shutdownNow();
+        server = null;
+    }
+
+    /**
+     * @return base URL suitable for <code>G3Geocoder.setBaseURL</code>
+     */
+    public String getBaseURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + PATH;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Fault injection
+    // ------------------------------------------------------------------------------
+
+    /**
+     * @param millis fixed delay before each response
+     * @param jitterMillis additional uniformly random delay, up to this bound
+     */
+    public void setLatency(int millis, int jitterMillis) {
+        latencyMillis = millis;
+        latencyJitterMillis = jitterMillis;
+    }
+
+    /**
+     * @param rate fraction of requests, in [0,1], answered with the error status
+     */
+    public void setErrorRate(double rate) {
+        errorRate = rate;
+    }
+
+    /**
+     * @param status HTTP status for injected errors; default 500
+     */
+    public void setErrorStatus(int status) {
+        errorStatus = status;
+    }
+
+    /**
+     * @param status status to report instead of OK
+     * @param rate fraction of requests, in [0,1], answered with the status and no results
+     */
+    public void setInjectedStatus(G3Status status, double rate) {
+        injectedStatus = status;
+        statusRate = rate;
+    }
+
+    /**
+     * @param enabled false to always answer with an identity-encoded body
+     */
+    public void setCompression(boolean enabled) {
+        compression = enabled;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    // ------------------------------------------------------------------------------
+    // Request handling
+    // ------------------------------------------------------------------------------
+
+    private class GeocodeHandler implements HttpHandler {
+
+        public void handle(final HttpExchange exchange) throws IOException {
+            requestCount.incrementAndGet();
+
+            int delay = latencyMillis;
+            if (latencyJitterMillis > 0) delay += ThreadLocalRandom.current().nextInt(latencyJitterMillis + 1);
+
+            if (delay <= 0) {
+                respond(exchange);
+            } else {
+                scheduler.schedule(new Runnable() {
+                    public void run() {
+                        try {
+                            respond(exchange);
+                        } catch (IOException e) {
+                            exchange.close();
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Write the response for an exchange. Subclasses may override to alter framing
+     * (e.g. content encoding).
+     *
+     * @param exchange exchange to complete
+     * @throws IOException on write failure
+     */
+    protected void respond(HttpExchange exchange) throws IOException {
+        try {
+            Random random = ThreadLocalRandom.current();
+            if (errorRate > 0 && random.nextDouble() < errorRate) {
+                errorCount.incrementAndGet();
+                exchange.sendResponseHeaders(errorStatus, -1);
+                return;
+            }
+
+            byte[] body;
+            if (statusRate > 0 && random.nextDouble() < statusRate) {
+                body = errorTemplate.replace("ZERO_RESULTS", injectedStatus.name()).getBytes(StandardCharsets.UTF_8);
+            } else {
+                String query = exchange.getRequestURI().getRawQuery();
+                body = (query != null && query.startsWith("latlng=")) ? reverseBody : forwardBody;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=UTF-8");
+            String encoding = compression ? negotiateEncoding(exchange.getRequestHeaders().getFirst("Accept-Encoding")) : null;
+            if (encoding != null) {
+                int index = "gzip".equals(encoding) ? 0 : 1;
+                if (body == forwardBody) body = forwardEncoded[index];
+                else if (body == reverseBody) body = reverseEncoded[index];
+                else body = encode(body, encoding);
+                exchange.getResponseHeaders().set("Content-Encoding", encoding);
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @param acceptEncoding request header, may be null
+     * @return "gzip", "deflate" or null for identity
+     */
+    static String negotiateEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        String accept = acceptEncoding.toLowerCase();
+        if (accept.contains("gzip")) return "gzip";
+        if (accept.contains("deflate")) return "deflate";
+        return null;
+    }
+
+    static byte[] encode(byte[] body, String encoding) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 64);
+        OutputStream out = "gzip".equals(encoding) ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes);
+        out.write(body);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private byte[] getResourceBytes(String resourceName) {
+        InputStream in = getClass().getResourceAsStream("/" + resourceName);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+            in.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read fixture " + resourceName, e);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Adaptive concurrency limiter tests
+ */
+public class TestAdaptiveConcurrencyLimiter {
+
+    @Test
+    public void testLimit() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 10);
+        AdaptiveConcurrencyLimiter.Permit a = limiter.tryAcquire();
+        AdaptiveConcurrencyLimiter.Permit b = limiter.tryAcquire();
+        assertNotNull(a);
+        assertNotNull(b);
+        assertNull(limiter.tryAcquire());
+        assertEquals(2, limiter.getInFlight());
+
+        a.ignore();
+        a.ignore();     // completing twice has no further effect
+        assertEquals(1, limiter.getInFlight());
+        assertNotNull(limiter.tryAcquire());
+    }
+
+    @Test
+    public void testAsyncWaitersGrantedInOrder() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        AdaptiveConcurrencyLimiter.Permit held = limiter.tryAcquire();
+
+        CompletableFuture<AdaptiveConcurrencyLimiter.Permit> first = limiter.acquireAsync();
+        CompletableFuture<AdaptiveConcurrencyLimiter.Permit> cancelled = limiter.acquireAsync();
+        CompletableFuture<AdaptiveConcurrencyLimiter.Permit> second = limiter.acquireAsync();
+        assertEquals(3, limiter.getQueued());
+        assertNull("waiters go first", limiter.tryAcquire());
+
+        cancelled.cancel(false);
+        held.ignore();
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+
+        first.get().ignore();
+        assertTrue(second.isDone());
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(0, limiter.getQueued());
+    }
+
+    @Test
+    public void testQueueFullRejects() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        limiter.setMaxQueue(0);
+        limiter.tryAcquire();
+
+        try {
+            limiter.acquireAsync().get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertNull(limiter.acquire(1, TimeUnit.SECONDS));
+        assertEquals(2, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void testAcquireTimesOut() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        limiter.tryAcquire();
+        long start = System.nanoTime();
+        assertNull(limiter.acquire(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(45));
+        assertEquals(0, limiter.getQueued());
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void testAdditiveIncreaseMultiplicativeDecrease() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 8);
+        for (int round = 0; round < 50; round++) {
+            List<AdaptiveConcurrencyLimiter.Permit> permits = new ArrayList<AdaptiveConcurrencyLimiter.Permit>();
+            AdaptiveConcurrencyLimiter.Permit permit;
+            while ((permit = limiter.tryAcquire()) != null) permits.add(permit);
+            for (AdaptiveConcurrencyLimiter.Permit p : permits) p.success();
+        }
+        assertEquals(8, limiter.getLimit());
+
+        for (int i = 0; i < 7; i++) limiter.tryAcquire().dropped();
+        assertTrue(limiter.getLimit() < 8);
+        assertEquals(7, limiter.getDroppedCount());
+    }
+
+    @Test
+    public void testSlowRoundTripBacksOff() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 8);
+        limiter.setBackoffRatio(0.5);
+        for (int i = 0; i < 5; i++) limiter.tryAcquire().success();
+        int before = limiter.getLimit();
+
+        AdaptiveConcurrencyLimiter.Permit slow = limiter.tryAcquire();
+        Thread.sleep(50);
+        slow.success();
+        assertTrue(limiter.getLimit() < before);
+    }
+
+    @Test
+    public void testGeocoderBlockingAndAsync() throws Exception {
+        StubGeocodeServer server = new StubGeocodeServer().start();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            server.setLatency(20, 0);
+            AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 2);
+            G3Geocoder gc = G3Geocoder.builder()
+                    .baseURL(server.getBaseURL())
+                    .concurrencyLimiter(limiter)
+                    .build();
+
+            List<CompletableFuture<GeocodeResponse>> futures = new ArrayList<CompletableFuture<GeocodeResponse>>();
+            for (int i = 0; i < 8; i++) futures.add(gc.getReverseGeocodeAsync(40.714224, -72.961452 + i, pool));
+            assertTrue(limiter.getInFlight() <= 2);
+            assertNotNull(gc.getForwardGeocode("1488 Montgomery Highway Birmingham AL 35216"));
+            for (CompletableFuture<GeocodeResponse> f : futures) assertEquals("Dune Walk", f.get().getStreet());
+
+            assertEquals(0, limiter.getInFlight());
+            assertEquals(9, server.getRequestCount());
+            assertTrue(limiter.getMinRttMicros() > 0);
+
+            limiter.setMaxQueue(0);
+            limiter.tryAcquire();
+            limiter.tryAcquire();
+            try {
+                gc.getForwardGeocode("1488 Montgomery Highway Birmingham AL 35216");
+                fail();
+            } catch (RejectedExecutionException e) {
+                assertEquals(1, gc.getMetrics().getErrorCount());
+            }
+        } finally {
+            pool.shutdownNow();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testLanesShareByWeight() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        limiter.setWeight(GeocodePriority.INTERACTIVE, 3);
+        AdaptiveConcurrencyLimiter.Permit held = limiter.tryAcquire();
+        List<CompletableFuture<AdaptiveConcurrencyLimiter.Permit>> bulk = new ArrayList<CompletableFuture<AdaptiveConcurrencyLimiter.Permit>>();
+        List<CompletableFuture<AdaptiveConcurrencyLimiter.Permit>> interactive = new ArrayList<CompletableFuture<AdaptiveConcurrencyLimiter.Permit>>();
+        for (int i = 0; i < 8; i++) bulk.add(limiter.acquireAsync(GeocodePriority.BULK));
+        for (int i = 0; i < 8; i++) interactive.add(limiter.acquireAsync(GeocodePriority.INTERACTIVE));
+        assertEquals(Integer.valueOf(8), limiter.getLaneQueued().get("BULK"));
+
+        // hand the single permit along eight times and count which lane got it
+        held.ignore();
+        for (int i = 0; i < 7; i++) nextGranted(bulk, interactive).ignore();
+        assertEquals(8, limiter.getQueued());
+        assertEquals(Integer.valueOf(6), limiter.getLaneQueued().get("BULK"));
+        assertEquals(Integer.valueOf(2), limiter.getLaneQueued().get("INTERACTIVE"));
+    }
+
+    private static AdaptiveConcurrencyLimiter.Permit nextGranted(List<CompletableFuture<AdaptiveConcurrencyLimiter.Permit>> a,
+                                                                 List<CompletableFuture<AdaptiveConcurrencyLimiter.Permit>> b) {
+        AdaptiveConcurrencyLimiter.Permit found = null;
+        for (List<CompletableFuture<AdaptiveConcurrencyLimiter.Permit>> list : Arrays.asList(a, b)) {
+            for (Iterator<CompletableFuture<AdaptiveConcurrencyLimiter.Permit>> it = list.iterator(); it.hasNext(); ) {
+                CompletableFuture<AdaptiveConcurrencyLimiter.Permit> f = it.next();
+                if (f.isDone()) {
+                    assertNull(found);
+                    found = f.join();
+                    it.remove();
+                }
+            }
+        }
+        assertNotNull(found);
+        return found;
+    }
+
+    @Test
+    public void testReservedPermits() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(3, 1, 3);
+        limiter.setReservedPermits(1);
+        assertNotNull(limiter.tryAcquire(GeocodePriority.BULK));
+        assertNotNull(limiter.tryAcquire(GeocodePriority.BULK));
+        assertNull(limiter.tryAcquire(GeocodePriority.BULK));
+        assertNotNull(limiter.tryAcquire(GeocodePriority.INTERACTIVE));
+        assertNull(limiter.tryAcquire(GeocodePriority.INTERACTIVE));
+    }
+
+    @Test
+    public void testInteractivePreemptsQueuedBulk() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        limiter.setMaxQueue(2);
+        AdaptiveConcurrencyLimiter.Permit held = limiter.tryAcquire(GeocodePriority.BULK);
+        CompletableFuture<AdaptiveConcurrencyLimiter.Permit> first = limiter.acquireAsync(GeocodePriority.BULK);
+        CompletableFuture<AdaptiveConcurrencyLimiter.Permit> second = limiter.acquireAsync(GeocodePriority.BULK);
+        assertTrue(limiter.acquireAsync(GeocodePriority.BULK).isCompletedExceptionally());
+
+        CompletableFuture<AdaptiveConcurrencyLimiter.Permit> interactive = limiter.acquireAsync(GeocodePriority.INTERACTIVE);
+        assertFalse(interactive.isDone());
+        try {
+            second.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertFalse(first.isDone());
+        assertEquals(1, limiter.getPreemptedCount());
+
+        held.success();
+        assertTrue(interactive.isDone());
+        interactive.get().success();
+        assertTrue(first.isDone());
+        first.get().success();
+        assertEquals(0, limiter.getQueued());
+    }
+
+    @Test
+    public void testInteractiveLatencyDuringBulkRun() throws Exception {
+        StubGeocodeServer server = new StubGeocodeServer().start();
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        try {
+            server.setLatency(10, 0);
+            AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 4, 4);
+            G3Geocoder bulk = G3Geocoder.builder()
+                    .baseURL(server.getBaseURL())
+                    .concurrencyLimiter(limiter)
+                    .priority(GeocodePriority.BULK)
+                    .build();
+            G3Geocoder interactive = G3Geocoder.builder()
+                    .baseURL(server.getBaseURL())
+                    .concurrencyLimiter(limiter)
+                    .build();
+
+            List<CompletableFuture<GeocodeResponse>> batch = new ArrayList<CompletableFuture<GeocodeResponse>>();
+            for (int i = 0; i < 400; i++) batch.add(bulk.getReverseGeocodeAsync(40.714224, -72.961452 + i, pool));
+            for (int i = 0; i < 10; i++) {
+                assertEquals("Dune Walk", interactive.getReverseGeocode(40.714224, -72.0 - i).getStreet());
+            }
+            for (CompletableFuture<GeocodeResponse> f : batch) f.get();
+
+            long interactiveP99 = limiter.getWaitHistogram(GeocodePriority.INTERACTIVE).getPercentileNanos(99.0);
+            long bulkP99 = limiter.getWaitHistogram(GeocodePriority.BULK).getPercentileNanos(99.0);
+            // a FIFO queue would make the interactive lookups wait out most of the batch (~1s)
+            assertTrue("interactive p99 " + interactiveP99, interactiveP99 < TimeUnit.MILLISECONDS.toNanos(300));
+            assertTrue(bulkP99 > interactiveP99);
+            assertEquals(0, limiter.getInFlight());
+        } finally {
+            pool.shutdownNow();
+            server.stop();
+        }
+    }
+}
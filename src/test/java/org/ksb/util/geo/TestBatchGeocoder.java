@@ -0,0 +1,187 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Batch geocoding tests using an in-memory geocoder
+ */
+public class TestBatchGeocoder {
+
+    /**
+     * Answers with the input echoed into the street field, after a random delay so
+     * that lookups complete out of order.
+     */
+    static class EchoGeocoder implements IGeocoder {
+        final AtomicInteger lookups = new AtomicInteger();
+
+        public GeocodeResponse getForwardGeocode(String address) throws Exception {
+            lookups.incrementAndGet();
+            Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+            if (address.startsWith("bad")) return null;
+            if (address.startsWith("boom")) throw new Exception("boom");
+            GeocodeResponse gr = new GeocodeResponse();
+            gr.setStreet(address);
+            gr.setPosition(new LatLng(1.0, 2.0));
+            return gr;
+        }
+
+        public GeocodeResponse getReverseGeocode(double lat, double lon) throws Exception {
+            lookups.incrementAndGet();
+            Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+            GeocodeResponse gr = new GeocodeResponse();
+            gr.setCity("reverse");
+            gr.setPosition(new LatLng(lat, lon));
+            return gr;
+        }
+
+        public GeocodeResponse getReverseGeocode(LatLng position) throws Exception {
+            return getReverseGeocode(position.getLatitude(), position.getLongitude());
+        }
+    }
+
+    @Test
+    public void testOrderPreserved() throws Exception {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 500; i++) input.append("addr").append(i).append("\n");
+
+        BatchGeocoder batch = new BatchGeocoder(new EchoGeocoder());
+        batch.setParallelism(8);
+        StringWriter out = new StringWriter();
+        batch.run(new StringReader(input.toString()), out, null);
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(501, lines.length);
+        assertTrue(lines[0].startsWith("input,status"));
+        for (int i = 0; i < 500; i++) {
+            assertTrue(lines[i + 1], lines[i + 1].startsWith("addr" + i + ",OK,1.0,2.0,,addr" + i + ","));
+        }
+        assertEquals(500, batch.getProcessed());
+        assertEquals(0, batch.getFailed());
+    }
+
+    @Test
+    public void testMixedInputsAndFailures() throws Exception {
+        String input = "40.5, -73.25\n\nbad address\nboom\n10 Market St, San Francisco\n";
+
+        BatchGeocoder batch = new BatchGeocoder(new EchoGeocoder());
+        batch.setFormat(BatchGeocoder.Format.TSV);
+        StringWriter out = new StringWriter();
+        batch.run(new StringReader(input), out, null);
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(5, lines.length);
+        assertTrue(lines[1], lines[1].startsWith("40.5, -73.25\tOK\t40.5\t-73.25\t"));
+        assertTrue(lines[2], lines[2].startsWith("bad address\tNO_RESULT\t"));
+        assertTrue(lines[3], lines[3].startsWith("boom\tERROR\t") && lines[3].endsWith("\tboom"));
+        assertTrue(lines[4], lines[4].startsWith("10 Market St, San Francisco\tOK\t"));
+        assertEquals(2, batch.getFailed());
+    }
+
+    @Test
+    public void testCsvQuoting() throws Exception {
+        StringWriter out = new StringWriter();
+        new BatchGeocoder(new EchoGeocoder()).run(new StringReader("10 \"Main\" St, Springfield\n"), out, null);
+
+        String row = out.toString().split("\n")[1];
+        assertTrue(row, row.startsWith("\"10 \"\"Main\"\" St, Springfield\",OK,"));
+    }
+
+    @Test
+    public void testParseCoordinate() {
+        assertEquals(new LatLng(40.5, -73.25), BatchGeocoder.parseCoordinate("40.5,-73.25"));
+        assertNull(BatchGeocoder.parseCoordinate("Birmingham, AL"));
+        assertNull(BatchGeocoder.parseCoordinate("1,2,3"));
+        assertNull(BatchGeocoder.parseCoordinate("35216"));
+    }
+
+    @Test
+    public void testGeocodeAllFansBackDuplicates() throws Exception {
+        EchoGeocoder geocoder = new EchoGeocoder();
+        BatchGeocoder batch = new BatchGeocoder(geocoder);
+        List<String> inputs = Arrays.asList("addr1", "40.5,-73.25", "ADDR1", "addr2", "addr1 ", "40.5,-73.25");
+        List<GeocodeResult<String>> results = batch.geocodeAll(inputs);
+
+        assertEquals(6, results.size());
+        assertEquals(3, geocoder.lookups.get());
+        assertEquals(3, batch.getUniqueCount());
+        for (int i = 0; i < inputs.size(); i++) assertEquals(inputs.get(i), results.get(i).getInput());
+        assertSame(results.get(0).getResponse(), results.get(2).getResponse());
+        assertSame(results.get(0).getResponse(), results.get(4).getResponse());
+        assertSame(results.get(1).getResponse(), results.get(5).getResponse());
+        assertEquals("addr2", results.get(3).getResponse().getStreet());
+    }
+
+    @Test
+    public void testDeduplicatedRunMatchesPlainRun() throws Exception {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 2000; i++) input.append("addr").append(i % 150).append("\n");
+        input.append("boom\nbad\nboom\n");
+
+        StringWriter plain = new StringWriter();
+        new BatchGeocoder(new EchoGeocoder()).run(new StringReader(input.toString()), plain, null);
+
+        File spillDir = Files.createTempDirectory("dedup-test").toFile();
+        try {
+            for (int threshold : new int[] { 100000, 100, 5 }) {
+                EchoGeocoder geocoder = new EchoGeocoder();
+                BatchGeocoder batch = new BatchGeocoder(geocoder);
+                batch.setParallelism(4);
+                batch.setDeduplicate(true);
+                batch.setSpillThreshold(threshold);
+                batch.setSpillDirectory(spillDir);
+                StringWriter out = new StringWriter();
+                batch.run(new StringReader(input.toString()), out, null);
+
+                assertEquals(plain.toString(), out.toString());
+                assertEquals(152, geocoder.lookups.get());
+                assertEquals(152, batch.getUniqueCount());
+                assertEquals(2003, batch.getProcessed());
+                assertEquals(3, batch.getFailed());
+                assertEquals(0, spillDir.list().length);
+            }
+        } finally {
+            spillDir.delete();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Batch journal and resumable batch tests
+ */
+public class TestBatchJournal {
+
+    private static final int INPUTS = 2000;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    private static String input() {
+        StringBuilder strb = new StringBuilder();
+        for (int i = 0; i < INPUTS; i++) strb.append("addr").append(i).append('\n');
+        return strb.toString();
+    }
+
+    @Test
+    public void testReplayAndTornTail() throws Exception {
+        File file = new File(dir, "journal");
+        BatchJournal journal = BatchJournal.open(file, 5);
+        journal.append(3, new String[] { "addr3", "OK", null, "xé" });
+        journal.append(7, new String[] { "addr7", "NO_RESULT" });
+        journal.sync();
+        journal.close();
+
+        long intact = file.length();
+        FileOutputStream garbage = new FileOutputStream(file, true);
+        garbage.write(new byte[] { 0, 0, 0, 40, 1, 2, 3, 4, 5, 6 });
+        garbage.close();
+
+        journal = BatchJournal.open(file);
+        assertEquals(2, journal.getCompletedCount());
+        assertArrayEquals(new String[] { "addr3", "OK", null, "xé" }, journal.getCompleted(3));
+        assertEquals("NO_RESULT", journal.getCompleted(7)[1]);
+        assertNull(journal.getCompleted(5));
+        assertEquals(intact, file.length());
+
+        journal.append(9, new String[] { "addr9", "OK" });
+        journal.close();
+        journal = BatchJournal.open(file);
+        assertEquals(3, journal.getCompletedCount());
+        journal.close();
+    }
+
+    @Test
+    public void testSyncDoesNotWaitForInterval() throws Exception {
+        BatchJournal journal = BatchJournal.open(new File(dir, "journal"), TimeUnit.MINUTES.toMillis(10));
+        try {
+            long start = System.nanoTime();
+            journal.append(1, new String[] { "addr1", "OK" });
+            journal.append(2, new String[] { "addr2", "OK" });
+            journal.sync();
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30));
+        } finally {
+            journal.close();
+        }
+        journal = BatchJournal.open(new File(dir, "journal"));
+        assertEquals(2, journal.getCompletedCount());
+        journal.close();
+    }
+
+    @Test
+    public void testResumeSkipsJournaledRows() throws Exception {
+        File file = new File(dir, "journal");
+        BatchJournal journal = BatchJournal.open(file);
+        journal.append(0, new String[] { "addr0", "OK", null, null, null, "from journal" });
+        journal.append(5, new String[] { "not the same input", "OK" });
+        journal.close();
+
+        TestBatchGeocoder.EchoGeocoder geocoder = new TestBatchGeocoder.EchoGeocoder();
+        BatchGeocoder batch = new BatchGeocoder(geocoder);
+        batch.setJournal(file);
+        StringWriter out = new StringWriter();
+        batch.run(new StringReader("addr0\nboom\naddr2\naddr3\naddr4\naddr5\n"), out, null);
+
+        String[] lines = out.toString().split("\n");
+        assertTrue(lines[1], lines[1].startsWith("addr0,OK,,,,from journal"));
+        assertTrue(lines[6], lines[6].startsWith("addr5,OK,1.0,2.0,,addr5,"));
+        assertEquals(1, batch.getResumedCount());
+        assertEquals(5, geocoder.lookups.get());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testResumeAfterKill() throws Exception {
+        File file = new File(dir, "journal");
+        Process child = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                TestBatchJournal.class.getName(), file.getPath())
+                .redirectErrorStream(true)
+                .redirectOutput(new File(dir, "child.log"))
+                .start();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (file.length() < 8192 && System.nanoTime() < deadline) Thread.sleep(10);
+        } finally {
+            child.destroyForcibly();
+            child.waitFor();
+        }
+        assertTrue("child did not journal anything", file.length() >= 8192);
+
+        int journaled;
+        BatchJournal journal = BatchJournal.open(file);
+        journaled = journal.getCompletedCount();
+        journal.close();
+        assertTrue(journaled > 0 && journaled < INPUTS);
+
+        TestBatchGeocoder.EchoGeocoder geocoder = new TestBatchGeocoder.EchoGeocoder();
+        BatchGeocoder batch = new BatchGeocoder(geocoder);
+        batch.setParallelism(8);
+        batch.setJournal(file);
+        StringWriter out = new StringWriter();
+        batch.run(new StringReader(input()), out, null);
+
+        assertEquals(journaled, batch.getResumedCount());
+        assertEquals(INPUTS - journaled, geocoder.lookups.get());
+        String[] lines = out.toString().split("\n");
+        assertEquals(INPUTS + 1, lines.length);
+        for (int i = 0; i < INPUTS; i++) {
+            assertTrue(lines[i + 1], lines[i + 1].startsWith("addr" + i + ",OK,1.0,2.0,,addr" + i + ","));
+        }
+    }
+
+    /**
+     * Child process for {@link #testResumeAfterKill()}: a slow journaled run that is killed
+     * part way through.
+     */
+    public static void main(String[] args) throws Exception {
+        BatchGeocoder batch = new BatchGeocoder(new TestBatchGeocoder.EchoGeocoder() {
+            public GeocodeResponse getForwardGeocode(String address) throws Exception {
+                Thread.sleep(2);
+                return super.getForwardGeocode(address);
+            }
+        });
+        batch.setParallelism(4);
+        batch.setJournal(new File(args[0]));
+        Writer discard = new StringWriter();
+        batch.run(new StringReader(input()), discard, null);
+    }
+}
@@ -0,0 +1,113 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Compact response tests
+ */
+public class TestCompactGeocodeResponse {
+
+    private GeocodeResponse sample(String city) {
+        GeocodeResponse gr = GeocodeFixtures.duneWalk();
+        gr.setCity(city);
+        return gr;
+    }
+
+    @Test
+    public void testCopiesValues() {
+        CompactGeocodeResponse gr = CompactGeocodeResponse.of(sample("Brookhaven"), new GeocodeStringPool(100));
+
+        assertEquals("33", gr.getBuildingNumber());
+        assertEquals("Dune Walk", gr.getStreet());
+        assertEquals("Brookhaven", gr.getCity());
+        assertEquals("Suffolk", gr.getCounty());
+        assertEquals("NY", gr.getState());
+        assertEquals("US", gr.getCountryName());
+        assertEquals("11772", gr.getPostalCode());
+        assertEquals(new LatLng(40.6865090, -72.9968220), gr.getPosition());
+        assertNull(gr.getBuildingNumberLow());
+    }
+
+    @Test
+    public void testBuildingNumberRange() {
+        GeocodeResponse source = new GeocodeResponse();
+        source.setBuildingNumberLow(100);
+        source.setBuildingNumberHigh(198);
+
+        CompactGeocodeResponse gr = CompactGeocodeResponse.of(source);
+        assertEquals("100-198", gr.getBuildingNumber());
+        assertEquals(Integer.valueOf(198), gr.getBuildingNumberHigh());
+        assertNull(gr.getPosition());
+        assertTrue(Double.isNaN(gr.getLatitude()));
+    }
+
+    @Test
+    public void testValuesShared() {
+        GeocodeStringPool pool = new GeocodeStringPool(100);
+        CompactGeocodeResponse a = CompactGeocodeResponse.of(sample(new String("Brookhaven")), pool);
+        CompactGeocodeResponse b = CompactGeocodeResponse.of(sample(new String("Brookhaven")), pool);
+
+        assertSame(a.getCity(), b.getCity());
+        assertSame(a.getCounty(), b.getCounty());
+        assertSame(a, CompactGeocodeResponse.of(a, pool));
+    }
+
+    @Test
+    public void testHighCardinalityNotPooled() {
+        GeocodeStringPool pool = new GeocodeStringPool(100);
+        CompactGeocodeResponse.of(sample("Brookhaven"), pool);
+        int size = pool.size();
+
+        GeocodeResponse other = sample("Brookhaven");
+        other.setStreet("Bay Avenue");
+        other.setPostalCode("11719");
+        CompactGeocodeResponse.of(other, pool);
+        assertEquals(size, pool.size());
+    }
+
+    @Test
+    public void testPoolCapacity() {
+        GeocodeStringPool pool = new GeocodeStringPool(1);
+        assertEquals("a", pool.intern("a"));
+        String b = new String("b");
+        assertSame(b, pool.intern(b));
+        assertEquals(1, pool.size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() {
+        CompactGeocodeResponse.of(sample("Brookhaven")).setCity("Patchogue");
+    }
+}
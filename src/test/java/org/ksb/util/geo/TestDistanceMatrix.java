@@ -0,0 +1,134 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Distance matrix and nearest-column tests
+ */
+public class TestDistanceMatrix {
+
+    private static List<LatLng> points(Random random, int count) {
+        List<LatLng> points = new ArrayList<LatLng>(count);
+        for (int i = 0; i < count; i++) {
+            // half spread worldwide, half within a city so short distances are covered
+            points.add((i % 2 == 0)
+                    ? new LatLng(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180)
+                    : new LatLng(40.7 + random.nextDouble() * 0.1, -74.0 + random.nextDouble() * 0.1));
+        }
+        return points;
+    }
+
+    @Test
+    public void testMatchesDistanceTo() {
+        Random random = new Random(3);
+        List<LatLng> rows = points(random, 150);
+        List<LatLng> columns = points(random, 301);
+
+        DistanceMatrix matrix = new DistanceMatrix();
+        matrix.setParallelism(3);
+        matrix.setTileSize(16, 64);
+        double[] distances = matrix.distances(rows, columns);
+        assertEquals(150 * 301, distances.length);
+        for (int i = 0; i < rows.size(); i++) {
+            for (int j = 0; j < columns.size(); j++) {
+                double expected = rows.get(i).distanceTo(columns.get(j));
+                assertEquals(i + "," + j, expected, distances[i * 301 + j], 1e-6 + expected * 1e-9);
+            }
+        }
+        assertEquals(0, matrix.distances(rows, rows)[0], 1e-6);
+        assertEquals(0, matrix.distances(rows, Collections.<LatLng>emptyList()).length);
+    }
+
+    @Test
+    public void testFloatOutput() {
+        Random random = new Random(5);
+        double[] rows = coordinates(points(random, 40));
+        double[] columns = coordinates(points(random, 70));
+        DistanceMatrix matrix = new DistanceMatrix();
+        double[] doubles = new double[40 * 70];
+        float[] floats = new float[40 * 70];
+        matrix.distances(rows, columns, doubles);
+        matrix.distances(rows, columns, floats);
+        for (int i = 0; i < doubles.length; i++) assertEquals((float) doubles[i], floats[i], 0);
+
+        try {
+            matrix.distances(rows, columns, new float[40 * 70 - 1]);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testNearest() {
+        Random random = new Random(9);
+        List<LatLng> rows = points(random, 200);
+        List<LatLng> columns = points(random, 500);
+
+        DistanceMatrix matrix = new DistanceMatrix();
+        matrix.setParallelism(2);
+        matrix.setTileSize(32, 100);
+        double[] distances = matrix.distances(rows, columns);
+        DistanceMatrix.Nearest nearest = matrix.nearest(rows, columns, 5);
+        assertEquals(5, nearest.getK());
+        for (int i = 0; i < rows.size(); i++) {
+            double[] row = Arrays.copyOfRange(distances, i * 500, i * 500 + 500);
+            Arrays.sort(row);
+            for (int rank = 0; rank < 5; rank++) {
+                assertEquals(row[rank], nearest.getDistance(i, rank), 0);
+                assertEquals(row[rank], distances[i * 500 + nearest.getIndex(i, rank)], 0);
+            }
+        }
+
+        DistanceMatrix.Nearest all = matrix.nearest(rows.subList(0, 3), columns.subList(0, 2), 10);
+        assertEquals(2, all.getK());
+        assertEquals(6, all.getIndexes().length);
+        assertTrue(all.getDistance(0, 0) <= all.getDistance(0, 1));
+    }
+
+    private static double[] coordinates(List<LatLng> points) {
+        double[] coords = new double[points.size() * 2];
+        for (int i = 0; i < points.size(); i++) {
+            coords[2 * i] = points.get(i).getLatitude();
+            coords[2 * i + 1] = points.get(i).getLongitude();
+        }
+        return coords;
+    }
+}
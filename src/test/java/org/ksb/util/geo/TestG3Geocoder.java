@@ -31,6 +31,7 @@
 package org.ksb.util.geo;
 
 import java.io.InputStream;
+import java.util.EnumSet;
 import java.util.Properties;
 
 import static org.junit.Assert.*;
@@ -138,6 +139,106 @@ public class TestG3Geocoder {
 
     }
 
+    @Test
+    public void testReverseGeocodeResults() {
+        G3Geocoder gc = new G3Geocoder();
+
+        String stringResponse = getTestFileAsString("GoogleReverseGeocodeFull.xml");
+        GeocodeResults results = gc.toResults(stringResponse, new LatLng(40.714224, -72.961452));
+
+        assertEquals(G3Status.OK, results.getStatus());
+        assertEquals(6, results.size());
+        assertEquals("only first result decoded", 1, results.getDecodedCount());
+
+        GeocodeResponse first = results.get(0);
+        assertEquals("33", first.getBuildingNumber());
+        assertEquals("Dune Walk", first.getStreet());
+        assertEquals("Brookhaven", first.getCity());
+        assertEquals("Suffolk", first.getCounty());
+        assertEquals("NY", first.getState());
+        assertEquals("US", first.getCountryName());
+        assertEquals("11772", first.getPostalCode());
+
+        // position comes from the first result, not the last
+        assertEquals(40.6865090, first.getPosition().getLatitude(), 0.0);
+        assertEquals(-72.9968220, first.getPosition().getLongitude(), 0.0);
+
+        GeocodeResponse county = results.get(2);
+        assertEquals(2, results.getDecodedCount());
+        assertNull(county.getStreet());
+        assertNull(county.getCity());
+        assertEquals("Suffolk", county.getCounty());
+        assertEquals(40.9848784, county.getPosition().getLatitude(), 0.0);
+
+        assertSame(county, results.get(2));
+        assertEquals("US", results.get(5).getCountryName());
+    }
+
+    @Test
+    public void testForwardGeocodeResults() {
+        G3Geocoder gc = new G3Geocoder();
+
+        GeocodeResults results = gc.toResults(getTestFileAsString("GoogleForwardGeocodeFull.xml"), null);
+        assertEquals(1, results.size());
+
+        GeocodeResponse gr = results.first();
+        assertEquals("1488", gr.getBuildingNumber());
+        assertEquals("Montgomery Hwy S", gr.getStreet());
+        assertEquals("Birmingham", gr.getCity());
+        assertEquals("Jefferson", gr.getCounty());
+        assertEquals("35216", gr.getPostalCode());
+        assertEquals(new LatLng(33.4150590, -86.8049130), gr.getPosition());
+    }
+
+    @Test
+    public void testFieldMask() {
+        G3Geocoder gc = new G3Geocoder();
+        String forward = getTestFileAsString("GoogleForwardGeocodeFull.xml");
+
+        GeocodeResponse gr = gc.toResponse(forward, null, EnumSet.of(GeocodeField.POSITION));
+        assertEquals(new LatLng(33.4150590, -86.8049130), gr.getPosition());
+        assertNull(gr.getStreet());
+        assertNull(gr.getCity());
+        assertNull(gr.getPostalCode());
+
+        gr = gc.toResponse(forward, null, EnumSet.of(GeocodeField.POSTAL_CODE, GeocodeField.LOCALITY));
+        assertNull(gr.getPosition());
+        assertEquals("35216", gr.getPostalCode());
+        assertEquals("Birmingham", gr.getCity());
+        assertNull(gr.getState());
+
+        // administrative_area_level_3 preferred over locality, as for the full decode
+        String reverse = getTestFileAsString("GoogleReverseGeocodeFull.xml");
+        gr = gc.toResponse(reverse, null, EnumSet.of(GeocodeField.LOCALITY, GeocodeField.COUNTRY));
+        assertEquals("Brookhaven", gr.getCity());
+        assertEquals("US", gr.getCountryName());
+
+        GeocodeResponse all = gc.toResponse(reverse, null, GeocodeField.all());
+        GeocodeResponse first = gc.toResults(reverse, null).first();
+        assertEquals(first.getStreet(), all.getStreet());
+        assertEquals(first.getPosition(), all.getPosition());
+    }
+
+    @Test
+    public void testErrorResults() {
+        G3Geocoder gc = new G3Geocoder();
+
+        GeocodeResults results = gc.toResults(getTestFileAsString("GoogleReverseGeocodeError.xml"), null);
+        assertEquals(G3Status.ZERO_RESULTS, results.getStatus());
+        assertTrue(results.isEmpty());
+        assertNull(results.first());
+    }
+
+    @Test
+    public void testResultEntities() {
+        String xml = "<GeocodeResponse><status>OK</status><result><address_component>"
+                + "<short_name>Fish &amp; Chips &#x4C;n</short_name><type>route</type>"
+                + "</address_component></result></GeocodeResponse>";
+        GeocodeResults results = new G3Geocoder().toResults(xml, null);
+        assertEquals("Fish & Chips Ln", results.first().getStreet());
+        assertNull(results.first().getPosition());
+    }
+
     /**
      * <code>
      * Reference: https://developers.google.com/maps/documentation/business/webservices/auth
@@ -0,0 +1,185 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Immutable geocoder tests, including a shared-instance stress run against the stub server
+ */
+public class TestG3GeocoderBuilder {
+
+    private static final String ADDRESS = "1488 Montgomery Highway Birmingham AL 35216";
+
+    private StubGeocodeServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGeocodeServer().start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testBuild() {
+        G3Geocoder gc = G3Geocoder.builder()
+                .baseURL(server.getBaseURL())
+                .dataType("XML")
+                .clientID("clientID")
+                .signingKey("vNIXE0xscrmjlyV-12Nj_BvUPaw=")
+                .compression(false)
+                .build();
+
+        assertTrue(gc.isImmutable());
+        assertEquals(server.getBaseURL(), gc.getBaseURL());
+        assertEquals("xml", gc.getDataType());
+        assertEquals("clientID", gc.getGoogleClientID());
+        assertNotNull(gc.getRequestSigner());
+        assertFalse(gc.isCompression());
+        assertNotNull(gc.getMetrics());
+        assertFalse(new G3Geocoder().isImmutable());
+    }
+
+    @Test
+    public void testBuildsDoNotShareDefaultMetrics() {
+        G3Geocoder.Builder builder = G3Geocoder.builder();
+        assertNotSame(builder.build().getMetrics(), builder.build().getMetrics());
+
+        G3GeocoderMetrics metrics = new G3GeocoderMetrics();
+        builder.metrics(metrics);
+        assertSame(metrics, builder.build().getMetrics());
+        assertSame(metrics, builder.build().getMetrics());
+    }
+
+    @Test
+    public void testLegacyFieldsIgnoredWhenBuilt() {
+        G3Geocoder gc = G3Geocoder.builder().baseURL(server.getBaseURL()).build();
+        gc._baseURL = "http://localhost:1/";
+        gc._metrics = new G3GeocoderMetrics();
+        assertEquals(server.getBaseURL(), gc.getBaseURL());
+        assertNotSame(gc._metrics, gc.getMetrics());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSettersRejected() {
+        G3Geocoder.builder().build().setBaseURL("http://localhost/");
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSigningKeySetterRejected() {
+        G3Geocoder.builder().build().setGoogleSigningKey(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedDataType() {
+        G3Geocoder.builder().dataType("csv");
+    }
+
+    @Test
+    public void testSharedInstanceStress() throws Exception {
+        final G3Geocoder gc = G3Geocoder.builder()
+                .baseURL(server.getBaseURL())
+                .clientID("clientID")
+                .signingKey("vNIXE0xscrmjlyV-12Nj_BvUPaw=")
+                .build();
+        final int threads = 16;
+        final int perThread = 40;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(pool.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        start.await();
+                        int done = 0;
+                        for (int i = 0; i < perThread; i++) {
+                            switch ((thread + i) % 4) {
+                                case 0:
+                                    assertEquals("Birmingham", gc.getForwardGeocode(ADDRESS).getCity());
+                                    break;
+                                case 1:
+                                    GeocodeResponse gr = gc.getReverseGeocode(40.714224, -72.961452);
+                                    assertEquals("Dune Walk", gr.getStreet());
+                                    assertEquals("11772", gr.getPostalCode());
+                                    break;
+                                case 2:
+                                    GeocodeResults results = gc.getReverseGeocodeResults(40.714224, -72.961452);
+                                    assertEquals(6, results.size());
+                                    for (GeocodeResponse r : results) assertNotNull(r.getPosition());
+                                    break;
+                                default:
+                                    GeocodeResponse masked = gc.getForwardGeocode(ADDRESS, EnumSet.of(GeocodeField.POSITION));
+                                    assertNotNull(masked.getPosition());
+                                    assertNull(masked.getCity());
+                            }
+                            done++;
+                        }
+                        return done;
+                    }
+                }));
+            }
+            start.countDown();
+
+            int total = 0;
+            for (Future<Integer> f : futures) total += f.get();
+            assertEquals(threads * perThread, total);
+
+            G3GeocoderMetrics metrics = gc.getMetrics();
+            assertEquals(total, metrics.getRequestCount());
+            assertEquals(total, metrics.getStatusCount(G3Status.OK));
+            assertEquals(total, metrics.getTransferCount());
+            assertEquals(total, server.getRequestCount());
+            assertEquals(0, metrics.getErrorCount());
+            assertEquals(0, metrics.getRetryCount());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
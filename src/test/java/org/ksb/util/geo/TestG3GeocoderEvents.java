@@ -0,0 +1,188 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Flight Recorder events emitted by the geocoder
+ */
+public class TestG3GeocoderEvents {
+
+    private StubGeocodeServer server;
+    private Recording recording;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGeocodeServer().start();
+        recording = new Recording();
+        for (String name : new String[] { "Geocode", "Fetch", "Parse", "Map" }) {
+            recording.enable("org.ksb.util.geo." + name).withoutThreshold();
+        }
+        recording.start();
+    }
+
+    @After
+    public void tearDown() {
+        recording.close();
+        server.stop();
+    }
+
+    private List<RecordedEvent> stop() throws Exception {
+        recording.stop();
+        File file = File.createTempFile("geocoder", ".jfr");
+        try {
+            recording.dump(file.toPath());
+            return RecordingFile.readAllEvents(file.toPath());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> found = new ArrayList<RecordedEvent>();
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals("org.ksb.util.geo." + name)) found.add(event);
+        }
+        return found;
+    }
+
+    @Test
+    public void testCallFetchParseAndMap() throws Exception {
+        G3Geocoder gc = G3Geocoder.builder().baseURL(server.getBaseURL()).build();
+        assertEquals("Dune Walk", gc.getReverseGeocodeResults(40.714224, -72.961452).first().getStreet());
+        List<RecordedEvent> events = stop();
+
+        List<RecordedEvent> calls = named(events, "Geocode");
+        assertEquals(1, calls.size());
+        RecordedEvent call = calls.get(0);
+        assertEquals("reverse", call.getString("direction"));
+        assertEquals("OK", call.getString("status"));
+        assertEquals("none", call.getString("cacheTier"));
+
+        List<RecordedEvent> fetches = named(events, "Fetch");
+        assertEquals(1, fetches.size());
+        assertEquals(0, fetches.get(0).getInt("retry"));
+        assertEquals(200, fetches.get(0).getInt("httpStatus"));
+        assertTrue(fetches.get(0).getLong("wireBytes") > 0);
+        assertTrue(fetches.get(0).getLong("decodedBytes") >= fetches.get(0).getLong("wireBytes"));
+
+        List<RecordedEvent> children = new ArrayList<RecordedEvent>(named(events, "Parse"));
+        assertEquals(1, children.size());
+        assertTrue(children.get(0).getInt("results") > 0);
+        children.addAll(named(events, "Map"));
+        assertEquals(2, children.size());
+        children.addAll(fetches);
+        for (RecordedEvent child : children) {
+            assertEquals(call.getThread().getJavaThreadId(), child.getThread().getJavaThreadId());
+            assertFalse(child.getStartTime().isBefore(call.getStartTime()));
+            assertFalse(child.getEndTime().isAfter(call.getEndTime()));
+        }
+    }
+
+    @Test
+    public void testSingleResultSkipsParse() throws Exception {
+        G3Geocoder gc = G3Geocoder.builder().baseURL(server.getBaseURL()).build();
+        assertEquals("Dune Walk", gc.getReverseGeocode(40.714224, -72.961452).getStreet());
+        List<RecordedEvent> events = stop();
+
+        assertEquals(1, named(events, "Geocode").size());
+        assertEquals(0, named(events, "Parse").size());
+        assertEquals(1, named(events, "Map").size());
+    }
+
+    @Test
+    public void testCacheTiers() throws Exception {
+        server.setInjectedStatus(G3Status.ZERO_RESULTS, 1.0);
+        G3Geocoder gc = G3Geocoder.builder().baseURL(server.getBaseURL())
+                .responseCache(new GeocodeResponseCache()).negativeCache(new NegativeGeocodeCache()).build();
+        assertNull(gc.getForwardGeocode("nowhere"));
+        assertNull(gc.getForwardGeocode("nowhere"));
+        server.setInjectedStatus(G3Status.ZERO_RESULTS, 0);
+        assertNotNull(gc.getReverseGeocode(40.714224, -72.961452));
+        assertNotNull(gc.getReverseGeocode(40.714224, -72.961452));
+        List<RecordedEvent> calls = named(stop(), "Geocode");
+
+        assertEquals(4, calls.size());
+        String[][] expected = { { "forward", "ZERO_RESULTS", "none" }, { "forward", "ZERO_RESULTS", "negative" },
+            { "reverse", "OK", "none" }, { "reverse", "OK", "response" } };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i][0], calls.get(i).getString("direction"));
+            assertEquals(expected[i][1], calls.get(i).getString("status"));
+            assertEquals(expected[i][2], calls.get(i).getString("cacheTier"));
+        }
+    }
+
+    @Test
+    public void testRetriedAttempts() throws Exception {
+        server.setErrorRate(1.0);
+        G3Geocoder gc = G3Geocoder.builder().baseURL(server.getBaseURL()).build();
+        assertNull(gc.getReverseGeocodeResults(40.714224, -72.961452).first());
+        List<RecordedEvent> events = stop();
+
+        List<RecordedEvent> fetches = named(events, "Fetch");
+        assertEquals(G3Geocoder.RETRIES, fetches.size());
+        for (int i = 0; i < fetches.size(); i++) {
+            assertEquals(i, fetches.get(i).getInt("retry"));
+            assertEquals(500, fetches.get(i).getInt("httpStatus"));
+            assertEquals(0, fetches.get(i).getLong("wireBytes"));
+        }
+        assertEquals(1, named(events, "Geocode").size());
+    }
+
+    @Test
+    public void testAsyncLookup() throws Exception {
+        G3Geocoder gc = G3Geocoder.builder().baseURL(server.getBaseURL()).build();
+        assertNotNull(gc.getForwardGeocodeAsync("1488 Montgomery Highway Birmingham AL 35216").get());
+        List<RecordedEvent> events = stop();
+
+        List<RecordedEvent> calls = named(events, "Geocode");
+        assertEquals(1, calls.size());
+        assertEquals("forward", calls.get(0).getString("direction"));
+        assertEquals("OK", calls.get(0).getString("status"));
+        List<RecordedEvent> fetches = named(events, "Fetch");
+        assertEquals(1, fetches.size());
+        assertEquals(200, fetches.get(0).getInt("httpStatus"));
+        assertTrue(fetches.get(0).getLong("decodedBytes") > 0);
+    }
+}
@@ -0,0 +1,115 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import javax.management.ObjectName;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+
+/**
+ * Non-network metrics tests
+ */
+public class TestG3GeocoderMetrics {
+
+    public String getTestFileAsString(String resourceName) {
+        InputStream in = getClass().getResourceAsStream("/" + resourceName);
+        java.util.Scanner s = new java.util.Scanner(in).useDelimiter("\\A");
+        return s.hasNext() ? s.next() : "";
+    }
+
+    @Test
+    public void testStatusParsing() {
+        assertEquals(G3Status.OK, G3Status.fromResponse(getTestFileAsString("GoogleReverseGeocodeFull.xml")));
+        assertEquals(G3Status.ZERO_RESULTS, G3Status.fromResponse(getTestFileAsString("GoogleReverseGeocodeError.xml")));
+        assertEquals(G3Status.NO_RESPONSE, G3Status.fromResponse(null));
+        assertEquals(G3Status.NO_RESPONSE, G3Status.fromResponse("<html/>"));
+        assertEquals(G3Status.UNRECOGNIZED, G3Status.fromResponse("<status>NEW_THING</status>"));
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentileNanos(99.0));
+
+        for (int i = 0; i < 99; i++) h.record(1000);
+        h.record(1000000);
+
+        assertEquals(100, h.getCount());
+        assertEquals(1000000, h.getMaxNanos());
+
+        // power-of-two buckets: within a factor of two of the true value
+        long p50 = h.getPercentileNanos(50.0);
+        assertTrue(p50 >= 1000 && p50 < 2048);
+        assertEquals(1000000, h.getPercentileNanos(100.0));
+
+        h.reset();
+        assertEquals(0, h.getCount());
+    }
+
+    @Test
+    public void testStagesRecorded() throws Exception {
+        G3Geocoder gc = new G3Geocoder();
+        G3GeocoderMetrics metrics = gc.getMetrics();
+
+        Properties p = gc.xmlToProperties(getTestFileAsString("GoogleReverseGeocodeFull.xml"));
+        gc.buildGeocodeResponse(p);
+        gc.buildReverseGeocodeRequest(40.714224, -72.961452);
+
+        assertEquals(1, metrics.getHistogram(G3GeocoderMetrics.Stage.TRANSFORM).getCount());
+        assertEquals(1, metrics.getHistogram(G3GeocoderMetrics.Stage.MAP).getCount());
+        assertEquals(1, metrics.getHistogram(G3GeocoderMetrics.Stage.BUILD_REQUEST).getCount());
+        assertEquals(0, metrics.getHistogram(G3GeocoderMetrics.Stage.SIGN).getCount());
+    }
+
+    @Test
+    public void testJmxRegistration() throws Exception {
+        G3GeocoderMetrics metrics = new G3GeocoderMetrics();
+        metrics.recordRequest(G3Status.ZERO_RESULTS, System.nanoTime());
+        metrics.recordRetry();
+
+        metrics.register("test");
+        try {
+            ObjectName on = new ObjectName(G3GeocoderMetrics.DOMAIN + ":type=G3GeocoderMetrics,name=\"test\"");
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(on, "RequestCount"));
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(on, "RetryCount"));
+        } finally {
+            metrics.unregister();
+        }
+        assertEquals(1, metrics.getStatusCount(G3Status.ZERO_RESULTS));
+    }
+}
@@ -0,0 +1,152 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Non-blocking transport and async geocode tests against the stub server
+ */
+public class TestG3HttpTransport {
+
+    private StubGeocodeServer server;
+    private G3HttpTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGeocodeServer().start();
+        transport = new G3HttpTransport(Duration.ofSeconds(5), Duration.ofSeconds(10), Executors.newFixedThreadPool(2));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private G3Geocoder.Builder geocoder() {
+        return G3Geocoder.builder().baseURL(server.getBaseURL()).transport(transport);
+    }
+
+    @Test
+    public void testForwardAndReverse() throws Exception {
+        G3Geocoder gc = geocoder().build();
+        GeocodeResponse forward = gc.getForwardGeocodeAsync("1488 Montgomery Highway Birmingham AL 35216").get();
+        assertNotNull(forward.getPosition());
+        GeocodeResponse reverse = gc.getReverseGeocodeAsync(40.714224, -72.961452).get();
+        assertEquals("Dune Walk", reverse.getStreet());
+
+        G3GeocoderMetrics metrics = gc.getMetrics();
+        assertEquals(2, metrics.getTransferCount());
+        assertTrue(metrics.getWireBytes() < metrics.getDecodedBytes());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void testThousandsInFlightOnFewThreads() throws Exception {
+        server.setLatency(300, 0);
+        G3Geocoder gc = geocoder().build();
+        int before = Thread.activeCount();
+
+        long start = System.nanoTime();
+        List<CompletableFuture<GeocodeResponse>> futures = new ArrayList<CompletableFuture<GeocodeResponse>>();
+        for (int i = 0; i < 1500; i++) futures.add(gc.getReverseGeocodeAsync(40.714224, -72.961452 + i * 1e-4));
+        int during = Thread.activeCount();
+        for (CompletableFuture<GeocodeResponse> f : futures) assertEquals("Dune Walk", f.get().getStreet());
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // one thread per request would need 1500 threads; serially this takes 450s
+        assertTrue("threads " + before + " -> " + during, during - before < 32);
+        assertTrue("elapsed " + elapsedMillis, elapsedMillis < 20000);
+        assertEquals(1500, server.getRequestCount());
+    }
+
+    @Test
+    public void testTimeoutRetriesThenGivesUp() throws Exception {
+        server.setLatency(2000, 0);
+        G3HttpTransport impatient = new G3HttpTransport(Duration.ofSeconds(5), Duration.ofMillis(100),
+                Executors.newSingleThreadExecutor());
+        G3Geocoder gc = geocoder().transport(impatient).build();
+
+        assertNull(gc.getReverseGeocodeAsync(40.714224, -72.961452).get(10, TimeUnit.SECONDS));
+        assertEquals(G3Geocoder.RETRIES - 1, gc.getMetrics().getRetryCount());
+        assertEquals(G3Geocoder.RETRIES, server.getRequestCount());
+    }
+
+    @Test
+    public void testHttpErrorIsRetried() throws Exception {
+        server.setErrorRate(1.0);
+        G3Geocoder gc = geocoder().build();
+        assertNull(gc.getForwardGeocodeAsync("1488 Montgomery Highway Birmingham AL 35216").get());
+        assertEquals(G3Geocoder.RETRIES - 1, gc.getMetrics().getRetryCount());
+    }
+
+    @Test
+    public void testClientErrorNotRetried() throws Exception {
+        server.setErrorRate(1.0);
+        server.setErrorStatus(403);
+        G3Geocoder gc = geocoder().build();
+        assertNull(gc.getForwardGeocodeAsync("1488 Montgomery Highway Birmingham AL 35216").get());
+        assertEquals(0, gc.getMetrics().getRetryCount());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testCancellationReleasesPermits() throws Exception {
+        server.setLatency(500, 0);
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        G3Geocoder gc = geocoder().concurrencyLimiter(limiter).build();
+
+        CompletableFuture<GeocodeResponse> inFlight = gc.getReverseGeocodeAsync(40.714224, -72.961452);
+        CompletableFuture<GeocodeResponse> queued = gc.getReverseGeocodeAsync(40.0, -72.0);
+        assertEquals(1, limiter.getQueued());
+
+        queued.cancel(true);
+        assertEquals(0, limiter.getQueued());
+        Thread.sleep(50);
+        inFlight.cancel(true);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (limiter.getInFlight() > 0 && System.nanoTime() < deadline) Thread.sleep(10);
+        assertEquals(0, limiter.getInFlight());
+        assertNotNull(gc.getReverseGeocodeAsync(40.714224, -72.961452).get());
+    }
+}
@@ -0,0 +1,158 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Shared quota ledger tests. Two ledger instances on one file stand in for two processes.
+ */
+public class TestG3QuotaLedger {
+
+    private final AtomicLong now = new AtomicLong(1700000000000L);
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("quota", ".ledger");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private G3QuotaLedger open(int perSecond, int perDay) throws IOException {
+        G3QuotaLedger ledger = new G3QuotaLedger(file, perSecond, perDay, ZoneOffset.UTC);
+        ledger.setClock(now::get);
+        return ledger;
+    }
+
+    @Test
+    public void testSharedPerSecondWindow() throws IOException {
+        G3QuotaLedger a = open(3, 100);
+        G3QuotaLedger b = open(3, 100);
+
+        assertEquals(G3QuotaLedger.Outcome.GRANTED, a.tryAcquire());
+        assertEquals(G3QuotaLedger.Outcome.GRANTED, b.tryAcquire());
+        assertEquals(G3QuotaLedger.Outcome.GRANTED, a.tryAcquire());
+        assertEquals(G3QuotaLedger.Outcome.SECOND_EXHAUSTED, b.tryAcquire());
+        assertEquals(3, a.getSecondCount());
+        assertEquals(3, b.getDayCount());
+
+        now.addAndGet(1000);
+        assertEquals(G3QuotaLedger.Outcome.GRANTED, b.tryAcquire());
+        assertEquals(1, a.getSecondCount());
+        assertEquals(4, a.getDayCount());
+    }
+
+    @Test
+    public void testPerDayWindow() throws IOException {
+        G3QuotaLedger ledger = open(10, 2);
+        assertTrue(ledger.acquire());
+        now.addAndGet(1000);
+        assertTrue(ledger.acquire());
+        now.addAndGet(1000);
+        assertFalse(ledger.acquire());
+        assertEquals(G3QuotaLedger.Outcome.DAY_EXHAUSTED, ledger.tryAcquire());
+
+        now.addAndGet(24L * 3600 * 1000);
+        assertEquals(G3QuotaLedger.Outcome.GRANTED, ledger.tryAcquire());
+    }
+
+    @Test
+    public void testCountsSurviveReopen() throws IOException {
+        open(10, 100).tryAcquire();
+        open(10, 100).tryAcquire();
+        assertEquals(2, open(10, 100).getDayCount());
+    }
+
+    @Test
+    public void testSecondDenialRefundsDay() throws IOException {
+        G3QuotaLedger ledger = open(1, 100);
+        ledger.tryAcquire();
+        assertEquals(G3QuotaLedger.Outcome.SECOND_EXHAUSTED, ledger.tryAcquire());
+        assertEquals(1, ledger.getDayCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFile() throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("not a ledger".getBytes("UTF-8"));
+        out.close();
+        open(1, 1);
+    }
+
+    @Test
+    public void testConcurrentProcessesNeverOvershoot() throws Exception {
+        final int perDay = 5000;
+        final G3QuotaLedger[] ledgers = { open(1000000, perDay), open(1000000, perDay) };
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < 8; t++) {
+                final G3QuotaLedger ledger = ledgers[t % 2];
+                futures.add(pool.submit(new Callable<Integer>() {
+                    public Integer call() {
+                        int granted = 0;
+                        for (int i = 0; i < 2000; i++) {
+                            if (ledger.tryAcquire() == G3QuotaLedger.Outcome.GRANTED) granted++;
+                        }
+                        return granted;
+                    }
+                }));
+            }
+            int granted = 0;
+            for (Future<Integer> f : futures) granted += f.get();
+            assertEquals(perDay, granted);
+            assertEquals(perDay, ledgers[0].getDayCount());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Binary codec tests
+ */
+public class TestGeocodeCodec {
+
+    private GeocodeResponse sample() {
+        return GeocodeFixtures.duneWalk();
+    }
+
+    private void assertSameResponse(GeocodeResponse expected, GeocodeResponse actual) {
+        assertEquals(expected.getBuildingNumberOrNull(), actual.getBuildingNumberOrNull());
+        assertEquals(expected.getBuildingSegmentName(), actual.getBuildingSegmentName());
+        assertEquals(expected.getStreet(), actual.getStreet());
+        assertEquals(expected.getTownship(), actual.getTownship());
+        assertEquals(expected.getCity(), actual.getCity());
+        assertEquals(expected.getCounty(), actual.getCounty());
+        assertEquals(expected.getState(), actual.getState());
+        assertEquals(expected.getCountryName(), actual.getCountryName());
+        assertEquals(expected.getCountryNameCode(), actual.getCountryNameCode());
+        assertEquals(expected.getPostalCode(), actual.getPostalCode());
+        assertEquals(expected.getPosition(), actual.getPosition());
+        assertEquals(expected.getBuildingNumberLow(), actual.getBuildingNumberLow());
+        assertEquals(expected.getBuildingNumberHigh(), actual.getBuildingNumberHigh());
+    }
+
+    @Test
+    public void testRoundTrip() {
+        GeocodeResponse gr = sample();
+        byte[] bytes = GeocodeCodec.encode(gr);
+
+        assertEquals(GeocodeCodec.encodedSize(gr), bytes.length);
+        assertSameResponse(gr, GeocodeCodec.decode(bytes));
+    }
+
+    @Test
+    public void testEmptyAndNullDistinct() {
+        GeocodeResponse decoded = GeocodeCodec.decode(GeocodeCodec.encode(sample()));
+        assertEquals("", decoded.getBuildingSegmentName());
+        assertNull(decoded.getTownship());
+    }
+
+    @Test
+    public void testEmptyResponse() {
+        byte[] bytes = GeocodeCodec.encode(new GeocodeResponse());
+
+        assertEquals(2, bytes.length);
+        assertSameResponse(new GeocodeResponse(), GeocodeCodec.decode(bytes));
+    }
+
+    @Test
+    public void testBuildingNumberRange() {
+        GeocodeResponse gr = new GeocodeResponse();
+        gr.setBuildingNumberLow(-5);
+        gr.setBuildingNumberHigh(Integer.MAX_VALUE);
+
+        GeocodeResponse decoded = GeocodeCodec.decode(GeocodeCodec.encode(gr));
+        assertSameResponse(gr, decoded);
+        assertEquals("-5-" + Integer.MAX_VALUE, decoded.getBuildingNumber());
+    }
+
+    @Test
+    public void testUnicode() {
+        GeocodeResponse gr = new GeocodeResponse();
+        gr.setStreet("Straße à 東京 🏠");
+        gr.setCity("Zürich");
+
+        byte[] bytes = GeocodeCodec.encode(gr);
+        assertEquals(GeocodeCodec.encodedSize(gr), bytes.length);
+        assertSameResponse(gr, GeocodeCodec.decode(bytes));
+    }
+
+    @Test
+    public void testUnpairedSurrogate() {
+        GeocodeResponse gr = new GeocodeResponse();
+        gr.setStreet("a\ud83cb");
+
+        byte[] bytes = GeocodeCodec.encode(gr);
+        assertEquals(GeocodeCodec.encodedSize(gr), bytes.length);
+        assertEquals("a?b", GeocodeCodec.decode(bytes).getStreet());
+    }
+
+    @Test
+    public void testCompact() {
+        CompactGeocodeResponse compact = CompactGeocodeResponse.of(sample(), new GeocodeStringPool(100));
+        GeocodeStringPool pool = new GeocodeStringPool(100);
+
+        CompactGeocodeResponse decoded = GeocodeCodec.readCompact(ByteBuffer.wrap(GeocodeCodec.encode(compact)), pool);
+        assertSameResponse(compact, decoded);
+        assertSame(pool.intern("Brookhaven"), decoded.getCity());
+    }
+
+    @Test
+    public void testDirectBufferSequence() {
+        GeocodeResponse gr = sample();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+        GeocodeCodec.write(buffer, gr);
+        GeocodeCodec.writeLatLng(buffer, new LatLng(-0.0, Double.NaN));
+        GeocodeCodec.write(buffer, new GeocodeResponse());
+        buffer.flip();
+
+        assertSameResponse(gr, GeocodeCodec.read(buffer));
+        LatLng position = GeocodeCodec.readLatLng(buffer);
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(position.getLatitude()));
+        assertTrue(Double.isNaN(position.getLongitude()));
+        assertNull(GeocodeCodec.read(buffer).getCity());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testSmallerThanSerialization() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(new LatLng(40.6865090, -72.9968220));
+        out.close();
+
+        assertTrue(17 * 3 < bytes.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedVersion() {
+        byte[] bytes = GeocodeCodec.encode(sample());
+        bytes[0] = 99;
+        GeocodeCodec.decode(bytes);
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void testTruncated() {
+        byte[] bytes = GeocodeCodec.encode(sample());
+        GeocodeCodec.read(ByteBuffer.wrap(bytes, 0, bytes.length - 3));
+    }
+}
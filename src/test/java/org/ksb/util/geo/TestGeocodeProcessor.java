@@ -0,0 +1,235 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Streaming geocode stage tests
+ */
+public class TestGeocodeProcessor {
+
+    private ExecutorService executor;
+    private CountingGeocoder geocoder;
+
+    /**
+     * Echo geocoder that tracks the peak number of concurrent lookups.
+     */
+    static class CountingGeocoder extends TestBatchGeocoder.EchoGeocoder {
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final AtomicInteger calls = new AtomicInteger();
+
+        public GeocodeResponse getForwardGeocode(String address) throws Exception {
+            calls.incrementAndGet();
+            int now = active.incrementAndGet();
+            peak.accumulateAndGet(now, Math::max);
+            try {
+                return super.getForwardGeocode(address);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Publishes its items synchronously on request and records total demand.
+     */
+    static class ListPublisher implements Flow.Publisher<String> {
+        final List<String> items;
+        final AtomicLong requested = new AtomicLong();
+
+        ListPublisher(List<String> items) {
+            this.items = items;
+        }
+
+        static ListPublisher range(int count) {
+            List<String> items = new ArrayList<String>();
+            for (int i = 0; i < count; i++) items.add("addr" + i);
+            return new ListPublisher(items);
+        }
+
+        public void subscribe(final Flow.Subscriber<? super String> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                int next = 0;
+                boolean done = false;
+
+                public synchronized void request(long n) {
+                    requested.addAndGet(n);
+                    for (long i = 0; i < n && next < items.size(); i++) {
+                        subscriber.onNext(items.get(next++));
+                    }
+                    if (next == items.size() && !done) {
+                        done = true;
+                        subscriber.onComplete();
+                    }
+                }
+
+                public void cancel() {
+                }
+            });
+        }
+    }
+
+    /**
+     * Requests one item at a time, optionally pausing before each request.
+     */
+    static class SlowSubscriber implements Flow.Subscriber<GeocodeResult<String>> {
+        final List<GeocodeResult<String>> received = new ArrayList<GeocodeResult<String>>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final int pauseMillis;
+        final long limit;
+        Flow.Subscription subscription;
+
+        SlowSubscriber(int pauseMillis, long limit) {
+            this.pauseMillis = pauseMillis;
+            this.limit = limit;
+        }
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        public void onNext(GeocodeResult<String> item) {
+            received.add(item);
+            if (received.size() >= limit) return;
+            if (pauseMillis > 0 && ThreadLocalRandom.current().nextInt(4) == 0) {
+                try {
+                    Thread.sleep(pauseMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            subscription.request(1);
+        }
+
+        public void onError(Throwable throwable) {
+            done.countDown();
+        }
+
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(16);
+        geocoder = new CountingGeocoder();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testOrderedEmission() throws Exception {
+        GeocodeProcessor<String> processor = new GeocodeProcessor<String>(geocoder, executor, 8, true);
+        SlowSubscriber subscriber = new SlowSubscriber(1, Long.MAX_VALUE) {
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(16);
+            }
+        };
+        processor.subscribe(subscriber);
+        ListPublisher.range(300).subscribe(processor);
+
+        assertTrue(subscriber.done.await(30, TimeUnit.SECONDS));
+        assertEquals(300, subscriber.received.size());
+        for (int i = 0; i < 300; i++) {
+            assertEquals("addr" + i, subscriber.received.get(i).getInput());
+            assertEquals("addr" + i, subscriber.received.get(i).getResponse().getStreet());
+        }
+        assertTrue("peak " + geocoder.peak.get(), geocoder.peak.get() <= 8);
+    }
+
+    @Test
+    public void testUnorderedEmission() throws Exception {
+        GeocodeProcessor<String> processor = new GeocodeProcessor<String>(geocoder, executor, 8, false);
+        SlowSubscriber subscriber = new SlowSubscriber(0, Long.MAX_VALUE);
+        processor.subscribe(subscriber);
+        ListPublisher.range(300).subscribe(processor);
+
+        assertTrue(subscriber.done.await(30, TimeUnit.SECONDS));
+        Set<String> inputs = new HashSet<String>();
+        for (GeocodeResult<String> result : subscriber.received) inputs.add(result.getInput());
+        assertEquals(300, inputs.size());
+        assertTrue(geocoder.peak.get() <= 8);
+    }
+
+    @Test
+    public void testDemandBoundsUpstream() throws Exception {
+        GeocodeProcessor<String> processor = new GeocodeProcessor<String>(geocoder, executor, 8, true);
+        SlowSubscriber subscriber = new SlowSubscriber(0, 3);
+        ListPublisher publisher = ListPublisher.range(1000);
+        processor.subscribe(subscriber);
+        publisher.subscribe(processor);
+
+        Thread.sleep(200);
+        assertEquals(3, subscriber.received.size());
+        assertEquals(3, publisher.requested.get());
+        assertEquals(3, geocoder.calls.get());
+    }
+
+    @Test
+    public void testFailuresCarriedInResults() throws Exception {
+        GeocodeProcessor<String> processor = new GeocodeProcessor<String>(geocoder, executor, 4, true);
+        SlowSubscriber subscriber = new SlowSubscriber(0, Long.MAX_VALUE);
+        processor.subscribe(subscriber);
+        new ListPublisher(Arrays.asList("boom", "bad", "good")).subscribe(processor);
+
+        assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+        assertEquals(3, subscriber.received.size());
+        assertNotNull(subscriber.received.get(0).getError());
+        assertNull(subscriber.received.get(1).getResponse());
+        assertTrue(subscriber.received.get(2).isSuccess());
+    }
+}
@@ -0,0 +1,113 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Response cache and snapshot tests
+ */
+public class TestGeocodeResponseCache {
+
+    private GeocodeResponse sample(String street) {
+        GeocodeResponse gr = GeocodeFixtures.duneWalk();
+        gr.setStreet(street);
+        return gr;
+    }
+
+    @Test
+    public void testPutAndGet() {
+        GeocodeResponseCache cache = new GeocodeResponseCache(10, new GeocodeStringPool(100));
+        GeocodeResponse cached = cache.put("a:33 dune walk", sample("Dune Walk"));
+
+        assertTrue(cached instanceof CompactGeocodeResponse);
+        assertSame(cached, cache.get("a:33 dune walk"));
+        assertNull(cache.get("a:other"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testCapacity() {
+        GeocodeResponseCache cache = new GeocodeResponseCache(3, new GeocodeStringPool(100));
+        for (int i = 0; i < 10; i++) cache.put("a:" + i, sample("Street " + i));
+        assertEquals(3, cache.size());
+        assertNotNull(cache.get("a:9"));
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        GeocodeResponseCache cache = new GeocodeResponseCache(100, new GeocodeStringPool(100));
+        for (int i = 0; i < 50; i++) cache.put("a:" + i, sample("Street " + i));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertEquals(50, cache.save(bytes));
+
+        GeocodeResponseCache restored = new GeocodeResponseCache(100, new GeocodeStringPool(100));
+        assertEquals(50, restored.load(new ByteArrayInputStream(bytes.toByteArray())));
+        GeocodeResponse gr = restored.get("a:7");
+        assertEquals("Street 7", gr.getStreet());
+        assertEquals("", gr.getBuildingSegmentName());
+        assertNull(gr.getTownship());
+        assertEquals(new LatLng(40.6865090, -72.9968220), gr.getPosition());
+
+        GeocodeResponseCache small = new GeocodeResponseCache(10, new GeocodeStringPool(100));
+        assertEquals(10, small.load(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    public void testSnapshotFile() throws IOException {
+        File file = File.createTempFile("geocode", ".snapshot");
+        try {
+            GeocodeResponseCache cache = new GeocodeResponseCache();
+            cache.put("l:40.5,-72.9", sample("Dune Walk"));
+            cache.save(file);
+
+            GeocodeResponseCache restored = new GeocodeResponseCache();
+            assertEquals(1, restored.load(file));
+            assertEquals("Dune Walk", restored.get("l:40.5,-72.9").getStreet());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherData() throws IOException {
+        new GeocodeResponseCache().load(new ByteArrayInputStream(new byte[16]));
+    }
+}
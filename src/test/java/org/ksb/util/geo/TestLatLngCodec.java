@@ -0,0 +1,121 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Coordinate parsing and formatting
+ */
+public class TestLatLngCodec {
+
+    @Test
+    public void testParseMatchesParseDouble() {
+        Random random = new Random(42);
+        double[] out = new double[2];
+        for (int i = 0; i < 100000; i++) {
+            double lat = random.nextDouble() * 180 - 90;
+            double lng = random.nextDouble() * 360 - 180;
+            String latText = (i % 3 == 0) ? Double.toString(lat) : String.format(Locale.ROOT, "%.6f", lat);
+            String lngText = (i % 5 == 0) ? Double.toString(lng) : String.format(Locale.ROOT, "%.7f", lng);
+            String text = latText + "," + lngText;
+
+            LatLng parsed = LatLngCodec.parse(text);
+            assertEquals(text, Double.parseDouble(latText), parsed.getLatitude(), 0);
+            assertEquals(text, Double.parseDouble(lngText), parsed.getLongitude(), 0);
+
+            byte[] bytes = (" " + text + " ").getBytes(StandardCharsets.US_ASCII);
+            LatLngCodec.parse(bytes, 0, bytes.length, out, 0);
+            assertEquals(parsed.getLatitude(), out[0], 0);
+            assertEquals(parsed.getLongitude(), out[1], 0);
+        }
+    }
+
+    @Test
+    public void testParseUnusualNumbers() {
+        String[] numbers = { "0", "-0.0", "+12.5", ".5", "7.", "1e2", "-4.5E-3", "1234567890123456789012",
+            "0.000000000000000000000000001", "NaN", "-Infinity", "0x1p3" };
+        for (String number : numbers) {
+            double expected = Double.parseDouble(number);
+            double actual = LatLngCodec.parseCoordinate(number, 0, number.length());
+            assertEquals(number, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+        }
+    }
+
+    @Test
+    public void testParseErrors() {
+        String[] malformed = { "47.6", "47.6,-122.3,5", "", "abc,1", "1,", "1e,2", "--1,2" };
+        for (String text : malformed) {
+            try {
+                new LatLng(text);
+                fail(text);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertNull(BatchGeocoder.parseCoordinate("1.5,x"));
+    }
+
+    @Test
+    public void testFormat() {
+        assertEquals("47.60972,-122.33306", new LatLng(47.609722, -122.333056).toString());
+        assertEquals("32.715,-117.1625", new LatLng(32.715, -117.1625).toString());
+        assertEquals("0,0", new LatLng(-0.000001, 0).toString());
+        assertEquals("-1,180", new LatLng(-0.999999, 179.999999).toString());
+        assertEquals("x0.34", LatLngCodec.append(new StringBuilder("x"), 0.3400, 3).toString());
+        assertEquals("NaN", LatLngCodec.append(new StringBuilder(), Double.NaN, 5).toString());
+
+        byte[] buffer = new byte[LatLngCodec.MAX_PAIR_LENGTH + 3];
+        buffer[0] = '[';
+        int end = LatLngCodec.format(40.714224, -73.961452, 3, buffer, 1);
+        assertEquals("[40.714,-73.961", new String(buffer, 0, end, StandardCharsets.US_ASCII));
+        end = LatLngCodec.format(-Double.MIN_NORMAL, Double.MAX_VALUE, 9, buffer, 0);
+        assertTrue(end <= LatLngCodec.MAX_PAIR_LENGTH);
+    }
+
+    @Test
+    public void testFormatRoundTrip() {
+        Random random = new Random(7);
+        StringBuilder strb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            LatLng position = new LatLng(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+            strb.setLength(0);
+            LatLng parsed = LatLngCodec.parse(LatLngCodec.append(strb, position.getLatitude(), position.getLongitude(), 7));
+            assertEquals(position.getLatitude(), parsed.getLatitude(), 0.5e-7);
+            assertEquals(position.getLongitude(), parsed.getLongitude(), 0.5e-7);
+        }
+    }
+}
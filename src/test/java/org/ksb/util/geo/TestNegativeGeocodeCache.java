@@ -0,0 +1,198 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Negative cache and Bloom filter tests
+ */
+public class TestNegativeGeocodeCache {
+
+    private static final long TTL = 1000;
+
+    private final AtomicLong now = new AtomicLong(1000000);
+    private NegativeGeocodeCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new NegativeGeocodeCache(1000, 0.001);
+        cache.setClock(now::get);
+        cache.setTtl(G3Status.ZERO_RESULTS, TTL);
+        cache.setTtl(G3Status.INVALID_REQUEST, TTL * 10);
+    }
+
+    @Test
+    public void testKeys() {
+        assertEquals(GeocodeKeys.forward("  1 Main   St\tSpringfield "), GeocodeKeys.forward("1 main st springfield"));
+        assertEquals("a:1 main st springfield", GeocodeKeys.forward("1 Main St Springfield"));
+        assertFalse(GeocodeKeys.reverse(40.5, -72.9).equals(GeocodeKeys.reverse(40.5, -72.90001)));
+    }
+
+    @Test
+    public void testBloomFilter() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) filter.add("present " + i);
+        for (int i = 0; i < 10000; i++) assertTrue(filter.mightContain("present " + i));
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) if (filter.mightContain("absent " + i)) falsePositives++;
+        assertTrue("false positives " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void testRecordAndLookup() {
+        cache.record("a:junk", G3Status.ZERO_RESULTS);
+        cache.record("a:bad", G3Status.INVALID_REQUEST);
+        cache.record("a:good", G3Status.OK);
+        cache.record("a:quota", G3Status.OVER_QUERY_LIMIT);
+
+        assertEquals(G3Status.ZERO_RESULTS, cache.lookup("a:junk"));
+        assertEquals(G3Status.INVALID_REQUEST, cache.lookup("a:bad"));
+        assertNull(cache.lookup("a:good"));
+        assertNull(cache.lookup("a:quota"));
+    }
+
+    @Test
+    public void testExpiry() {
+        cache.record("a:junk", G3Status.ZERO_RESULTS);
+        now.addAndGet(TTL / 2);
+        assertEquals(G3Status.ZERO_RESULTS, cache.lookup("a:junk"));
+        now.addAndGet(TTL / 2 - 1);
+        assertEquals(G3Status.ZERO_RESULTS, cache.lookup("a:junk"));
+        now.addAndGet(1);
+        assertNull(cache.lookup("a:junk"));
+    }
+
+    @Test
+    public void testLongIdleExpiresBothGenerations() {
+        cache.record("a:junk", G3Status.ZERO_RESULTS);
+        now.addAndGet(TTL * 3);
+        assertNull(cache.lookup("a:junk"));
+        cache.record("a:junk", G3Status.ZERO_RESULTS);
+        assertEquals(G3Status.ZERO_RESULTS, cache.lookup("a:junk"));
+    }
+
+    @Test
+    public void testFullGenerationRotates() {
+        NegativeGeocodeCache small = new NegativeGeocodeCache(10, 0.01);
+        small.setClock(now::get);
+        small.setTtl(G3Status.ZERO_RESULTS, TTL);
+
+        for (int i = 0; i < 10; i++) small.record("a:first " + i, G3Status.ZERO_RESULTS);
+        assertEquals(G3Status.ZERO_RESULTS, small.lookup("a:first 0"));
+
+        // a second full generation pushes the first one out well before its TTL
+        for (int i = 0; i < 10; i++) small.record("a:second " + i, G3Status.ZERO_RESULTS);
+        assertNull(small.lookup("a:first 0"));
+        assertEquals(G3Status.ZERO_RESULTS, small.lookup("a:second 9"));
+    }
+
+    @Test
+    public void testFilterFalsePositivesConfirmed() {
+        NegativeGeocodeCache loose = new NegativeGeocodeCache(1000, 0.5);
+        loose.setClock(now::get);
+        loose.setTtl(G3Status.ZERO_RESULTS, TTL);
+        for (int i = 0; i < 1000; i++) loose.record("a:bad " + i, G3Status.ZERO_RESULTS);
+
+        for (int i = 0; i < 1000; i++) assertEquals(G3Status.ZERO_RESULTS, loose.lookup("a:bad " + i));
+        for (int i = 0; i < 10000; i++) assertNull(loose.lookup("a:good " + i));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        cache.record("a:junk", G3Status.ZERO_RESULTS);
+        cache.record("l:0.0,0.0", G3Status.INVALID_REQUEST);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        cache.save(bytes);
+        NegativeGeocodeCache loaded = NegativeGeocodeCache.load(new ByteArrayInputStream(bytes.toByteArray()));
+        loaded.setClock(now::get);
+
+        assertEquals(TTL, loaded.getTtl(G3Status.ZERO_RESULTS));
+        assertEquals(0, loaded.getTtl(G3Status.OVER_QUERY_LIMIT));
+        assertEquals(G3Status.ZERO_RESULTS, loaded.lookup("a:junk"));
+        assertEquals(G3Status.INVALID_REQUEST, loaded.lookup("l:0.0,0.0"));
+
+        now.addAndGet(TTL);
+        assertNull(loaded.lookup("a:junk"));
+        assertEquals(G3Status.INVALID_REQUEST, loaded.lookup("l:0.0,0.0"));
+    }
+
+    @Test
+    public void testSaveWhileRecording() throws Exception {
+        final NegativeGeocodeCache busy = new NegativeGeocodeCache(100000, 0.001);
+        busy.setClock(now::get);
+        busy.setTtl(G3Status.ZERO_RESULTS, TTL);
+        busy.setTtl(G3Status.INVALID_REQUEST, TTL);
+        final AtomicLong recorded = new AtomicLong();
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                for (long i = 0; !stop.get() && i < 90000; i++) {
+                    busy.record("a:bad " + i, (i % 2 == 0) ? G3Status.ZERO_RESULTS : G3Status.INVALID_REQUEST);
+                    recorded.set(i + 1);
+                }
+            }
+        });
+        writer.start();
+        try {
+            for (int round = 0; round < 50; round++) {
+                long before = recorded.get();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                busy.save(bytes);
+                NegativeGeocodeCache loaded = NegativeGeocodeCache.load(new ByteArrayInputStream(bytes.toByteArray()));
+                loaded.setClock(now::get);
+                for (long i = 0; i < before; i += 97) {
+                    assertEquals((i % 2 == 0) ? G3Status.ZERO_RESULTS : G3Status.INVALID_REQUEST,
+                            loaded.lookup("a:bad " + i));
+                }
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testLoadRejectsOtherData() throws IOException {
+        NegativeGeocodeCache.load(new ByteArrayInputStream(new byte[16]));
+    }
+}
@@ -0,0 +1,154 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Scanner;
+
+import org.junit.Test;
+
+/**
+ * Pooled response buffer tests
+ */
+public class TestResponseBuffer {
+
+    private static String fixture(String name) {
+        InputStream in = TestResponseBuffer.class.getResourceAsStream("/" + name);
+        return new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+    }
+
+    private static ResponseBuffer read(byte[] body, String encoding) throws IOException {
+        ResponseBuffer buffer = ResponseBuffer.acquire();
+        buffer.read(new ByteArrayInputStream(body), encoding);
+        return buffer;
+    }
+
+    @Test
+    public void testDecodings() throws Exception {
+        String xml = fixture("GoogleReverseGeocodeFull.xml");
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        for (String encoding : new String[] { null, "identity", "gzip", "deflate" }) {
+            byte[] wire = (encoding == null || encoding.equals("identity")) ? bytes : StubGeocodeServer.encode(bytes, encoding);
+            ResponseBuffer buffer = ResponseBuffer.acquire();
+            try {
+                assertEquals(wire.length, buffer.read(new ByteArrayInputStream(wire), encoding));
+                assertEquals(bytes.length, buffer.length());
+                assertEquals(xml, buffer.toString());
+            } finally {
+                buffer.release();
+            }
+        }
+    }
+
+    @Test
+    public void testParserOverBytes() throws Exception {
+        String xml = "<GeocodeResponse><status> OK </status><result><address_component>"
+                + "<short_name>Zürich &amp; Co</short_name><type>locality</type></address_component>"
+                + "<address_component><short_name>8001</short_name><type>postal_code</type></address_component>"
+                + "<geometry><location><lat>47.37</lat><lng>8.54</lng></location></geometry></result></GeocodeResponse>";
+        ResponseBuffer buffer = read(xml.getBytes(StandardCharsets.UTF_8), null);
+        try {
+            assertEquals(G3Status.OK, G3Status.fromResponse(buffer));
+            GeocodeResponse gr = G3ResponseParser.parseFirstResult(buffer, GeocodeField.all());
+            assertEquals("Zürich & Co", gr.getCity());
+            assertEquals("8001", gr.getPostalCode());
+            assertEquals(new LatLng(47.37, 8.54), gr.getPosition());
+
+            int[] bounds = G3ResponseParser.resultBounds(buffer);
+            int[] expected = G3ResponseParser.resultBounds(xml);
+            // byte offsets run one past char offsets after the two-byte ü
+            assertEquals(expected[0], bounds[0]);
+            assertEquals(expected[1] + 1, bounds[1]);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void testPoolReuseAndCopy() throws Exception {
+        ResponseBuffer buffer = read("<status>ZERO_RESULTS</status>".getBytes(StandardCharsets.UTF_8), null);
+        ResponseBuffer copy = buffer.copy();
+        buffer.release();
+        assertSame(buffer, ResponseBuffer.acquire());
+        assertEquals(0, buffer.length());
+        buffer.release();
+        assertEquals(G3Status.ZERO_RESULTS, G3Status.fromResponse(copy));
+        assertEquals("<status>ZERO_RESULTS</status>", copy.toString());
+    }
+
+    @Test
+    public void testLargeBodyGrowsBuffer() throws Exception {
+        char[] filler = new char[100000];
+        Arrays.fill(filler, 'x');
+        String xml = "<status>OK</status>" + new String(filler);
+        ResponseBuffer buffer = read(StubGeocodeServer.encode(xml.getBytes(StandardCharsets.UTF_8), "gzip"), "gzip");
+        try {
+            assertEquals(xml.length(), buffer.length());
+            assertEquals(G3Status.OK, G3Status.fromResponse(buffer));
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void testCorruptGzipRejected() throws Exception {
+        byte[] wire = StubGeocodeServer.encode("<status>OK</status>".getBytes(StandardCharsets.UTF_8), "gzip");
+        wire[wire.length - 8] ^= 1; // CRC
+        ResponseBuffer buffer = ResponseBuffer.acquire();
+        try {
+            buffer.read(new ByteArrayInputStream(wire), "gzip");
+            fail();
+        } catch (IOException e) {
+            // expected
+        } finally {
+            buffer.release();
+        }
+        try {
+            read(Arrays.copyOf(wire, wire.length - 12), "gzip").release();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testStatusOnString() {
+        assertEquals(G3Status.NO_RESPONSE, G3Status.fromResponse("<status> </status>"));
+        assertEquals(G3Status.UNRECOGNIZED, G3Status.fromResponse("<status>NEW_CODE</status>"));
+        assertEquals(G3Status.OVER_QUERY_LIMIT, G3Status.fromResponse(G3Geocoder.QUOTA_EXCEEDED_RESPONSE));
+    }
+}
@@ -0,0 +1,123 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Reverse geocode clustering tests
+ */
+public class TestReverseGeocodeClusterer {
+
+    /** Point offset from a center by the given meters north and east. */
+    private static LatLng offset(LatLng center, double north, double east) {
+        double lat = center.getLatitude() + Math.toDegrees(north / 6371000);
+        double lng = center.getLongitude() + Math.toDegrees(east / (6371000 * Math.cos(Math.toRadians(lat))));
+        return new LatLng(lat, lng);
+    }
+
+    @Test
+    public void testOneLookupPerCluster() throws Exception {
+        LatLng[] centers = { new LatLng(40.714224, -73.961452), new LatLng(60.1, 170.5), new LatLng(-33.9, 18.4) };
+        Random random = new Random(7);
+        List<LatLng> points = new ArrayList<LatLng>();
+        for (int i = 0; i < 300; i++) {
+            points.add(offset(centers[i % 3], random.nextDouble() * 16 - 8, random.nextDouble() * 16 - 8));
+        }
+
+        TestBatchGeocoder.EchoGeocoder geocoder = new TestBatchGeocoder.EchoGeocoder();
+        ReverseGeocodeClusterer clusterer = new ReverseGeocodeClusterer(geocoder);
+        clusterer.setRadiusMeters(25);
+        List<ClusteredGeocodeResult> results = clusterer.geocodeAll(points);
+
+        assertEquals(3, clusterer.getClusterCount());
+        assertEquals(3, geocoder.lookups.get());
+        assertEquals(300, results.size());
+        for (int i = 0; i < points.size(); i++) {
+            ClusteredGeocodeResult result = results.get(i);
+            assertSame(points.get(i), result.getInput());
+            assertTrue(result.getDistanceToRepresentative() <= 25);
+            assertEquals(result.getRepresentative(), result.getResponse().getPosition());
+        }
+        assertEquals(0, results.get(0).getDistanceToRepresentative(), 0);
+    }
+
+    @Test
+    public void testGridFindsEveryRepresentativeInRange() {
+        Random random = new Random(11);
+        List<LatLng> points = new ArrayList<LatLng>();
+        for (int i = 0; i < 3000; i++) {
+            LatLng center = new LatLng(random.nextDouble() * 170 - 85, random.nextDouble() * 360 - 180);
+            for (int j = 0; j < 3; j++) {
+                points.add(offset(center, random.nextDouble() * 200 - 100, random.nextDouble() * 200 - 100));
+            }
+        }
+
+        ReverseGeocodeClusterer clusterer = new ReverseGeocodeClusterer(new TestBatchGeocoder.EchoGeocoder());
+        clusterer.setRadiusMeters(60);
+        int[] clusterOf = new int[points.size()];
+        List<LatLng> representatives = clusterer.cluster(points, clusterOf);
+
+        // a point starts a cluster only if a brute-force scan finds no representative in range
+        int created = 0;
+        for (int i = 0; i < points.size(); i++) {
+            if (clusterOf[i] == created) {
+                for (int c = 0; c < created; c++) assertTrue(points.get(i).distanceTo(representatives.get(c)) > 60);
+                assertSame(points.get(i), representatives.get(created++));
+            } else {
+                assertTrue(clusterOf[i] < created);
+                assertTrue(points.get(i).distanceTo(representatives.get(clusterOf[i])) <= 60);
+            }
+        }
+        assertEquals(representatives.size(), created);
+    }
+
+    @Test
+    public void testZeroRadiusMergesOnlyIdenticalPoints() throws Exception {
+        List<LatLng> points = new ArrayList<LatLng>();
+        points.add(new LatLng(40.5, -73.25));
+        points.add(new LatLng(40.50001, -73.25));
+        points.add(new LatLng(40.5, -73.25));
+
+        ReverseGeocodeClusterer clusterer = new ReverseGeocodeClusterer(new TestBatchGeocoder.EchoGeocoder());
+        clusterer.setRadiusMeters(0);
+        List<ClusteredGeocodeResult> results = clusterer.geocodeAll(points);
+        assertEquals(2, clusterer.getClusterCount());
+        assertSame(results.get(0).getResponse(), results.get(2).getResponse());
+        assertNotSame(results.get(0).getResponse(), results.get(1).getResponse());
+    }
+}
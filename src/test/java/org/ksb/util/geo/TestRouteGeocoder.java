@@ -0,0 +1,155 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Encoded polyline and adaptive route geocoding tests
+ */
+public class TestRouteGeocoder {
+
+    /**
+     * East-west blocks: a new street every 0.01 degrees of longitude, a new city east of
+     * -73.95 and nothing (open water) east of -73.91.
+     */
+    static class BlockGeocoder implements IGeocoder {
+        final AtomicInteger lookups = new AtomicInteger();
+
+        static String street(double lng) {
+            return "Street " + (int) Math.floor((lng + 74) / 0.01);
+        }
+
+        static String city(double lng) {
+            return (lng < -73.95) ? "West" : "East";
+        }
+
+        public GeocodeResponse getForwardGeocode(String address) {
+            throw new UnsupportedOperationException();
+        }
+
+        public GeocodeResponse getReverseGeocode(double lat, double lon) {
+            lookups.incrementAndGet();
+            if (lon > -73.91) return null;
+            GeocodeResponse gr = new GeocodeResponse();
+            gr.setStreet(street(lon));
+            gr.setCity(city(lon));
+            gr.setPosition(new LatLng(lat, lon));
+            return gr;
+        }
+
+        public GeocodeResponse getReverseGeocode(LatLng position) {
+            return getReverseGeocode(position.getLatitude(), position.getLongitude());
+        }
+    }
+
+    @Test
+    public void testPolylineDecode() {
+        double[] coords = EncodedPolyline.decode("_p~iF~ps|U_ulLnnqC_mqNvxq`@");
+        assertArrayEquals(new double[] { 38.5, -120.2, 40.7, -120.95, 43.252, -126.453 }, coords, 1e-9);
+        assertEquals("_p~iF~ps|U_ulLnnqC_mqNvxq`@", EncodedPolyline.encode(coords, 5));
+        assertEquals(0, EncodedPolyline.decode("").length);
+
+        double[] precise = { 47.6097221, -122.3330561, -33.9, 151.2 };
+        assertArrayEquals(precise, EncodedPolyline.decode(EncodedPolyline.encode(precise, 7), 7), 1e-9);
+
+        String[] malformed = { "_p~iF", "_p~iF~ps|", "_p~iF~ps U", "~~~~~~~~~~~~~~~~~~~~~~~~~~~~??" };
+        for (String text : malformed) {
+            try {
+                EncodedPolyline.decode(text);
+                fail(text);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testAdaptiveSampling() throws Exception {
+        List<LatLng> route = new ArrayList<LatLng>();
+        for (int i = 0; i < 2000; i++) route.add(new LatLng(40.0, -74.0 + i * 0.00005));
+        double spacing = route.get(0).distanceTo(route.get(1));
+
+        BlockGeocoder geocoder = new BlockGeocoder();
+        RouteGeocoder routes = new RouteGeocoder(geocoder);
+        List<RouteSegment> segments = routes.geocodePolyline(EncodedPolyline.encode(route));
+
+        assertEquals(geocoder.lookups.get(), routes.getLookupCount());
+        assertTrue("lookups " + routes.getLookupCount(), routes.getLookupCount() < 200);
+        // 9 streets ashore, the last split by the city line, then water
+        assertEquals(11, segments.size());
+        assertNull(segments.get(10).getResponse());
+
+        int mislabeled = 0;
+        int expectedStart = 0;
+        for (RouteSegment segment : segments) {
+            assertEquals(expectedStart, segment.getStartIndex());
+            expectedStart = segment.getEndIndex();
+            GeocodeResponse response = segment.getResponse();
+            for (int i = segment.getStartIndex(); i < segment.getEndIndex(); i++) {
+                double lng = route.get(i).getLongitude();
+                boolean match = (response == null) ? lng > -73.91
+                        : response.getStreet().equals(BlockGeocoder.street(lng))
+                          && response.getCity().equals(BlockGeocoder.city(lng));
+                if (!match) mislabeled++;
+            }
+        }
+        assertEquals(route.size() - 1, expectedStart);
+        assertTrue("mislabeled " + mislabeled, mislabeled * spacing <= 11 * (routes.getMinSpacingMeters() + spacing));
+    }
+
+    @Test
+    public void testShortRoutes() throws Exception {
+        RouteGeocoder routes = new RouteGeocoder(new BlockGeocoder());
+        assertTrue(routes.geocodeRoute(Collections.<LatLng>emptyList()).isEmpty());
+
+        List<RouteSegment> segments = routes.geocodeRoute(Collections.singletonList(new LatLng(40.0, -73.995)));
+        assertEquals(1, segments.size());
+        assertEquals(0, segments.get(0).getEndIndex());
+        assertEquals("Street 0", segments.get(0).getResponse().getStreet());
+
+        // two points on the same street are both sampled and form one segment
+        List<LatLng> route = new ArrayList<LatLng>();
+        route.add(new LatLng(40.0, -73.995));
+        route.add(new LatLng(40.001, -73.995));
+        segments = routes.geocodeRoute(route);
+        assertEquals(1, segments.size());
+        assertEquals(2, routes.getLookupCount());
+        assertEquals(1, segments.get(0).getEndIndex());
+        assertEquals(route.get(0).distanceTo(route.get(1)), segments.get(0).getLength(), 1e-9);
+    }
+}
@@ -0,0 +1,192 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ *
+ * Copyright (c) 2001-2013, Kevin Sven Berg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.ksb.util.geo;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.EnumSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * End-to-end tests against the local stub geocode server
+ */
+public class TestStubGeocodeServer {
+
+    private StubGeocodeServer server;
+    private G3Geocoder gc;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubGeocodeServer().start();
+        gc = new G3Geocoder();
+        gc.setBaseURL(server.getBaseURL());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testForwardGeocode() throws Exception {
+        GeocodeResponse response = gc.getForwardGeocode("1488 Montgomery Highway Birmingham AL 35216");
+        assertNotNull(response);
+        assertEquals("Birmingham", response.getCity());
+        assertEquals(1, gc.getMetrics().getStatusCount(G3Status.OK));
+    }
+
+    @Test
+    public void testReverseGeocode() throws Exception {
+        GeocodeResponse response = gc.getReverseGeocode(40.714224, -72.961452);
+        assertNotNull(response);
+        assertEquals("Dune Walk", response.getStreet());
+    }
+
+    @Test
+    public void testSignedRequestKeepsPort() throws Exception {
+        gc.setGoogleClientID("clientID");
+        gc.setGoogleSigningKey("vNIXE0xscrmjlyV-12Nj_BvUPaw=");
+        assertNotNull(gc.getReverseGeocode(40.714224, -72.961452));
+    }
+
+    @Test
+    public void testStatusInjection() throws Exception {
+        server.setInjectedStatus(G3Status.OVER_QUERY_LIMIT, 1.0);
+        assertNull(gc.getForwardGeocode("1488 Montgomery Highway Birmingham AL 35216"));
+        assertEquals(1, gc.getMetrics().getStatusCount(G3Status.OVER_QUERY_LIMIT));
+    }
+
+    @Test
+    public void testNegativeCache() throws Exception {
+        gc.setNegativeCache(new NegativeGeocodeCache());
+        server.setInjectedStatus(G3Status.ZERO_RESULTS, 1.0);
+        assertNull(gc.getForwardGeocode("Nowhere  Street"));
+        assertEquals(G3Status.ZERO_RESULTS, gc.getForwardGeocodeResults("nowhere street").getStatus());
+        assertNull(gc.getForwardGeocode("NOWHERE STREET", EnumSet.of(GeocodeField.POSITION)));
+
+        assertEquals(1, server.getRequestCount());
+        assertEquals(2, gc.getMetrics().getNegativeHitCount());
+
+        server.setInjectedStatus(G3Status.OVER_QUERY_LIMIT, 1.0);
+        assertNull(gc.getReverseGeocode(40.714224, -72.961452));
+        assertNull(gc.getReverseGeocode(40.714224, -72.961452));
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void testQuotaLedger() throws Exception {
+        File file = File.createTempFile("quota", ".ledger");
+        file.delete();
+        try {
+            gc.setQuotaLedger(new G3QuotaLedger(file, 10, 1));
+            assertNotNull(gc.getForwardGeocode("1488 Montgomery Highway Birmingham AL 35216"));
+            assertEquals(G3Status.OVER_QUERY_LIMIT,
+                    gc.getForwardGeocodeResults("1488 Montgomery Highway Birmingham AL 35216").getStatus());
+            assertEquals(1, server.getRequestCount());
+            assertEquals(1, gc.getMetrics().getQuotaDeniedCount());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testResponseCacheAfterWarmUp() throws Exception {
+        assertTrue(gc.warmUp(20) > 0);
+        assertEquals(0, gc.getMetrics().getStageCounts().get("TRANSFORM").longValue());
+
+        gc.setResponseCache(new GeocodeResponseCache());
+        GeocodeResponse first = gc.getReverseGeocode(40.714224, -72.961452);
+        assertSame(first, gc.getReverseGeocode(40.714224, -72.961452));
+        assertEquals("Dune Walk", first.getStreet());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testErrorInjectionRetries() throws Exception {
+        server.setErrorRate(1.0);
+        assertNull(gc.getForwardGeocode("1488 Montgomery Highway Birmingham AL 35216"));
+        assertEquals(G3Geocoder.RETRIES, server.getRequestCount());
+        assertEquals(G3Geocoder.RETRIES - 1, gc.getMetrics().getRetryCount());
+        assertEquals(1, gc.getMetrics().getStatusCount(G3Status.NO_RESPONSE));
+    }
+
+    @Test
+    public void testClientErrorNotRetried() throws Exception {
+        server.setErrorRate(1.0);
+        server.setErrorStatus(403);
+        assertNull(gc.getForwardGeocode("1488 Montgomery Highway Birmingham AL 35216"));
+        assertEquals(1, server.getRequestCount());
+        assertEquals(0, gc.getMetrics().getRetryCount());
+    }
+
+    @Test
+    public void testCompressedTransfer() throws Exception {
+        GeocodeResponse compressed = gc.getReverseGeocode(40.714224, -72.961452);
+        G3GeocoderMetrics metrics = gc.getMetrics();
+        assertEquals(1, metrics.getTransferCount());
+        assertTrue(metrics.getWireBytes() * 4 < metrics.getDecodedBytes());
+
+        metrics.reset();
+        gc.setCompression(false);
+        GeocodeResponse plain = gc.getReverseGeocode(40.714224, -72.961452);
+        assertEquals(metrics.getWireBytes(), metrics.getDecodedBytes());
+        assertEquals(plain.getStreet(), compressed.getStreet());
+        assertEquals(plain.getPosition(), compressed.getPosition());
+    }
+
+    @Test
+    public void testDeflateTransfer() throws Exception {
+        assertEquals("deflate", StubGeocodeServer.negotiateEncoding("deflate"));
+        ResponseBuffer buffer = ResponseBuffer.acquire();
+        try {
+            buffer.read(new ByteArrayInputStream(StubGeocodeServer.encode("<status>OK</status>".getBytes("UTF-8"), "deflate")),
+                    "deflate");
+            assertEquals("<status>OK</status>", buffer.toString());
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void testShortLoadRun() throws Exception {
+        server.setLatency(2, 2);
+        LoadTestHarness.Result result = LoadTestHarness.run(gc, 4, 500);
+        assertTrue(result.operations > 0);
+        assertEquals(0, result.failures);
+        assertTrue(result.getPercentileMillis(50) <= result.getPercentileMillis(99));
+        assertEquals(result.operations, server.getRequestCount());
+    }
+}